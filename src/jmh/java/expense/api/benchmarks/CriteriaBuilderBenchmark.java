@@ -0,0 +1,65 @@
+package expense.api.benchmarks;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+
+import expense.api.services.ExpenseServiceImpl.CriteriaBuilder;
+import expense.api.services.exceptions.OutOfBoundsException;
+
+// building the query criteria of a filtered listing from its request parameters
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CriteriaBuilderBenchmark {
+
+	// filters in the order they're added, so each filter count adds one more kind of filter
+	private static final Map<String,String> FILTERS = new LinkedHashMap<>();
+	static {
+		FILTERS.put("status", "new");
+		FILTERS.put("merchant", "Starbucks");
+		FILTERS.put("datetimeFrom", "2016-01-01T00:00:00Z");
+		FILTERS.put("datetimeTo", "2016-02-01T00:00:00Z");
+		FILTERS.put("totalMin", "10.00");
+		FILTERS.put("totalMax", "250.00");
+	}
+
+	@Param({ "1", "3", "6" })
+	public int filterCount;
+
+	private Map<String,String> filters;
+
+	@Setup
+	public void setup() {
+		filters = new HashMap<>();
+		for (Map.Entry<String,String> filter : FILTERS.entrySet()) {
+			if (filters.size() == filterCount) {
+				break;
+			}
+			filters.put(filter.getKey(), filter.getValue());
+		}
+	}
+
+	@Benchmark
+	public DBObject build() throws OutOfBoundsException {
+		return CriteriaBuilder.build(filters).getCriteriaObject();
+	}
+}
@@ -0,0 +1,54 @@
+package expense.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import expense.api.model.Expense;
+import expense.api.services.exceptions.ValidationException;
+import expense.api.services.validation.ExpenseValidator;
+
+// validating expenses for create and for update
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpenseValidatorBenchmark {
+
+	private Expense create;
+	private Expense update;
+
+	@Setup
+	public void setup() {
+		create = SampleExpenses.expense(1, 100);
+		create.setId(null);
+
+		update = new Expense();
+		update.setMerchant("Staples");
+		update.setStatus("reimbursed");
+	}
+
+	@Benchmark
+	public void validateCreate(Blackhole blackhole) throws ValidationException {
+		ExpenseValidator.validate(create);
+		blackhole.consume(create);
+	}
+
+	@Benchmark
+	public void validateUpdate(Blackhole blackhole) throws ValidationException {
+		ExpenseValidator.validate("1", update);
+		blackhole.consume(update);
+	}
+}
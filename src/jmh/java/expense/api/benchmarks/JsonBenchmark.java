@@ -0,0 +1,87 @@
+package expense.api.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import expense.api.model.Expense;
+import expense.api.msgs.ResponseList;
+
+// writing expenses and expense lists as JSON, the way responses are written.  output goes to a stream that counts bytes
+// and discards them, so only serialization is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+	@Param({ "1", "100", "10000" })
+	public int listSize;
+
+	@Param({ "0", "1000" })
+	public int commentsLength;
+
+	private ObjectWriter expenseWriter;
+	private ObjectWriter listWriter;
+
+	private Expense expense;
+	private ResponseList list;
+
+	@Setup
+	public void setup() {
+		ObjectMapper objectMapper = new ObjectMapper();
+		expenseWriter = objectMapper.writerFor(Expense.class);
+		listWriter = objectMapper.writerFor(ResponseList.class);
+
+		List<Expense> expenses = SampleExpenses.expenses(listSize, commentsLength);
+		expense = expenses.get(0);
+		list = new ResponseList(expenses);
+	}
+
+	@Benchmark
+	public void writeExpense(Blackhole blackhole) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		expenseWriter.writeValue(out, expense);
+		blackhole.consume(out.count);
+	}
+
+	@Benchmark
+	public void writeList(Blackhole blackhole) throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		listWriter.writeValue(out, list);
+		blackhole.consume(out.count);
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
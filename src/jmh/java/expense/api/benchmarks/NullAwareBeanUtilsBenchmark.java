@@ -0,0 +1,56 @@
+package expense.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import expense.api.model.Expense;
+import expense.api.services.NullAwareBeanUtils;
+
+// copying the set properties of a sparse update onto a saved expense
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NullAwareBeanUtilsBenchmark {
+
+	@Param({ "0", "1000", "100000" })
+	public int commentsLength;
+
+	private Expense saved;
+	private Expense full;
+	private Expense sparse;
+
+	@Setup
+	public void setup() {
+		saved = SampleExpenses.expense(1, commentsLength);
+		full = SampleExpenses.expense(2, commentsLength);
+
+		sparse = new Expense();
+		sparse.setStatus("reimbursed");
+	}
+
+	@Benchmark
+	public Expense copyFull() throws Exception {
+		NullAwareBeanUtils.copy(saved, full);
+		return saved;
+	}
+
+	@Benchmark
+	public Expense copySparse() throws Exception {
+		NullAwareBeanUtils.copy(saved, sparse);
+		return saved;
+	}
+}
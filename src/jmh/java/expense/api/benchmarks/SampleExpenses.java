@@ -0,0 +1,49 @@
+package expense.api.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import expense.api.model.Expense;
+
+// expenses for the benchmarks to work on, the same every run.
+public class SampleExpenses {
+
+	private static final String[] MERCHANTS = { "Starbucks", "Staples", "Subway", "Delta Air Lines", "Hilton" };
+
+	// a saved expense whose comments are about the given length
+	public static Expense expense(int i, int commentsLength) {
+		Expense expense = new Expense();
+		expense.setId(String.format("%024x", i));
+		expense.setMerchant(MERCHANTS[i % MERCHANTS.length]);
+		expense.setTotal(new BigDecimal(i % 500 + ".25"));
+		expense.setDatetime(new Date(1451606400000L + i * 3600000L));
+		expense.setStatus(i % 3 == 0 ? "reimbursed" : "new");
+		expense.setVersion((long) (i % 7));
+		expense.setLastModified(new Date(1451606400000L + i * 3600000L));
+		expense.setComments(comments(commentsLength));
+		return expense;
+	}
+
+	public static List<Expense> expenses(int count, int commentsLength) {
+		List<Expense> expenses = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			expenses.add(expense(i, commentsLength));
+		}
+		return expenses;
+	}
+
+	private static String comments(int length) {
+		if (length == 0) {
+			return null;
+		}
+
+		StringBuilder comments = new StringBuilder(length);
+		while (comments.length() < length) {
+			comments.append("Client dinner with the regional team.\n");
+		}
+		comments.setLength(length);
+		return comments.toString();
+	}
+}
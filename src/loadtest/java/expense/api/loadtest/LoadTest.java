@@ -0,0 +1,389 @@
+package expense.api.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+
+import expense.api.RestapiApplication;
+
+// An end to end load test of the expense REST api.  Starts a local mongod (or uses the one given with --mongo-port), boots
+// the application on a free port against it, seeds it with expenses, then drives a mix of requests from concurrent
+// clients and reports throughput and latency percentiles for each kind of request.  Run with --help for the options.
+//
+// Requests are sent at a fixed rate, each on a schedule set before the run, and each is timed from when it was due rather
+// than from when it was sent.  A client held up by a slow response sends its overdue requests as soon as it can, and the
+// time they spent overdue counts against them, so a stall shows up in the percentiles as it would to users arriving at
+// that rate instead of being hidden by the clients waiting for it.  --threads must be enough to sustain --rate.
+//
+// The local mongod is downloaded the first time the test runs on a machine, and cached in ~/.embedmongo after that.  Use
+// --mongo-port to test against a mongod that is already installed and running instead.
+//
+// Given --max-p99-ms or --max-error-rate, exits with status 1 if any request kind is slower or fails more often, so it can
+// be used as a regression gate.
+public class LoadTest {
+
+	private static final Map<String,String> DEFAULTS = new LinkedHashMap<>();
+	static {
+		DEFAULTS.put("threads", "16");
+		DEFAULTS.put("rate", "400");
+		DEFAULTS.put("warmup-seconds", "10");
+		DEFAULTS.put("duration-seconds", "60");
+		DEFAULTS.put("seed", "10000");
+		DEFAULTS.put("mix", "get:60,list:20,create:10,update:8,delete:2");
+		DEFAULTS.put("page-size", "100");
+		DEFAULTS.put("mongo-port", "");
+		DEFAULTS.put("max-p99-ms", "");
+		DEFAULTS.put("max-error-rate", "");
+	}
+
+	private static final String[] MERCHANTS = { "Starbucks", "Staples", "Subway", "Delta Air Lines", "Hilton", "Uber", "Amtrak", "Marriott" };
+
+	private final Map<String,String> options;
+	private final Map<String,Integer> mix = new LinkedHashMap<>();
+	private final int mixTotal;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final String authorization = "Basic " + Base64.getEncoder().encodeToString("demo:demo".getBytes(StandardCharsets.UTF_8));
+	private final IdPool ids = new IdPool();
+
+	private String baseUrl;
+
+	public LoadTest(Map<String,String> options) {
+		this.options = options;
+
+		int total = 0;
+		for (String entry : options.get("mix").split(",")) {
+			String[] weight = entry.split(":");
+			mix.put(weight[0].trim(), Integer.valueOf(weight[1].trim()));
+			total += Integer.parseInt(weight[1].trim());
+		}
+		this.mixTotal = total;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> options = new LinkedHashMap<>(DEFAULTS);
+		for (String arg : args) {
+			if (arg.equals("--help") || !arg.startsWith("--") || !arg.contains("=")) {
+				System.out.println("options (with defaults):");
+				for (Map.Entry<String,String> option : DEFAULTS.entrySet()) {
+					System.out.println("  --" + option.getKey() + "=" + option.getValue());
+				}
+				System.exit(arg.equals("--help") ? 0 : 2);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+
+		System.exit(new LoadTest(options).run() ? 0 : 1);
+	}
+
+	public boolean run() throws Exception {
+		MongodExecutable mongodExecutable = null;
+		MongodProcess mongod = null;
+
+		int mongoPort;
+		if (options.get("mongo-port").isEmpty()) {
+			mongoPort = Network.getFreeServerPort();
+			mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+					.version(Version.Main.PRODUCTION)
+					.net(new Net(mongoPort, Network.localhostIsIPv6()))
+					.build());
+			mongod = mongodExecutable.start();
+		}
+		else {
+			mongoPort = Integer.parseInt(options.get("mongo-port"));
+		}
+
+		// spring boot would start a mongod of its own with embedded mongo on the classpath, so it is told not to
+		ConfigurableApplicationContext app = SpringApplication.run(RestapiApplication.class,
+				"--server.port=0", "--spring.data.mongodb.port=" + mongoPort, "--logging.level.expense=WARN",
+				"--spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration");
+		try {
+			baseUrl = "http://localhost:" + ((EmbeddedWebApplicationContext) app).getEmbeddedServletContainer().getPort();
+
+			seed(Integer.parseInt(options.get("seed")));
+
+			int threads = Integer.parseInt(options.get("threads"));
+			System.out.println("warming up for " + options.get("warmup-seconds") + "s");
+			drive(threads, Integer.parseInt(options.get("warmup-seconds")));
+
+			System.out.println("measuring " + options.get("rate") + " requests/s from " + threads + " clients for " + options.get("duration-seconds")
+					+ "s with mix " + options.get("mix"));
+			long start = System.nanoTime();
+			Map<String,Recorder> results = drive(threads, Integer.parseInt(options.get("duration-seconds")));
+
+			return report(results, (System.nanoTime() - start) / 1e9);
+		}
+		finally {
+			app.close();
+			if (mongod != null) {
+				mongod.stop();
+				mongodExecutable.stop();
+			}
+		}
+	}
+
+	// create the expenses the requests work on
+	private void seed(int count) throws Exception {
+		System.out.println("seeding " + count + " expenses");
+
+		List<Map<String,Object>> batch = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			batch.add(newExpense());
+			if (batch.size() == 1000 || i == count - 1) {
+				JsonNode response = objectMapper.readTree(request("POST", "/expenses/batch", objectMapper.writeValueAsBytes(batch)).body);
+				for (JsonNode result : response.get("results")) {
+					if (result.has("id")) {
+						ids.add(result.get("id").asText());
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	// run the request mix at the rate for the duration, spread over the threads, recording the latency of every request by
+	// kind from the time it was due
+	private Map<String,Recorder> drive(int threads, int seconds) throws InterruptedException {
+		Map<String,List<Recorder>> recorders = new LinkedHashMap<>();
+		for (String kind : mix.keySet()) {
+			recorders.put(kind, new ArrayList<>());
+		}
+
+		// each client sends every threads/rate seconds, the clients staggered evenly over one interval
+		long interval = (long) (TimeUnit.SECONDS.toNanos(threads) / Double.parseDouble(options.get("rate")));
+		long begin = System.nanoTime();
+		long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			// each client records into its own recorders, which are merged once every client has finished
+			Map<String,Recorder> own = new LinkedHashMap<>();
+			for (String kind : mix.keySet()) {
+				Recorder recorder = new Recorder();
+				own.put(kind, recorder);
+				recorders.get(kind).add(recorder);
+			}
+
+			long first = begin + interval * t / threads;
+			clients.execute(() -> {
+				for (long due = first; due < end; due += interval) {
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+
+					String kind = pick();
+					boolean ok;
+					try {
+						ok = send(kind);
+					} catch (IOException e) {
+						ok = false;
+					}
+					own.get(kind).record(System.nanoTime() - due, ok);
+				}
+			});
+		}
+		clients.shutdown();
+		// clients that fell behind keep sending their overdue requests after the end
+		clients.awaitTermination(seconds + 600, TimeUnit.SECONDS);
+
+		Map<String,Recorder> merged = new LinkedHashMap<>();
+		for (Map.Entry<String,List<Recorder>> kind : recorders.entrySet()) {
+			merged.put(kind.getKey(), Recorder.merge(kind.getValue()));
+		}
+		return merged;
+	}
+
+	private String pick() {
+		int roll = ThreadLocalRandom.current().nextInt(mixTotal);
+		for (Map.Entry<String,Integer> weight : mix.entrySet()) {
+			roll -= weight.getValue();
+			if (roll < 0) {
+				return weight.getKey();
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	// send one request of the given kind, returning whether it succeeded
+	private boolean send(String kind) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		switch (kind) {
+		case "get": {
+			String id = ids.any();
+			return id != null && request("GET", "/expense/" + id, null).ok();
+		}
+		case "list": {
+			String query = "?size=" + options.get("page-size") + "&status=new";
+			if (random.nextBoolean()) {
+				query += "&merchant=" + MERCHANTS[random.nextInt(MERCHANTS.length)].replace(" ", "%20");
+			}
+			return request("GET", "/expenses" + query, null).ok();
+		}
+		case "create": {
+			Response response = request("POST", "/expense", objectMapper.writeValueAsBytes(newExpense()));
+			JsonNode id = response.ok() ? objectMapper.readTree(response.body).get("id") : null;
+			if (id != null) {
+				ids.add(id.asText());
+			}
+			return id != null;
+		}
+		case "update": {
+			String id = ids.any();
+			Map<String,Object> update = new LinkedHashMap<>();
+			update.put("merchant", MERCHANTS[random.nextInt(MERCHANTS.length)]);
+			update.put("total", random.nextInt(1, 500) + ".00");
+			return id != null && request("PUT", "/expense/" + id, objectMapper.writeValueAsBytes(update)).ok();
+		}
+		case "delete": {
+			String id = ids.take();
+			return id != null && request("DELETE", "/expense/" + id, null).ok();
+		}
+		default:
+			throw new IllegalArgumentException("Unknown request kind [" + kind + "] in mix.");
+		}
+	}
+
+	private Map<String,Object> newExpense() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		Map<String,Object> expense = new LinkedHashMap<>();
+		expense.put("merchant", MERCHANTS[random.nextInt(MERCHANTS.length)]);
+		expense.put("total", random.nextInt(1, 500) + "." + random.nextInt(10, 100));
+		expense.put("datetime", String.format("2016-%02d-%02dT%02d:00:00Z", random.nextInt(1, 13), random.nextInt(1, 29), random.nextInt(24)));
+		expense.put("comments", "load test");
+		return expense;
+	}
+
+	private Response request(String method, String path, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty("Authorization", authorization);
+		connection.setRequestProperty("Accept", "application/json");
+
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+		}
+
+		int status = connection.getResponseCode();
+		// the body is always read to the end so the connection can be kept alive for the next request
+		try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+			return new Response(status, in == null ? new byte[0] : readAll(in));
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) > 0; ) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	// print the results, returning false if any gate was exceeded.  a rate under the one asked for means the clients fell
+	// behind and the last requests were sent after the duration.
+	private boolean report(Map<String,Recorder> results, double seconds) {
+		Double maxP99Ms = options.get("max-p99-ms").isEmpty() ? null : Double.valueOf(options.get("max-p99-ms"));
+		Double maxErrorRate = options.get("max-error-rate").isEmpty() ? null : Double.valueOf(options.get("max-error-rate"));
+
+		boolean passed = true;
+		System.out.println(String.format("%-8s %10s %10s %8s %10s %10s %10s %10s", "request", "count", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+
+		List<Recorder> all = new ArrayList<>();
+		for (Map.Entry<String,Recorder> result : results.entrySet()) {
+			Recorder recorder = result.getValue();
+			all.add(recorder);
+			print(result.getKey(), recorder, seconds);
+
+			if (maxP99Ms != null && recorder.count() > 0 && recorder.percentileMillis(99) > maxP99Ms) {
+				System.out.println("FAIL: " + result.getKey() + " p99 is over " + maxP99Ms + " ms");
+				passed = false;
+			}
+			if (maxErrorRate != null && recorder.count() > 0 && (double) recorder.errors() / recorder.count() > maxErrorRate) {
+				System.out.println("FAIL: " + result.getKey() + " error rate is over " + maxErrorRate);
+				passed = false;
+			}
+		}
+		print("all", Recorder.merge(all), seconds);
+
+		return passed;
+	}
+
+	private static void print(String kind, Recorder recorder, double seconds) {
+		System.out.println(String.format("%-8s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f", kind, recorder.count(), (double) recorder.count() / seconds,
+				recorder.errors(), recorder.percentileMillis(50), recorder.percentileMillis(99), recorder.percentileMillis(99.9), recorder.percentileMillis(100)));
+	}
+
+	private static class Response {
+		private final int status;
+		private final byte[] body;
+
+		private Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		// the api reports most failures as an error message body rather than an error status
+		private boolean ok() {
+			return status < 400 && !new String(body, StandardCharsets.UTF_8).contains("\"error\"");
+		}
+	}
+
+	// the ids of the expenses that exist, for picking ones to read, update and delete
+	private static class IdPool {
+		private final List<String> ids = new ArrayList<>();
+
+		private synchronized void add(String id) {
+			ids.add(id);
+		}
+
+		private synchronized String any() {
+			return ids.isEmpty() ? null : ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+		}
+
+		// remove a random id, replacing it with the last so that removal doesn't shift the list
+		private synchronized String take() {
+			if (ids.isEmpty()) {
+				return null;
+			}
+			int i = ThreadLocalRandom.current().nextInt(ids.size());
+			String id = ids.get(i);
+			ids.set(i, ids.get(ids.size() - 1));
+			ids.remove(ids.size() - 1);
+			return id;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package expense.api.loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The latency of every request of one kind made by one client, with the number that failed.  Not thread safe: each client
+// records into its own and they are merged once the clients have finished.
+class Recorder {
+
+	private long[] latencies = new long[1024];
+	private int count;
+	private long errors;
+
+	void record(long nanos, boolean ok) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = nanos;
+		if (!ok) {
+			errors++;
+		}
+	}
+
+	static Recorder merge(List<Recorder> recorders) {
+		Recorder merged = new Recorder();
+		for (Recorder recorder : recorders) {
+			for (int i = 0; i < recorder.count; i++) {
+				merged.record(recorder.latencies[i], true);
+			}
+			merged.errors += recorder.errors;
+		}
+		Arrays.sort(merged.latencies, 0, merged.count);
+		return merged;
+	}
+
+	int count() {
+		return count;
+	}
+
+	long errors() {
+		return errors;
+	}
+
+	// the latency under which the given percent of the requests completed, by the nearest rank.  only valid once merged,
+	// which sorts the latencies.
+	double percentileMillis(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100 * count);
+		return latencies[Math.max(rank, 1) - 1] / 1_000_000.0;
+	}
+}
@@ -1,15 +1,37 @@
 package expense.api;
 
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.boot.actuate.endpoint.Endpoint;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.data.mongodb.config.AbstractMongoConfiguration;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 
 import com.mongodb.Mongo;
 
+import expense.api.repositories.ExpenseIndexes;
+
 @Configuration
+@Profile("!memory")
 @EnableMongoRepositories
 public class ApplicationConfig extends AbstractMongoConfiguration {
 
+	  private final Logger log = LoggerFactory.getLogger(ApplicationConfig.class);
+
+	  @Value("${spring.data.mongodb.host:localhost}")
+	  private String mongoHost;
+
+	  @Value("${spring.data.mongodb.port:27017}")
+	  private int mongoPort;
+
 	 @Override
 	  protected String getDatabaseName() {
 	    return "e-store";
@@ -17,11 +39,43 @@ public class ApplicationConfig extends AbstractMongoConfiguration {
 
 	  @Override
 	  public Mongo mongo() throws Exception {
-	    return new Mongo();
+	    return new Mongo(mongoHost, mongoPort);
 	  }
 
 	  @Override
 	  protected String getMappingBasePackage() {
 	    return "com.oreilly.springdata.mongodb";
 	  }
+
+	  @Bean
+	  public ExpenseIndexes expenseIndexes() throws Exception {
+	    return new ExpenseIndexes(mongoTemplate());
+	  }
+
+	  // create any missing expense indexes at startup.  a database that can't be reached is reported but doesn't stop the
+	  // application from starting.
+	  @Bean
+	  public CommandLineRunner ensureExpenseIndexes(ExpenseIndexes indexes) {
+	    return args -> {
+	      try {
+	        List<String> created = indexes.ensure();
+	        if (!created.isEmpty()) {
+	          log.info("Created expense indexes " + created);
+	        }
+	      } catch (RuntimeException e) {
+	        log.warn("Unable to ensure expense indexes.", e);
+	      }
+	    };
+	  }
+
+	  // lists the existing and desired expense indexes at /indexes
+	  @Bean
+	  public Endpoint<Map<String,List<String>>> indexesEndpoint(ExpenseIndexes indexes) {
+	    return new AbstractEndpoint<Map<String,List<String>>>("indexes") {
+	      @Override
+	      public Map<String,List<String>> invoke() {
+	        return indexes.report();
+	      }
+	    };
+	  }
 }
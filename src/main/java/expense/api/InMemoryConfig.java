@@ -0,0 +1,33 @@
+package expense.api;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import expense.api.repositories.InMemoryExpenseRepository;
+import expense.api.repositories.InMemoryMongoTemplate;
+import expense.api.services.ExpenseRollups;
+
+// Keeps expenses in memory instead of in MongoDB when the 'memory' profile is active (--spring.profiles.active=memory).
+// Expenses are lost on restart.  The rollups are disabled, so summaries are aggregated from the expenses, and the explain
+// plans of slow listings need MongoDB.
+@Configuration
+@Profile("memory")
+public class InMemoryConfig {
+
+	@Bean
+	public InMemoryExpenseRepository expenseRepository() {
+		return new InMemoryExpenseRepository();
+	}
+
+	@Bean
+	public MongoTemplate mongoTemplate(InMemoryExpenseRepository repository) {
+		return new InMemoryMongoTemplate(repository);
+	}
+
+	@Bean
+	public ExpenseRollups expenseRollups() {
+		return ExpenseRollups.disabled();
+	}
+}
@@ -1,40 +1,91 @@
 package expense.api.controllers;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import expense.api.model.Expense;
+import expense.api.msgs.ResponseBatch;
 import expense.api.msgs.ResponseErr;
 import expense.api.msgs.ResponseId;
 import expense.api.msgs.ResponseList;
 import expense.api.msgs.ResponseMsg;
+import expense.api.msgs.ResponseSuggestions;
+import expense.api.msgs.ResponseSummary;
+import expense.api.msgs.ResponseTransition;
+import expense.api.msgs.StreamedMsg;
+import expense.api.services.BatchResult;
+import expense.api.services.CursorPage;
+import expense.api.services.ExpenseCount;
 import expense.api.services.ExpenseService;
+import expense.api.services.TransitionResult;
+import expense.api.services.exceptions.OutOfBoundsException;
 import expense.api.services.exceptions.ValidationException;
+import expense.api.services.exceptions.VersionConflictException;
 
 @RestController
 public class ExpenseController {
 
 	private final Logger log = LoggerFactory.getLogger(ExpenseController.class);
 	
-	public static final SimpleDateFormat SDF = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
+	public static final DateTimeFormatter SDF = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss zzz").withZone(ZoneId.systemDefault());
+
+	public static final String NDJSON = "application/x-ndjson";
+
+	private static final String STREAM_TIMEOUT_KEY = ExpenseController.class.getName() + ".streamTimeout";
 
 	private ExpenseService service;
+	private ObjectMapper objectMapper;
+	private Executor listingExecutor;
+	private long streamTimeout;
 	
 	@Autowired
-	public ExpenseController(ExpenseService service) {
+	public ExpenseController(ExpenseService service, ObjectMapper objectMapper, ListingExecutor listingExecutor, 
+			@Value("${expense.stream.timeout-ms:3600000}") long streamTimeout) {
 		this.service = service;
+		this.objectMapper = objectMapper;
+		this.listingExecutor = listingExecutor;
+		this.streamTimeout = streamTimeout;
 	}
 	
 	/** Create a new expense
@@ -64,16 +115,49 @@ public class ExpenseController {
     	}
     }
     
+    /** Create a batch of new expenses with a single bulk insert.
+     * 
+     * @param expenses The new expenses to create.
+     * @return A message with the id of each created expense or the error message of each expense that was not created,
+     * in the order submitted.
+     * @throws IOException
+     */
+    @RequestMapping(value="/expenses/batch", method=RequestMethod.POST)
+    @ResponseBody
+    public ResponseMsg createExpenses(@RequestBody List<Expense> expenses) throws IOException {
+    	
+    	try {
+    		List<BatchResult> batch = service.createExpenses(expenses);
+    		
+    		List<ResponseMsg> results = new ArrayList<>(batch.size());
+    		for (BatchResult result : batch) {
+    			results.add(result.isError() ? new ResponseErr(result.getError()) : new ResponseId(result.getId()));
+    		}
+    		return new ResponseBatch(results);
+    	}
+    	catch (ValidationException e) {
+    		return new ResponseErr(e.getMessage());
+    	}
+    	catch (Exception e) {
+    		log.error("Exception creating batch of expenses", e);
+    		return new ResponseErr(e.getMessage());
+    	}
+    }
+    
     /** Update an expense.  Submitted expense object can be sparse.  Only those properties present will be updated.
+     * When an If-Match header is present, the expense is only updated if its ETag still matches.
      * 
      * @param id The id of the expense to update
      * @param expense The expense object
+     * @param ifMatch The ETag the expense must still have, or null
+     * @param response The servlet response
      * @return a status message
      * @throws IOException
      */
     @RequestMapping(value="/expense/{id}", method=RequestMethod.PUT)
     @ResponseBody
-    public ResponseMsg updateExpense(@PathVariable String id, @RequestBody Expense expense) throws IOException {
+    public ResponseMsg updateExpense(@PathVariable String id, @RequestBody Expense expense, 
+    		@RequestHeader(value="If-Match", required=false) String ifMatch, HttpServletResponse response) throws IOException {
     	
     	ResponseMsg validationMsg = ControllerExpenseValidator.isValid(id, expense);
     	if (validationMsg != null) {
@@ -81,9 +165,13 @@ public class ExpenseController {
     	}
     	
     	try {
-    		service.updateExpense(id, expense);
+    		service.updateExpense(id, expense, VersionETag.parse(ifMatch));
         	return new ResponseId(id);
     	}
+    	catch (VersionConflictException e) {
+    		response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+    		return new ResponseErr(e.getMessage());
+    	}
     	catch (ValidationException e) {
     		return new ResponseErr(e.getMessage());
     	}
@@ -93,25 +181,60 @@ public class ExpenseController {
     	}
     }
 
-    /** Delete an existing expense.
+    /** Change the status of many expenses in one request.  Only expenses in 'new' status are changed.
+     * 
+     * @param status The new status
+     * @param ids The ids of the expenses to change, narrowed down by any filter parameters.  When absent, expenses are
+     * selected by the filter parameters alone.
+     * @param allRequestParams Filtering parameters
+     * @return A message with the number of expenses changed and the ids that were skipped.
+     * @throws IOException
+     */
+    @RequestMapping(value="/expenses/status/{status}", method=RequestMethod.PUT)
+    @ResponseBody
+    public ResponseMsg updateExpenseStatus(@PathVariable String status, @RequestBody(required=false) List<String> ids, 
+    		@RequestParam Map<String,String> allRequestParams) throws IOException {
+    	
+    	try {
+    		TransitionResult result = service.updateExpenseStatus(status, ids, allRequestParams);
+    		log.info("[" + result.getUpdated() + "] expenses changed to status [" + status + "].");
+    		return new ResponseTransition(result.getUpdated(), result.getSkipped());
+    	}
+    	catch (ValidationException e) {
+    		return new ResponseErr(e.getMessage());
+    	}
+    	catch (Exception e) {
+    		log.error("Exception changing status of expenses", e);
+    		return new ResponseErr(e.getMessage());
+    	}
+    }
+
+    /** Delete an existing expense.  When an If-Match header is present, the expense is only deleted if its ETag still matches.
      * 
      * @param id The id of the expense to delete
+     * @param ifMatch The ETag the expense must still have, or null
+     * @param response The servlet response
      * @return A success message.
      * @throws IOException
      */
     @RequestMapping(value="/expense/{id}", method=RequestMethod.DELETE)
     @ResponseBody
-    public ResponseMsg deleteExpense(@PathVariable String id) throws IOException {
+    public ResponseMsg deleteExpense(@PathVariable String id, 
+    		@RequestHeader(value="If-Match", required=false) String ifMatch, HttpServletResponse response) throws IOException {
 
     	if (id == null || id.length() < 1) {
     		return new ResponseErr("Expense id is required.");
 		}
     	
     	try {
-    		service.deleteExpense(id);
+    		service.deleteExpense(id, VersionETag.parse(ifMatch));
     		log.info("expense [" + id + "] deleted.");
         	return null;
     	}
+    	catch (VersionConflictException e) {
+    		response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+    		return new ResponseErr(e.getMessage());
+    	}
     	catch (ValidationException e) {
     		return new ResponseErr(e.getMessage());
     	}
@@ -121,43 +244,268 @@ public class ExpenseController {
     	}
     }
     
-    /** Fetch an expense by id.
+    /** Fetch an expense by id.  The version of the expense is returned as its ETag along with its Last-Modified time, and
+     * a request whose If-None-Match or If-Modified-Since header shows it already has this version gets a 304 with no body.
      * 
      * @param id The id of the expense
+     * @param fields The comma separated fields to return, or null for every field
+     * @param request The web request
      * @return The expense object.
      * @throws IOException
      */
     @RequestMapping(value="/expense/{id}", method=RequestMethod.GET)
     @ResponseBody
-    public Object getExpense(@PathVariable String id) throws IOException {
+    public Object getExpense(@PathVariable String id, @RequestParam(value="fields", required=false) String fields, 
+    		WebRequest request) throws IOException {
     	
     	try {
-    		return service.findExpense(id);
+    		Expense expense = service.findExpense(id, fields);
+    		
+    		long lastModified = expense.getLastModified() == null ? -1 : expense.getLastModified().getTime();
+    		if (request.checkNotModified(VersionETag.of(expense), lastModified)) {
+    			return null;
+    		}
+    		
+    		return expense;
+    	}
+    	catch (OutOfBoundsException e) {
+    		return new ResponseErr(e.getMessage());
     	}
     	catch (Exception e) {
     		return new ResponseErr("Expense [" + id + "] not found");
     	}
     }
 
-    /** List expenses with a filter.
-     * 
+    /** List expenses with a filter.  When a 'cursor' parameter is present (empty for the first page), the expenses are
+     * paged by cursor instead of by page number and the response includes the cursor of the next page.
+     * The list is returned with an ETag built from the ids and versions of the expenses and any count, and a request whose
+     * If-None-Match header shows it already has the same list gets a 304 with no body.
+     * A 'count' parameter of 'exact' or 'estimate' adds the number of expenses matching the filters across all pages, unless
+     * counting them runs out of time, and a 'fields' parameter limits the expenses to the listed fields.  A 'q' parameter searches for words in the merchant and
+     * comments, listing the most relevant expenses first unless paging by cursor.
+     * Listings run on their own bounded pool of threads, so a slow listing never holds a container thread.  When every
+     * listing thread is busy and the queue of waiting listings is full, the listing is refused with a 503.
+     * Once read, the list is written to the response one expense at a time, so the first expenses reach the client before
+     * the last one is serialized.
+     *
      * @param allRequestParams Filtering and paging parameters
-     * @return The list of expenses that match the filtering and paging criteria.
+     * @param ifNoneMatch The ETags of lists the client already has, if any
+     * @return The list of expenses that match the filtering and paging criteria with its ETag, or a 304, once it has been read.
      * @throws IOException
      */
     @RequestMapping(value="/expenses", method=RequestMethod.GET)
     @ResponseBody
-    public Object listExpenses(@RequestParam Map<String,String> allRequestParams) throws IOException {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> listExpenses(@RequestParam Map<String,String> allRequestParams, 
+    		@RequestHeader(value="If-None-Match", required=false) String ifNoneMatch) throws IOException {
 
+    	// the listing thread only builds the response entity; the servlet response is only touched by the container's threads.
+    	// the body is only handled as a stream when the future is declared to answer with one, so errors are streamed too.
     	try {
-    		return new ResponseList(service.listExpenses(allRequestParams));
+    		return CompletableFuture.supplyAsync(() -> readExpenses(allRequestParams, ifNoneMatch), listingExecutor);
+    	}
+    	catch (RejectedExecutionException e) {
+    		return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+    				.contentType(MediaType.APPLICATION_JSON).body(new StreamedMsg(new ResponseErr(e.getMessage()), objectMapper)));
+    	}
+    }
+
+    private ResponseEntity<StreamingResponseBody> readExpenses(Map<String,String> allRequestParams, String ifNoneMatch) {
+
+    	try {
+    		String countMode = allRequestParams.remove("count");
+    		Map<String,String> countFilters = new HashMap<>(allRequestParams);
+    		countFilters.remove("cursor");
+    		countFilters.remove("fields");
+    		
+    		ResponseList list;
+    		if (allRequestParams.containsKey("cursor")) {
+    			String cursor = allRequestParams.remove("cursor");
+    			CursorPage page = service.listExpenses(allRequestParams, cursor);
+    			list = new ResponseList(page.getContents(), page.getNext());
+    		}
+    		else {
+    			list = new ResponseList(service.listExpenses(allRequestParams));
+    		}
+
+    		// the count can change while the page stays the same, so a requested count is part of the ETag
+    		ExpenseCount count = service.countExpenses(countFilters, countMode);
+
+    		// a list has no meaningful Last-Modified time since deleted expenses leave no trace, so only the ETag is checked
+    		String etag = VersionETag.of(list.getContents(), count);
+    		if (VersionETag.matches(ifNoneMatch, etag)) {
+    			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).body(null);
+    		}
+
+    		if (count != null) {
+    			list.setCount(count.getCount());
+    			list.setCountEstimated(count.isEstimated());
+    		}
+
+    		return ResponseEntity.ok().eTag(etag).contentType(MediaType.APPLICATION_JSON).body(new StreamedMsg(list, objectMapper));
     	}
     	catch (Exception e) {
     		log.error("Exception listing expenses", e);
+    		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(new StreamedMsg(new ResponseErr(e.getMessage()), objectMapper));
+    	}
+    }
+
+    /** Summarize spend with a filter.  The totals and counts of the matching expenses are computed by the database, grouped
+     * by merchant, status and calendar month, or by the groups listed in a 'groupBy' parameter.
+     *
+     * @param allRequestParams Filtering and grouping parameters
+     * @return The total and count of each group.
+     * @throws IOException
+     */
+    @RequestMapping(value="/expenses/summary", method=RequestMethod.GET)
+    @ResponseBody
+    public ResponseMsg summarizeExpenses(@RequestParam Map<String,String> allRequestParams) throws IOException {
+
+    	try {
+    		return new ResponseSummary(service.summarizeExpenses(allRequestParams));
+    	}
+    	catch (Exception e) {
+    		log.error("Exception summarizing expenses", e);
+    		return new ResponseErr(e.getMessage());
+    	}
+    }
+
+    /** Suggest merchant names starting with a prefix, for autocompletion.
+     *
+     * @param prefix The start of the merchant name, in any case
+     * @param limit The most suggestions to return
+     * @return The suggested merchant names, those with the most expenses first.
+     * @throws IOException
+     */
+    @RequestMapping(value="/merchants/suggest", method=RequestMethod.GET)
+    @ResponseBody
+    public ResponseMsg suggestMerchants(@RequestParam(value="prefix", required=false) String prefix, 
+    		@RequestParam(value="limit", defaultValue="10") int limit) throws IOException {
+
+    	try {
+    		return new ResponseSuggestions(service.suggestMerchants(prefix, limit));
+    	}
+    	catch (OutOfBoundsException e) {
     		return new ResponseErr(e.getMessage());
     	}
     }
 
+    /** Export expenses with a filter as newline delimited JSON.  Expenses are written to the response as they are read from
+     * the database, so any number of expenses can be exported in constant memory.  An export may run for up to the
+     * 'expense.stream.timeout-ms' property rather than the shorter timeout of other asynchronous requests.
+     *
+     * @param allRequestParams Filtering parameters
+     * @param request The web request
+     * @param response The servlet response
+     * @return The response body that writes one expense per line.
+     * @throws IOException
+     */
+    @RequestMapping(value="/expenses/stream", method=RequestMethod.GET)
+    public StreamingResponseBody streamExpenses(@RequestParam Map<String,String> allRequestParams, WebRequest request, 
+    		HttpServletResponse response) throws IOException {
+
+    	response.setContentType(NDJSON);
+
+    	// the body is written as a task with no timeout of its own, so the export's timeout is set as the task starts
+    	WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(STREAM_TIMEOUT_KEY, new CallableProcessingInterceptorAdapter() {
+    		@Override
+    		public <T> void beforeConcurrentHandling(NativeWebRequest asyncRequest, Callable<T> task) {
+    			((AsyncWebRequest) asyncRequest).setTimeout(streamTimeout);
+    		}
+    	});
+
+    	return out -> {
+    		// the cursor is only opened once the body is written, so a body that is never written holds no cursor
+    		CloseableIterator<Expense> expenses;
+    		try {
+    			expenses = service.streamExpenses(allRequestParams);
+    		}
+    		catch (Exception e) {
+    			log.error("Exception streaming expenses", e);
+    			out.write((objectMapper.writeValueAsString(new ResponseErr(e.getMessage())) + "\n").getBytes(StandardCharsets.UTF_8));
+    			return;
+    		}
+
+    		// flush once the generator buffer fills instead of after every expense
+    		ObjectWriter writer = objectMapper.writerFor(Expense.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+    			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    			generator.setRootValueSeparator(null);
+    			
+    			while (expenses.hasNext()) {
+    				writer.writeValue(generator, expenses.next());
+    				generator.writeRaw('\n');
+    			}
+    		}
+    		finally {
+    			expenses.close();
+    		}
+    	};
+    }
+
+    // maps expense versions to and from strong ETag values
+    public static class VersionETag {
+    	
+    	public static String of(Expense expense) {
+    		return "\"" + (expense.getVersion() == null ? 0 : expense.getVersion()) + "\"";
+    	}
+    	
+    	// a weak ETag for a list of expenses that changes whenever an expense is added, removed or changed
+    	public static String of(Iterable<Expense> expenses) {
+    		return of(expenses, null);
+    	}
+    	
+    	// a weak ETag for a list of expenses and the count of every matching expense, or null if there is no count
+    	public static String of(Iterable<Expense> expenses, ExpenseCount count) {
+    		StringBuilder key = new StringBuilder();
+    		for (Expense expense : expenses) {
+    			key.append(expense.getId()).append(':').append(expense.getVersion() == null ? 0 : expense.getVersion()).append(';');
+    		}
+    		if (count != null) {
+    			key.append("count:").append(count.getCount()).append(count.isEstimated() ? "+" : "");
+    		}
+    		return "W/\"" + DigestUtils.md5DigestAsHex(key.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+    	}
+    	
+    	// whether an If-None-Match header lists the ETag, comparing weakly as a GET does
+    	public static boolean matches(String ifNoneMatch, String etag) {
+    		if (ifNoneMatch == null) {
+    			return false;
+    		}
+    		
+    		for (String tag : ifNoneMatch.split(",")) {
+    			tag = tag.trim();
+    			if (tag.equals("*") || weak(tag).equals(weak(etag))) {
+    				return true;
+    			}
+    		}
+    		return false;
+    	}
+    	
+    	private static String weak(String tag) {
+    		return tag.startsWith("W/") ? tag.substring(2) : tag;
+    	}
+    	
+    	// the version an If-Match header asks for, or null if any version will do
+    	public static Long parse(String ifMatch) throws VersionConflictException {
+    		if (ifMatch == null || ifMatch.trim().equals("*")) {
+    			return null;
+    		}
+    		
+    		String tag = ifMatch.trim();
+    		if (tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\"")) {
+    			tag = tag.substring(1, tag.length() - 1);
+    		}
+    		
+    		try {
+    			return Long.valueOf(tag);
+    		}
+    		catch (NumberFormatException e) {
+    			// not one of our ETags, so it can never match
+    			throw new VersionConflictException("If-Match [" + ifMatch + "] does not match the expense version.");
+    		}
+    	}
+    }
+
     // a trivial expense input data validator.  more elaborate validation occurs in the service layer.
     public static class ControllerExpenseValidator {
 
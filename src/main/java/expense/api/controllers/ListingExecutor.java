@@ -0,0 +1,68 @@
+package expense.api.controllers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+// The threads expense listings run on, apart from the container threads that serve every other request.  Both the number of
+// threads and the number of listings waiting for one are bounded, and a listing that finds the queue full is rejected
+// straight away rather than left to wait.  Thread and queue usage are published to the actuator metrics endpoint.
+@Component
+public class ListingExecutor implements Executor, PublicMetrics {
+
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejected = new AtomicLong();
+
+	@Autowired
+	public ListingExecutor(@Value("${expense.listing.threads:8}") int threads, @Value("${expense.listing.queue-size:100}") int queueSize) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "expense-listing-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), threadFactory, 
+				(runnable, pool) -> {
+					rejected.incrementAndGet();
+					throw new RejectedExecutionException("Too many expense listings are in progress.");
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		executor.execute(command);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("executor.listing.threads", executor.getPoolSize()));
+		metrics.add(new Metric<>("executor.listing.active", executor.getActiveCount()));
+		metrics.add(new Metric<>("executor.listing.queued", executor.getQueue().size()));
+		metrics.add(new Metric<>("executor.listing.completed", executor.getCompletedTaskCount()));
+		metrics.add(new Metric<>("executor.listing.rejected", rejected.get()));
+		return metrics;
+	}
+}
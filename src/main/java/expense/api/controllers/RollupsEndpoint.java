@@ -0,0 +1,67 @@
+package expense.api.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.boot.actuate.endpoint.mvc.EndpointMvcAdapter;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import expense.api.msgs.ResponseErr;
+import expense.api.services.ExpenseRollups;
+
+// The actuator endpoint for the expense rollups.  GET /rollups tells whether summaries are read from the rollup and whether
+// a rebuild is running, and POST /rollups/rebuild starts a rebuild in the background without a restart.
+@Component
+public class RollupsEndpoint extends EndpointMvcAdapter {
+
+	private final ExpenseRollups rollups;
+
+	@Autowired
+	public RollupsEndpoint(ExpenseRollups rollups) {
+		super(new Status(rollups));
+		this.rollups = rollups;
+	}
+
+	@RequestMapping(value="/rebuild", method=RequestMethod.POST)
+	@ResponseBody
+	public Object rebuild() {
+		if (!rollups.isEnabled()) {
+			return new ResponseEntity<>(new ResponseErr("Expense rollups are not kept by this expense store."), HttpStatus.NOT_FOUND);
+		}
+
+		if (!rollups.startRebuild()) {
+			return new ResponseEntity<>(new ResponseErr("Expense rollups are already being rebuilt."), HttpStatus.CONFLICT);
+		}
+
+		return new ResponseEntity<>(Status.of(rollups), HttpStatus.ACCEPTED);
+	}
+
+	private static class Status extends AbstractEndpoint<Map<String,Object>> {
+		private final ExpenseRollups rollups;
+
+		private Status(ExpenseRollups rollups) {
+			super("rollups");
+			this.rollups = rollups;
+		}
+
+		private static Map<String,Object> of(ExpenseRollups rollups) {
+			Map<String,Object> status = new LinkedHashMap<>();
+			status.put("enabled", rollups.isEnabled());
+			status.put("ready", rollups.isReady());
+			status.put("rebuilding", rollups.isRebuilding());
+			return status;
+		}
+
+		@Override
+		public Map<String,Object> invoke() {
+			return of(rollups);
+		}
+	}
+}
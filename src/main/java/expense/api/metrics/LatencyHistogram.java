@@ -0,0 +1,210 @@
+package expense.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free latency histogram in the style of HdrHistogram.  Latencies are counted in buckets that widen as latencies grow:
+// one per microsecond below 128us, then 64 for each doubling.  Any percentile is then reported to within about 1.6%, using a
+// fixed 16KB of counters however many latencies are recorded.  Recording is a few atomic increments, with no locks or
+// allocation.
+//
+// Latencies are counted both since startup and by minute.  As HdrHistogram's Recorder swaps an active histogram for an
+// inactive one, two sets of counters take turns: one counts the current minute while the other holds the minute before,
+// which is what lastMinute() reports.  The rate is also over the last minute, though it slides by the second.
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 128;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int HALF_BITS = Integer.numberOfTrailingZeros(HALF);
+
+	// latencies are capped at about 19 hours
+	private static final long MAX_MICROS = (1L << 36) - 1;
+	private static final int BUCKETS = index(MAX_MICROS) + 1;
+
+	private static final Counts NONE = new Counts();
+
+	private final Counts total = new Counts();
+
+	// the counts of the current and previous minutes, by whether the minute is even or odd
+	private final Counts[] minutes = { new Counts(), new Counts() };
+
+	// the calls in each of the last 60 seconds, by second of the minute, and the second each count is for
+	private final AtomicLongArray secondCounts = new AtomicLongArray(60);
+	private final AtomicLongArray seconds = new AtomicLongArray(60);
+
+	public void record(long nanos, boolean error) {
+		record(nanos, error, System.currentTimeMillis() / 1000);
+	}
+
+	void record(long nanos, boolean error, long second) {
+		long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+
+		total.record(micros, error);
+		minute(second / 60).record(micros, error);
+
+		// the first call in a new second takes over the slot of the second a minute before.  a call racing it for the slot
+		// may go uncounted, which the rate can afford.
+		int slot = (int) (second % 60);
+		long stamp = seconds.get(slot);
+		if (stamp != second && seconds.compareAndSet(slot, stamp, second)) {
+			secondCounts.set(slot, 0);
+		}
+		secondCounts.incrementAndGet(slot);
+	}
+
+	// the counts for a minute.  the first call in a new minute takes over the counts of the minute two before and clears
+	// them, and as with the rate, a call racing it may go uncounted.
+	private Counts minute(long minute) {
+		Counts counts = minutes[(int) (minute & 1)];
+		long stamp = counts.minute.get();
+		if (stamp != minute && counts.minute.compareAndSet(stamp, minute)) {
+			counts.clear();
+		}
+		return counts;
+	}
+
+	public long count() {
+		return total.count();
+	}
+
+	public long errors() {
+		return total.errors();
+	}
+
+	public double meanMillis() {
+		return total.meanMillis();
+	}
+
+	public double maxMillis() {
+		return total.maxMillis();
+	}
+
+	// the latencies under which each of the given percents of calls since startup completed, in milliseconds
+	public double[] percentilesMillis(double... percents) {
+		return total.percentilesMillis(percents);
+	}
+
+	// the latencies of the last full minute
+	public Counts lastMinute() {
+		return lastMinute(System.currentTimeMillis() / 1000);
+	}
+
+	Counts lastMinute(long now) {
+		long minute = now / 60 - 1;
+		Counts counts = minutes[(int) (minute & 1)];
+		return counts.minute.get() == minute ? counts : NONE;
+	}
+
+	// calls per second over the last full minute
+	public double rate() {
+		return rate(System.currentTimeMillis() / 1000);
+	}
+
+	double rate(long now) {
+		long total = 0;
+		for (int slot = 0; slot < 60; slot++) {
+			long stamp = seconds.get(slot);
+			if (stamp < now && stamp >= now - 60) {
+				total += secondCounts.get(slot);
+			}
+		}
+		return total / 60.0;
+	}
+
+	// the counts of latencies over a span of time
+	public static class Counts {
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder totalMicros = new LongAdder();
+		private final AtomicLong maxMicros = new AtomicLong();
+
+		// the minute counted, for the counts of a minute
+		private final AtomicLong minute = new AtomicLong(-1);
+
+		private void record(long micros, boolean error) {
+			counts.incrementAndGet(index(micros));
+			count.increment();
+			totalMicros.add(micros);
+			maxMicros.accumulateAndGet(micros, Math::max);
+			if (error) {
+				errors.increment();
+			}
+		}
+
+		private void clear() {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts.set(i, 0);
+			}
+			count.reset();
+			errors.reset();
+			totalMicros.reset();
+			maxMicros.set(0);
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long errors() {
+			return errors.sum();
+		}
+
+		public double meanMillis() {
+			long n = count.sum();
+			return n == 0 ? 0 : totalMicros.sum() / 1000.0 / n;
+		}
+
+		public double maxMillis() {
+			return maxMicros.get() / 1000.0;
+		}
+
+		// the latencies under which each of the given percents of calls completed, in milliseconds.  each is the top of the
+		// bucket it falls in, but never more than the longest latency recorded.
+		public double[] percentilesMillis(double... percents) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+
+			double[] latencies = new double[percents.length];
+			if (total == 0) {
+				return latencies;
+			}
+
+			long max = maxMicros.get();
+			for (int p = 0; p < percents.length; p++) {
+				long rank = Math.max(1, (long) Math.ceil(percents[p] / 100 * total));
+				long seen = 0;
+				int i = 0;
+				while (i < BUCKETS - 1 && (seen += snapshot[i]) < rank) {
+					i++;
+				}
+				latencies[p] = Math.min(highest(i), max) / 1000.0;
+			}
+			return latencies;
+		}
+	}
+
+	// the bucket a latency is counted in
+	static int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - HALF_BITS;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) ((micros >>> shift) - HALF);
+	}
+
+	// the highest latency counted in a bucket
+	static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
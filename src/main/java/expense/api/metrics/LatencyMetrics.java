@@ -0,0 +1,165 @@
+package expense.api.metrics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import expense.api.msgs.ResponseErr;
+import expense.api.msgs.StreamedMsg;
+import expense.api.services.ExpenseService;
+
+// Latency histograms and error counts for every expense endpoint and expense service method, published to the actuator
+// metrics endpoint.  Controllers and the expense service are wrapped in timing proxies as they are created, so no method has
+// to time itself.  A call is an error when it throws, or when an endpoint answers with an error message.  An endpoint that
+// answers asynchronously is timed until its answer is ready, and one that streams its body is timed until the body is
+// written.
+//
+// Each endpoint and method publishes endpoint.<method>.* or service.<method>.*: count, errors, and mean, p50, p90, p99, p999
+// and max latency in milliseconds since startup, the same again for the last full minute under <name>.minute.*, and rate in
+// calls per second over the last minute.  Overloads of a method share its metrics.
+@Component
+public class LatencyMetrics implements BeanPostProcessor, PublicMetrics {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	private final ConcurrentHashMap<String,LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+	}
+
+	@Override
+	public Object postProcessBeforeInitialization(Object bean, String beanName) {
+		return bean;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (bean instanceof ExpenseService) {
+			ProxyFactory proxy = new ProxyFactory(bean);
+			proxy.addAdvice(new Timing("service"));
+			return proxy.getProxy();
+		}
+
+		if (AnnotationUtils.findAnnotation(bean.getClass(), RestController.class) != null && bean.getClass().getName().startsWith("expense.api.")) {
+			// controllers implement no interface, so they are proxied by subclass.  only their request mappings are timed.
+			ProxyFactory proxy = new ProxyFactory(bean);
+			proxy.setProxyTargetClass(true);
+			proxy.addAdvisor(new DefaultPointcutAdvisor(AnnotationMatchingPointcut.forMethodAnnotation(RequestMapping.class), new Timing("endpoint")));
+			return proxy.getProxy();
+		}
+
+		return bean;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		for (Map.Entry<String,LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			String name = entry.getKey();
+			LatencyHistogram histogram = entry.getValue();
+
+			metrics.add(new Metric<>(name + ".count", histogram.count()));
+			metrics.add(new Metric<>(name + ".errors", histogram.errors()));
+			metrics.add(new Metric<>(name + ".rate", histogram.rate()));
+			metrics.add(new Metric<>(name + ".mean", histogram.meanMillis()));
+			double[] percentiles = histogram.percentilesMillis(PERCENTILES);
+			for (int i = 0; i < percentiles.length; i++) {
+				metrics.add(new Metric<>(name + "." + PERCENTILE_NAMES[i], percentiles[i]));
+			}
+			metrics.add(new Metric<>(name + ".max", histogram.maxMillis()));
+
+			add(metrics, name + ".minute", histogram.lastMinute());
+		}
+		return metrics;
+	}
+
+	private static void add(Collection<Metric<?>> metrics, String name, LatencyHistogram.Counts counts) {
+		metrics.add(new Metric<>(name + ".count", counts.count()));
+		metrics.add(new Metric<>(name + ".errors", counts.errors()));
+		metrics.add(new Metric<>(name + ".mean", counts.meanMillis()));
+		double[] percentiles = counts.percentilesMillis(PERCENTILES);
+		for (int i = 0; i < percentiles.length; i++) {
+			metrics.add(new Metric<>(name + "." + PERCENTILE_NAMES[i], percentiles[i]));
+		}
+		metrics.add(new Metric<>(name + ".max", counts.maxMillis()));
+	}
+
+	// records the latency of each call in the histogram for its method
+	private class Timing implements MethodInterceptor {
+		private final String prefix;
+		private final ConcurrentHashMap<Method,LatencyHistogram> byMethod = new ConcurrentHashMap<>();
+
+		private Timing(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			LatencyHistogram histogram = byMethod.computeIfAbsent(invocation.getMethod(), m -> histogram(prefix + "." + m.getName()));
+			long start = System.nanoTime();
+
+			Object result;
+			try {
+				result = invocation.proceed();
+			}
+			catch (Throwable t) {
+				histogram.record(System.nanoTime() - start, true);
+				throw t;
+			}
+
+			if (result instanceof CompletionStage) {
+				((CompletionStage<?>) result).whenComplete((value, failure) ->
+						histogram.record(System.nanoTime() - start, failure != null || isError(value)));
+			}
+			else if (result instanceof StreamingResponseBody) {
+				StreamingResponseBody body = (StreamingResponseBody) result;
+				return (StreamingResponseBody) out -> {
+					boolean written = false;
+					try {
+						body.writeTo(out);
+						written = true;
+					}
+					finally {
+						histogram.record(System.nanoTime() - start, !written);
+					}
+				};
+			}
+			else {
+				histogram.record(System.nanoTime() - start, isError(result));
+			}
+			return result;
+		}
+
+		// an answer is an error when it is an error message, or an entity or streamed body carrying one
+		private boolean isError(Object answer) {
+			if (answer instanceof ResponseEntity) {
+				answer = ((ResponseEntity<?>) answer).getBody();
+			}
+			if (answer instanceof StreamedMsg) {
+				answer = ((StreamedMsg) answer).getMsg();
+			}
+			return answer instanceof ResponseErr;
+		}
+	}
+}
@@ -4,10 +4,13 @@ import java.math.BigDecimal;
 import java.util.Date;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import static com.fasterxml.jackson.annotation.JsonInclude.Include;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 @JsonInclude(Include.NON_NULL)
 public class Expense {
@@ -16,10 +19,22 @@ public class Expense {
 	private String id;
 	private String merchant;
 	private BigDecimal total;
+	// the total as a number.  totals are stored as strings, which can't be compared as amounts, so range filters on the
+	// total use this instead.  it follows the total and is never part of the JSON.
+	@JsonIgnore
+	private Double totalValue;
 	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss'Z'", timezone="UTC")
 	private Date datetime;
 	private String comments;
 	private String status;
+	// incremented on every change.  clients can read it but never set it.
+	@Version
+	@JsonProperty(access=JsonProperty.Access.READ_ONLY)
+	private Long version;
+	// the time of the last change.  clients can read it but never set it.
+	@JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss'Z'", timezone="UTC")
+	@JsonProperty(access=JsonProperty.Access.READ_ONLY)
+	private Date lastModified;
 
 	public String getId() {
 		return id;
@@ -43,6 +58,15 @@ public class Expense {
 
 	public void setTotal(BigDecimal total) {
 		this.total = total;
+		this.totalValue = total == null ? null : total.doubleValue();
+	}
+
+	public Double getTotalValue() {
+		return totalValue;
+	}
+
+	public void setTotalValue(Double totalValue) {
+		this.totalValue = totalValue;
 	}
 
 	public Date getDatetime() {
@@ -69,4 +93,20 @@ public class Expense {
 		this.status = status;
 	}
 
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public Date getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(Date lastModified) {
+		this.lastModified = lastModified;
+	}
+
 }
@@ -0,0 +1,59 @@
+package expense.api.model;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import java.math.BigDecimal;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// the sum and count of the expenses in one group of a spend summary.  only the properties the expenses were grouped by are set.
+@JsonInclude(Include.NON_NULL)
+public class ExpenseSummary {
+
+	private String merchant;
+	private String status;
+	// the calendar month in UTC, as yyyy-MM
+	private String month;
+	private BigDecimal total;
+	private long count;
+
+	public String getMerchant() {
+		return merchant;
+	}
+
+	public void setMerchant(String merchant) {
+		this.merchant = merchant;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getMonth() {
+		return month;
+	}
+
+	public void setMonth(String month) {
+		this.month = month;
+	}
+
+	public BigDecimal getTotal() {
+		return total;
+	}
+
+	public void setTotal(BigDecimal total) {
+		this.total = total;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+}
@@ -0,0 +1,21 @@
+package expense.api.msgs;
+
+import java.util.List;
+
+// a service response message containing one id or error message for each expense in a batch request.
+public class ResponseBatch extends ResponseMsg {
+
+	private List<ResponseMsg> results;
+
+	public ResponseBatch(List<ResponseMsg> results) {
+		this.results = results;
+	}
+
+	public List<ResponseMsg> getResults() {
+		return results;
+	}
+
+	public void setResults(List<ResponseMsg> results) {
+		this.results = results;
+	}
+}
@@ -1,16 +1,38 @@
 package expense.api.msgs;
 
+import static com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
 import expense.api.model.Expense;
 
-// a service response message containing a list of expenses.
+// a service response message containing a list of expenses.  the contents are written last, one expense at a time, so the
+// paging properties reach the client first and the list is never held as a second, serialized copy.  listings are written
+// through StreamedMsg, which keeps this order.
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({"next", "count", "countEstimated", "contents"})
 public class ResponseList extends ResponseMsg {
 
 	public Iterable<Expense> contents;
 
+	// the cursor of the following page when listing with keyset paging
+	private String next;
+
+	// the number of expenses matching the filters across all pages, when requested
+	private Long count;
+	// whether the count stopped at a limit, meaning there are at least that many expenses
+	private Boolean countEstimated;
+
 	public ResponseList(Iterable<Expense> contents) {
 		this.contents = contents;
 	}
-	
+
+	public ResponseList(Iterable<Expense> contents, String next) {
+		this.contents = contents;
+		this.next = next;
+	}
+
 	public Iterable<Expense> getContents() {
 		return contents;
 	}
@@ -18,4 +40,28 @@ public class ResponseList extends ResponseMsg {
 	public void setContents(Iterable<Expense> contents) {
 		this.contents = contents;
 	}
+
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+	public Long getCount() {
+		return count;
+	}
+
+	public void setCount(Long count) {
+		this.count = count;
+	}
+
+	public Boolean getCountEstimated() {
+		return countEstimated;
+	}
+
+	public void setCountEstimated(Boolean countEstimated) {
+		this.countEstimated = countEstimated;
+	}
 }
@@ -0,0 +1,21 @@
+package expense.api.msgs;
+
+import java.util.List;
+
+// a service response message containing suggested merchant names.
+public class ResponseSuggestions extends ResponseMsg {
+
+	private List<String> contents;
+
+	public ResponseSuggestions(List<String> contents) {
+		this.contents = contents;
+	}
+
+	public List<String> getContents() {
+		return contents;
+	}
+
+	public void setContents(List<String> contents) {
+		this.contents = contents;
+	}
+}
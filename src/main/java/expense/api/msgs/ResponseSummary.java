@@ -0,0 +1,23 @@
+package expense.api.msgs;
+
+import java.util.List;
+
+import expense.api.model.ExpenseSummary;
+
+// a service response message containing the groups of a spend summary.
+public class ResponseSummary extends ResponseMsg {
+
+	private List<ExpenseSummary> contents;
+
+	public ResponseSummary(List<ExpenseSummary> contents) {
+		this.contents = contents;
+	}
+
+	public List<ExpenseSummary> getContents() {
+		return contents;
+	}
+
+	public void setContents(List<ExpenseSummary> contents) {
+		this.contents = contents;
+	}
+}
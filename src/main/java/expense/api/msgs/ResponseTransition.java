@@ -0,0 +1,36 @@
+package expense.api.msgs;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// a service response message containing the outcome of a bulk status transition.
+@JsonInclude(Include.NON_NULL)
+public class ResponseTransition extends ResponseMsg {
+
+	private long updated;
+	private List<String> skipped;
+
+	public ResponseTransition(long updated, List<String> skipped) {
+		this.updated = updated;
+		this.skipped = skipped;
+	}
+
+	public long getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(long updated) {
+		this.updated = updated;
+	}
+
+	public List<String> getSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(List<String> skipped) {
+		this.skipped = skipped;
+	}
+}
@@ -0,0 +1,75 @@
+package expense.api.msgs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import expense.api.model.Expense;
+
+// a service response message written to the response as it is serialized.  a list is written the way ResponseList
+// serializes, but its expenses are written one at a time and flushed every FLUSH_EVERY expenses, so the first expenses reach
+// the client before the last one is serialized.
+public class StreamedMsg implements StreamingResponseBody {
+
+	static final int FLUSH_EVERY = 100;
+
+	private final ResponseMsg msg;
+	private final ObjectMapper objectMapper;
+
+	public StreamedMsg(ResponseMsg msg, ObjectMapper objectMapper) {
+		this.msg = msg;
+		this.objectMapper = objectMapper;
+	}
+
+	public ResponseMsg getMsg() {
+		return msg;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+			if (msg instanceof ResponseList) {
+				writeList(generator, (ResponseList) msg);
+			}
+			else {
+				objectMapper.writeValue(generator, msg);
+			}
+		}
+	}
+
+	// the same properties in the same order as ResponseList, leaving out those that are null
+	private void writeList(JsonGenerator generator, ResponseList list) throws IOException {
+		generator.writeStartObject();
+		if (list.getNext() != null) {
+			generator.writeStringField("next", list.getNext());
+		}
+		if (list.getCount() != null) {
+			generator.writeNumberField("count", list.getCount());
+		}
+		if (list.getCountEstimated() != null) {
+			generator.writeBooleanField("countEstimated", list.getCountEstimated());
+		}
+
+		if (list.getContents() != null) {
+			ObjectWriter writer = objectMapper.writerFor(Expense.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+			generator.writeArrayFieldStart("contents");
+			int written = 0;
+			for (Expense expense : list.getContents()) {
+				writer.writeValue(generator, expense);
+				if (++written % FLUSH_EVERY == 0) {
+					generator.flush();
+				}
+			}
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+}
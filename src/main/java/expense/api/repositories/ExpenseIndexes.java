@@ -0,0 +1,116 @@
+package expense.api.repositories;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.TextIndexDefinition.TextIndexDefinitionBuilder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+// The indexes the expense collection should have, one for each way expenses are filtered and sorted.  Each index is named
+// the way MongoDB names an index by default, so an index created by hand with the same keys is recognised as the same index.
+public class ExpenseIndexes {
+
+	public static final List<IndexDefinition> DESIRED = Collections.unmodifiableList(Arrays.<IndexDefinition>asList(
+		// the status filter, and status transitions selected by filter
+		new Index().on("status", Direction.ASC).on("datetime", Direction.ASC).named("status_1_datetime_1").background(),
+		// the merchant filter
+		new Index().on("merchant", Direction.ASC).on("datetime", Direction.ASC).named("merchant_1_datetime_1").background(),
+		// datetime filters and ranges, and the datetime and id order of cursor paging
+		new Index().on("datetime", Direction.ASC).on("_id", Direction.ASC).named("datetime_1__id_1").background(),
+		// total ranges
+		new Index().on("totalValue", Direction.ASC).named("totalValue_1").background(),
+		// text search.  a collection can only have one text index, so it covers every searchable field.
+		background(new TextIndexDefinitionBuilder().onField("merchant").onField("comments").named("merchant_text_comments_text").build())
+	));
+
+	private MongoOperations mongoOperations;
+
+	public ExpenseIndexes(MongoOperations mongoOperations) {
+		this.mongoOperations = mongoOperations;
+	}
+
+	// create any desired index the collection doesn't have yet.  existing indexes are left alone.
+	public List<String> ensure() {
+		IndexOperations indexOps = mongoOperations.indexOps(Expense.class);
+
+		List<String> existing = names(indexOps.getIndexInfo());
+		List<String> created = new ArrayList<>();
+		for (IndexDefinition index : DESIRED) {
+			String name = name(index);
+			if (!existing.contains(name)) {
+				indexOps.ensureIndex(index);
+				created.add(name);
+			}
+		}
+		return created;
+	}
+
+	// the desired and existing indexes by name, along with the desired indexes that are missing and the existing indexes that
+	// aren't desired.  the _id index is always there and isn't reported.
+	public Map<String,List<String>> report() {
+		List<String> existing = names(mongoOperations.indexOps(Expense.class).getIndexInfo());
+		existing.remove("_id_");
+
+		List<String> desired = new ArrayList<>();
+		for (IndexDefinition index : DESIRED) {
+			desired.add(name(index));
+		}
+
+		List<String> missing = new ArrayList<>(desired);
+		missing.removeAll(existing);
+
+		List<String> undesired = new ArrayList<>(existing);
+		undesired.removeAll(desired);
+
+		Map<String,List<String>> report = new LinkedHashMap<>();
+		report.put("desired", desired);
+		report.put("existing", existing);
+		report.put("missing", missing);
+		report.put("undesired", undesired);
+		return report;
+	}
+
+	private static List<String> names(List<IndexInfo> indexes) {
+		List<String> names = new ArrayList<>();
+		for (IndexInfo index : indexes) {
+			names.add(index.getName());
+		}
+		return names;
+	}
+
+	private static String name(IndexDefinition index) {
+		return (String) index.getIndexOptions().get("name");
+	}
+
+	// an index built in the background like the others, for index definitions with no background option of their own.  a
+	// foreground build would block the database for as long as it takes to index every expense.
+	private static IndexDefinition background(IndexDefinition index) {
+		return new IndexDefinition() {
+			@Override
+			public DBObject getIndexKeys() {
+				return index.getIndexKeys();
+			}
+
+			@Override
+			public DBObject getIndexOptions() {
+				DBObject options = new BasicDBObject(index.getIndexOptions().toMap());
+				options.put("background", true);
+				return options;
+			}
+		};
+	}
+}
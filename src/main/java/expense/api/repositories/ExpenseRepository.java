@@ -4,5 +4,5 @@ import org.springframework.data.repository.PagingAndSortingRepository;
 
 import expense.api.model.Expense;
 
-public interface ExpenseRepository extends PagingAndSortingRepository<Expense, String> {
+public interface ExpenseRepository extends PagingAndSortingRepository<Expense, String>, ExpenseRepositoryCustom {
 }
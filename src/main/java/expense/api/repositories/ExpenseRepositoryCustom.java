@@ -0,0 +1,26 @@
+package expense.api.repositories;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import expense.api.model.Expense;
+
+// The expense writes and counts that spring data doesn't derive, because they report results only the driver gives.  Spring
+// data adds ExpenseRepositoryImpl's implementation of them to ExpenseRepository, and InMemoryExpenseRepository implements
+// them itself.  Queries and updates are the unmapped ones the expense service builds.
+public interface ExpenseRepositoryCustom {
+
+	// insert expenses that already have ids without stopping at a failure, returning the error of each expense that failed
+	// by its position in the list
+	Map<Integer,String> insertAll(List<Expense> expenses);
+
+	// update every matching expense, returning how many were updated
+	long updateAll(Query query, Update update);
+
+	// count the matching expenses, stopping at the limit, or null if counting took longer than the time limit.  a limit of 0
+	// is no limit.
+	Long countUpTo(Query query, int limit, int maxTimeMillis);
+}
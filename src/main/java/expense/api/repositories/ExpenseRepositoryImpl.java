@@ -0,0 +1,88 @@
+package expense.api.repositories;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+// The custom expense repository operations against MongoDB.  Spring data finds this class by its name.
+public class ExpenseRepositoryImpl implements ExpenseRepositoryCustom {
+
+	// the error code of a command that ran past its maxTimeMS
+	private static final int EXCEEDED_TIME_LIMIT = 50;
+
+	private final MongoTemplate mongoTemplate;
+
+	@Autowired
+	public ExpenseRepositoryImpl(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	// a single unordered bulk insert, which carries on past failures and reports each one by its position in the bulk
+	@Override
+	public Map<Integer,String> insertAll(List<Expense> expenses) {
+		List<DBObject> documents = new ArrayList<>(expenses.size());
+		for (Expense expense : expenses) {
+			DBObject document = new BasicDBObject();
+			mongoTemplate.getConverter().write(expense, document);
+			documents.add(document);
+		}
+
+		Map<Integer,String> errors = new HashMap<>();
+		mongoTemplate.execute(Expense.class, collection -> {
+			BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+			for (DBObject document : documents) {
+				bulk.insert(document);
+			}
+
+			try {
+				bulk.execute();
+			} catch (BulkWriteException e) {
+				for (BulkWriteError error : e.getWriteErrors()) {
+					errors.put(error.getIndex(), error.getMessage());
+				}
+			}
+			return null;
+		});
+		return errors;
+	}
+
+	@Override
+	public long updateAll(Query query, Update update) {
+		return mongoTemplate.updateMulti(query, update, Expense.class).getN();
+	}
+
+	// a count command takes a limit and a time limit, which a count through the template does not
+	@Override
+	public Long countUpTo(Query query, int limit, int maxTimeMillis) {
+		DBObject mappedQuery = new QueryMapper(mongoTemplate.getConverter()).getMappedObject(query.getQueryObject(),
+				mongoTemplate.getConverter().getMappingContext().getPersistentEntity(Expense.class));
+		DBObject command = new BasicDBObject("count", mongoTemplate.getCollectionName(Expense.class))
+				.append("query", mappedQuery)
+				.append("limit", limit)
+				.append("maxTimeMS", maxTimeMillis);
+
+		CommandResult result = mongoTemplate.executeCommand(command);
+		if (!result.ok() && result.getInt("code", 0) == EXCEEDED_TIME_LIMIT) {
+			return null;
+		}
+		result.throwOnError();
+
+		return ((Number) result.get("n")).longValue();
+	}
+}
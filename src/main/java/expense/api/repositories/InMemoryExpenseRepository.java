@@ -0,0 +1,948 @@
+package expense.api.repositories;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+// An ExpenseRepository that keeps expenses in memory, for tests and for running without a database.  Expenses are held by id
+// in a concurrent hash map alongside sorted secondary indexes on status, merchant and datetime.  A query reads only the
+// expenses yielded by the most selective index that applies to it, so filtered listings never scan every expense.
+//
+// Besides the repository methods, it answers the unmapped query documents of spring data queries (see InMemoryMongoTemplate)
+// using the operators the expense service builds: equality, $gt, $gte, $lt, $lte, $ne, $in, $nin, $exists, $and, $or and
+// $text.  Unsorted results come in datetime order rather than the order the expenses were saved.
+//
+// Writes hold a write lock while an expense and its index entries change, and queries hold a read lock, so a query sees a
+// write whole or not at all.  A stream reads a batch of expenses at a time, each batch seeing whole writes; like a database
+// cursor, it may miss or meet again an expense that moved along its index between batches.  Expenses are copied in and out,
+// so callers never share stored ones.
+public class InMemoryExpenseRepository implements ExpenseRepository {
+
+	// sorts after every id
+	private static final String MAX_ID = String.valueOf(Character.MAX_VALUE);
+
+	// how many expenses a stream reads at a time
+	private static final int STREAM_BATCH = 1000;
+
+	// the order that index entries and unsorted results are in
+	private static final Comparator<Expense> DATETIME_ORDER = Comparator
+			.comparing(Expense::getDatetime, Comparator.nullsFirst(Comparator.<Date>naturalOrder()))
+			.thenComparing(Expense::getId);
+
+	private final ConcurrentHashMap<String,Expense> expenses = new ConcurrentHashMap<>();
+
+	private final Index byStatus = new Index(Expense::getStatus);
+	private final Index byMerchant = new Index(Expense::getMerchant);
+	private final Index byDatetime = new Index(expense -> null);
+	private final List<Index> indexes = Arrays.asList(byStatus, byMerchant, byDatetime);
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// the version is checked and incremented the way spring data does for a versioned entity: an expense without a version is
+	// inserted, and one with a version only replaces the saved expense at that version
+	@Override
+	public <S extends Expense> S save(S expense) {
+		lock.writeLock().lock();
+		try {
+			if (expense.getId() == null) {
+				expense.setId(ObjectId.get().toString());
+			}
+
+			Expense saved = expenses.get(expense.getId());
+			if (expense.getVersion() == null) {
+				if (saved != null) {
+					throw new DuplicateKeyException("Expense [" + expense.getId() + "] already exists.");
+				}
+				expense.setVersion(0L);
+			}
+			else {
+				if (saved == null || !expense.getVersion().equals(saved.getVersion())) {
+					throw new OptimisticLockingFailureException("Expense [" + expense.getId() + "] has been changed since version [" + expense.getVersion() + "].");
+				}
+				expense.setVersion(expense.getVersion() + 1);
+			}
+
+			store(saved, copy(expense));
+			return expense;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public <S extends Expense> Iterable<S> save(Iterable<S> entities) {
+		List<S> saved = new ArrayList<>();
+		for (S expense : entities) {
+			saved.add(save(expense));
+		}
+		return saved;
+	}
+
+	@Override
+	public Expense findOne(String id) {
+		Expense expense = expenses.get(id);
+		return expense == null ? null : copy(expense);
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return expenses.containsKey(id);
+	}
+
+	@Override
+	public Iterable<Expense> findAll() {
+		return find(new BasicDBObject(), null, null, 0, 0);
+	}
+
+	@Override
+	public Iterable<Expense> findAll(Iterable<String> ids) {
+		List<String> in = new ArrayList<>();
+		ids.forEach(in::add);
+		return find(new BasicDBObject("id", new BasicDBObject("$in", in)), null, null, 0, 0);
+	}
+
+	@Override
+	public Iterable<Expense> findAll(Sort sort) {
+		return find(new BasicDBObject(), null, sortObject(sort), 0, 0);
+	}
+
+	@Override
+	public Page<Expense> findAll(Pageable pageable) {
+		List<Expense> content = find(new BasicDBObject(), null, sortObject(pageable.getSort()), pageable.getOffset(), pageable.getPageSize());
+		return new PageImpl<>(content, pageable, count());
+	}
+
+	@Override
+	public long count() {
+		return expenses.size();
+	}
+
+	@Override
+	public void delete(String id) {
+		lock.writeLock().lock();
+		try {
+			Expense saved = expenses.get(id);
+			if (saved != null) {
+				store(saved, null);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void delete(Expense expense) {
+		delete(expense.getId());
+	}
+
+	@Override
+	public void delete(Iterable<? extends Expense> entities) {
+		for (Expense expense : entities) {
+			delete(expense.getId());
+		}
+	}
+
+	@Override
+	public void deleteAll() {
+		lock.writeLock().lock();
+		try {
+			expenses.clear();
+			for (Index index : indexes) {
+				index.keys.clear();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// ids are given, and an expense whose id is already saved is refused
+	@Override
+	public Map<Integer,String> insertAll(List<Expense> inserted) {
+		Map<Integer,String> errors = new HashMap<>();
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < inserted.size(); i++) {
+				Expense expense = inserted.get(i);
+				if (expenses.containsKey(expense.getId())) {
+					errors.put(i, "Expense [" + expense.getId() + "] already exists.");
+				}
+				else {
+					store(null, copy(expense));
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		return errors;
+	}
+
+	@Override
+	public long updateAll(Query query, Update update) {
+		return update(query.getQueryObject(), update.getUpdateObject(), true);
+	}
+
+	// counting is never timed out
+	@Override
+	public Long countUpTo(Query query, int limit, int maxTimeMillis) {
+		return count(query.getQueryObject(), limit);
+	}
+
+	// the matching expenses with only the given fields, sorted and paged.  null fields are every field, null sort is datetime
+	// order, and a limit of 0 is no limit.
+	public List<Expense> find(DBObject query, DBObject fields, DBObject sort, int skip, int limit) {
+		Comparator<Expense> order = comparator(sort, query);
+
+		List<Expense> found = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for (Key key : candidates(query, null)) {
+				Expense expense = expenses.get(key.id);
+				if (expense == null || !matches(expense, query)) {
+					continue;
+				}
+
+				// candidates already come in datetime order, so an unsorted page is complete as soon as it is full
+				if (order == null && skip > 0) {
+					skip--;
+					continue;
+				}
+				found.add(expense);
+				if (order == null && limit > 0 && found.size() == limit) {
+					break;
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		if (order != null) {
+			found.sort(order);
+			found = found.subList(Math.min(skip, found.size()), limit > 0 ? Math.min(skip + limit, found.size()) : found.size());
+		}
+
+		List<Expense> projected = new ArrayList<>(found.size());
+		for (Expense expense : found) {
+			projected.add(project(expense, fields));
+		}
+		return projected;
+	}
+
+	// the matching expenses with only the given fields, read lazily a batch at a time.  a sorted stream, or one of given ids,
+	// is read all at once.
+	public Iterator<Expense> stream(DBObject query, DBObject fields, DBObject sort) {
+		if (comparator(sort, query) != null || ids(query) != null) {
+			return find(query, fields, sort, 0, 0).iterator();
+		}
+
+		return new Iterator<Expense>() {
+			private Iterator<Expense> batch = Collections.emptyIterator();
+			private Key last;
+			private boolean exhausted;
+
+			@Override
+			public boolean hasNext() {
+				while (!batch.hasNext() && !exhausted) {
+					batch = nextBatch().iterator();
+				}
+				return batch.hasNext();
+			}
+
+			@Override
+			public Expense next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.next();
+			}
+
+			// the next matching expenses after the last candidate read
+			private List<Expense> nextBatch() {
+				List<Expense> found = new ArrayList<>();
+				lock.readLock().lock();
+				try {
+					for (Key key : candidates(query, last)) {
+						last = key;
+						Expense expense = expenses.get(key.id);
+						if (expense != null && matches(expense, query)) {
+							found.add(project(expense, fields));
+							if (found.size() == STREAM_BATCH) {
+								return found;
+							}
+						}
+					}
+					exhausted = true;
+					return found;
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+			}
+		};
+	}
+
+	public long count(DBObject query) {
+		return count(query, Long.MAX_VALUE);
+	}
+
+	// the number of matching expenses, counting no further than the limit
+	private long count(DBObject query, long limit) {
+		long count = 0;
+		lock.readLock().lock();
+		try {
+			for (Key key : candidates(query, null)) {
+				Expense expense = expenses.get(key.id);
+				if (expense != null && matches(expense, query) && ++count == limit) {
+					break;
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		return count;
+	}
+
+	// update the first matching expense, returning it with only the given fields as it was before the update, or null if none
+	// matched
+	public Expense findAndModify(DBObject query, DBObject fields, DBObject update) {
+		List<Expense> updated = modify(query, update, 1);
+		return updated.isEmpty() ? null : project(updated.get(0), fields);
+	}
+
+	// update the first or every matching expense, returning how many were updated
+	public int update(DBObject query, DBObject update, boolean multi) {
+		return modify(query, update, multi ? Integer.MAX_VALUE : 1).size();
+	}
+
+	// remove the first matching expense, returning it with only the given fields, or null if none matched
+	public Expense findAndRemove(DBObject query, DBObject fields) {
+		List<Expense> removed = remove(query, 1);
+		return removed.isEmpty() ? null : project(removed.get(0), fields);
+	}
+
+	// remove every matching expense, returning how many were removed
+	public int remove(DBObject query) {
+		return remove(query, Integer.MAX_VALUE).size();
+	}
+
+	private List<Expense> remove(DBObject query, int limit) {
+		lock.writeLock().lock();
+		try {
+			List<Expense> matched = matching(query, limit);
+			for (Expense saved : matched) {
+				store(saved, null);
+			}
+			return matched;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// the expenses as they were before the update
+	private List<Expense> modify(DBObject query, DBObject update, int limit) {
+		lock.writeLock().lock();
+		try {
+			// the matches are found before any is changed, so that an expense moved further along an index isn't met again
+			List<Expense> matched = matching(query, limit);
+			for (Expense saved : matched) {
+				Expense updated = copy(saved);
+				apply(updated, update);
+				store(saved, updated);
+			}
+			return matched;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private List<Expense> matching(DBObject query, int limit) {
+		List<Expense> matched = new ArrayList<>();
+		for (Key key : candidates(query, null)) {
+			Expense expense = expenses.get(key.id);
+			if (expense != null && matches(expense, query)) {
+				matched.add(expense);
+				if (matched.size() == limit) {
+					break;
+				}
+			}
+		}
+		return matched;
+	}
+
+	// replace a stored expense and its index entries, or remove them when there is no replacement.  stored expenses are never
+	// changed in place, so a found expense can be copied after the read lock is released.  must be called holding the write
+	// lock.
+	private void store(Expense saved, Expense updated) {
+		if (saved != null) {
+			for (Index index : indexes) {
+				index.remove(saved);
+			}
+			if (updated == null) {
+				expenses.remove(saved.getId());
+			}
+		}
+
+		if (updated != null) {
+			expenses.put(updated.getId(), updated);
+			for (Index index : indexes) {
+				index.add(updated);
+			}
+		}
+	}
+
+	// the index entries of the expenses that could match the query, in datetime order, after the given entry of the same
+	// index if there is one.  ids in the query are looked up directly, otherwise the merchant index is preferred as usually
+	// the most selective, then the status index, then the datetime index alone.  each is narrowed to the datetime range the
+	// query allows.
+	private Iterable<Key> candidates(DBObject query, Key after) {
+		Collection<?> ids = ids(query);
+		if (ids != null) {
+			List<Expense> found = new ArrayList<>();
+			for (Object id : new HashSet<>(ids)) {
+				Expense expense = id == null ? null : expenses.get(id.toString());
+				if (expense != null) {
+					found.add(expense);
+				}
+			}
+			found.sort(DATETIME_ORDER);
+
+			List<Key> ordered = new ArrayList<>(found.size());
+			for (Expense expense : found) {
+				ordered.add(Key.of(null, expense));
+			}
+			return ordered;
+		}
+
+		Range range = range(query);
+
+		Object merchant = equality(query, "merchant");
+		if (merchant instanceof String) {
+			return byMerchant.keys((String) merchant, range, after);
+		}
+
+		Object status = equality(query, "status");
+		if (status instanceof String) {
+			return byStatus.keys((String) status, range, after);
+		}
+
+		return byDatetime.keys(null, range, after);
+	}
+
+	// the ids the query is confined to, or null if it isn't
+	private static Collection<?> ids(DBObject query) {
+		for (Object condition : conditions(query, "id")) {
+			if (!isOperators(condition)) {
+				return Arrays.asList(condition);
+			}
+			Object in = ((DBObject) condition).get("$in");
+			if (in instanceof Collection) {
+				return (Collection<?>) in;
+			}
+		}
+		return null;
+	}
+
+	// a value the field must equal, or null if there isn't one
+	private static Object equality(DBObject query, String field) {
+		for (Object condition : conditions(query, field)) {
+			if (condition != null && !isOperators(condition)) {
+				return condition;
+			}
+		}
+		return null;
+	}
+
+	// the conditions on a field that every match must meet: those at the top of the query and in its $and clauses
+	private static List<Object> conditions(DBObject query, String field) {
+		List<Object> conditions = new ArrayList<>();
+		for (String key : query.keySet()) {
+			if (field.equals(key) || ("id".equals(field) && "_id".equals(key))) {
+				conditions.add(query.get(key));
+			}
+			else if ("$and".equals(key)) {
+				for (Object clause : (Collection<?>) query.get(key)) {
+					conditions.addAll(conditions((DBObject) clause, field));
+				}
+			}
+		}
+		return conditions;
+	}
+
+	// the datetime range the query is confined to.  $and clauses narrow it and $or clauses widen it to the widest of their
+	// ranges, so that a keyset cursor's "after this expense" clause still seeks straight to the page.
+	private static Range range(DBObject query) {
+		Range range = Range.ALL;
+		for (String key : query.keySet()) {
+			Object condition = query.get(key);
+			if ("datetime".equals(key)) {
+				range = range.intersect(Range.of(condition));
+			}
+			else if ("$and".equals(key)) {
+				for (Object clause : (Collection<?>) condition) {
+					range = range.intersect(range((DBObject) clause));
+				}
+			}
+			else if ("$or".equals(key)) {
+				Range widest = null;
+				for (Object clause : (Collection<?>) condition) {
+					Range clauseRange = range((DBObject) clause);
+					widest = widest == null ? clauseRange : widest.union(clauseRange);
+				}
+				if (widest != null) {
+					range = range.intersect(widest);
+				}
+			}
+		}
+		return range;
+	}
+
+	private static boolean matches(Expense expense, DBObject query) {
+		for (String key : query.keySet()) {
+			Object condition = query.get(key);
+			switch (key) {
+			case "$and":
+				for (Object clause : (Collection<?>) condition) {
+					if (!matches(expense, (DBObject) clause)) {
+						return false;
+					}
+				}
+				break;
+			case "$or":
+				boolean any = false;
+				for (Object clause : (Collection<?>) condition) {
+					any = any || matches(expense, (DBObject) clause);
+				}
+				if (!any) {
+					return false;
+				}
+				break;
+			case "$text":
+				if (textScore(expense, (DBObject) condition) == 0) {
+					return false;
+				}
+				break;
+			default:
+				if (!matches(value(expense, key), condition)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// whether a field value meets a condition: a document of operators, or else a value to equal
+	private static boolean matches(Object value, Object condition) {
+		if (!isOperators(condition)) {
+			return equal(value, condition);
+		}
+
+		DBObject operators = (DBObject) condition;
+		for (String operator : operators.keySet()) {
+			Object operand = operators.get(operator);
+			Integer compared = compare(value, operand);
+
+			boolean met;
+			switch (operator) {
+			case "$eq": met = equal(value, operand); break;
+			case "$ne": met = !equal(value, operand); break;
+			case "$gt": met = compared != null && compared > 0; break;
+			case "$gte": met = compared != null && compared >= 0; break;
+			case "$lt": met = compared != null && compared < 0; break;
+			case "$lte": met = compared != null && compared <= 0; break;
+			case "$in": met = in(value, (Collection<?>) operand); break;
+			case "$nin": met = !in(value, (Collection<?>) operand); break;
+			case "$exists": met = (value != null) == Boolean.TRUE.equals(operand); break;
+			default:
+				throw new InvalidDataAccessApiUsageException("Query operator [" + operator + "] is not supported by the in-memory expense store.");
+			}
+
+			if (!met) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isOperators(Object condition) {
+		if (!(condition instanceof DBObject) || ((DBObject) condition).keySet().isEmpty()) {
+			return false;
+		}
+		for (String key : ((DBObject) condition).keySet()) {
+			if (!key.startsWith("$")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean in(Object value, Collection<?> values) {
+		for (Object candidate : values) {
+			if (equal(value, candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		Integer compared = compare(a, b);
+		return compared != null ? compared == 0 : a.equals(b);
+	}
+
+	// compare values the way the database does for values of the same kind, or null for values that can't be compared
+	private static Integer compare(Object a, Object b) {
+		a = stored(a);
+		b = stored(b);
+
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof Date && b instanceof Date) {
+			return ((Date) a).compareTo((Date) b);
+		}
+		if (a instanceof String && b instanceof String) {
+			return ((String) a).compareTo((String) b);
+		}
+		return null;
+	}
+
+	// totals are stored as strings, so they compare as strings too.  ids are stored as the hex strings of object ids, which
+	// sort in the same order as the object ids.
+	private static Object stored(Object value) {
+		return value instanceof BigDecimal || value instanceof ObjectId ? value.toString() : value;
+	}
+
+	// the value of a field as queried by name
+	private static Object value(Expense expense, String field) {
+		switch (field) {
+		case "id":
+		case "_id": return expense.getId();
+		case "merchant": return expense.getMerchant();
+		case "total": return expense.getTotal();
+		case "totalValue": return expense.getTotalValue();
+		case "datetime": return expense.getDatetime();
+		case "comments": return expense.getComments();
+		case "status": return expense.getStatus();
+		case "version": return expense.getVersion();
+		case "lastModified": return expense.getLastModified();
+		default: return null;
+		}
+	}
+
+	// how many times the words searched for appear in the merchant and comments, ignoring case.  a simple stand in for a
+	// text index, without its stemming, stop words, phrases or negation.
+	private static int textScore(Expense expense, DBObject text) {
+		Object search = text == null ? null : text.get("$search");
+		if (search == null) {
+			return 0;
+		}
+
+		Set<String> words = new HashSet<>(Arrays.asList(words(search.toString())));
+		int score = 0;
+		for (String source : new String[] { expense.getMerchant(), expense.getComments() }) {
+			if (source != null) {
+				for (String word : words(source)) {
+					if (words.contains(word)) {
+						score++;
+					}
+				}
+			}
+		}
+		return score;
+	}
+
+	private static String[] words(String text) {
+		return text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+	}
+
+	// the text search in a query, at its top or in its $and clauses
+	private static DBObject search(DBObject query) {
+		List<Object> conditions = conditions(query, "$text");
+		return conditions.isEmpty() ? null : (DBObject) conditions.get(0);
+	}
+
+	// an ordering for a sort document, or null when the sort is already met by datetime order.  a text score sort puts the
+	// best matches first.
+	private static Comparator<Expense> comparator(DBObject sort, DBObject query) {
+		if (sort == null || isDatetimeOrder(sort)) {
+			return null;
+		}
+
+		Comparator<Expense> order = (a, b) -> 0;
+		for (String key : sort.keySet()) {
+			Object direction = sort.get(key);
+			if (direction instanceof DBObject) {
+				DBObject search = search(query);
+				order = order.thenComparing(Comparator.comparingInt((Expense expense) -> textScore(expense, search)).reversed());
+			}
+			else {
+				// missing values sort first, as in the database
+				Comparator<Expense> byKey = (a, b) -> {
+					Object x = value(a, key);
+					Object y = value(b, key);
+					if (x == null || y == null) {
+						return x == null ? (y == null ? 0 : -1) : 1;
+					}
+					Integer compared = compare(x, y);
+					return compared == null ? 0 : compared;
+				};
+				order = order.thenComparing(((Number) direction).intValue() < 0 ? byKey.reversed() : byKey);
+			}
+		}
+		return order.thenComparing(DATETIME_ORDER);
+	}
+
+	// whether a sort is ascending datetime and then id, or just ascending datetime
+	private static boolean isDatetimeOrder(DBObject sort) {
+		List<String> keys = new ArrayList<>(sort.keySet());
+		if (keys.size() > 2 || !keys.equals(Arrays.asList("datetime", "id").subList(0, keys.size()))) {
+			return false;
+		}
+		for (String key : keys) {
+			if (!(sort.get(key) instanceof Number) || ((Number) sort.get(key)).intValue() < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static DBObject sortObject(Sort sort) {
+		if (sort == null) {
+			return null;
+		}
+		DBObject sortObject = new BasicDBObject();
+		for (Sort.Order order : sort) {
+			sortObject.put(order.getProperty(), order.isAscending() ? 1 : -1);
+		}
+		return sortObject;
+	}
+
+	// apply the $set, $unset and $inc operators of an update
+	private static void apply(Expense expense, DBObject update) {
+		BeanWrapper wrapper = new BeanWrapperImpl(expense);
+		for (String operator : update.keySet()) {
+			DBObject fields = (DBObject) update.get(operator);
+			for (String field : fields.keySet()) {
+				Object value = fields.get(field);
+				switch (operator) {
+				case "$set":
+					wrapper.setPropertyValue(field, value);
+					break;
+				case "$unset":
+					wrapper.setPropertyValue(field, null);
+					break;
+				case "$inc":
+					Object current = wrapper.getPropertyValue(field);
+					BigDecimal base = current == null ? BigDecimal.ZERO : new BigDecimal(current.toString());
+					wrapper.setPropertyValue(field, base.add(new BigDecimal(value.toString())));
+					break;
+				default:
+					throw new InvalidDataAccessApiUsageException("Update operator [" + operator + "] is not supported by the in-memory expense store.");
+				}
+			}
+		}
+	}
+
+	// a copy with only the fields included by a projection, or a whole copy when it includes none.  the id is always included.
+	private static Expense project(Expense expense, DBObject fields) {
+		List<String> included = new ArrayList<>();
+		if (fields != null) {
+			for (String field : fields.keySet()) {
+				// a text score is computed, not stored, so it never limits the fields
+				if (!(fields.get(field) instanceof DBObject) && !"id".equals(field) && !"_id".equals(field)) {
+					included.add(field);
+				}
+			}
+		}
+
+		if (included.isEmpty()) {
+			return copy(expense);
+		}
+
+		Expense projected = new Expense();
+		projected.setId(expense.getId());
+		BeanWrapper from = new BeanWrapperImpl(expense);
+		BeanWrapper to = new BeanWrapperImpl(projected);
+		for (String field : included) {
+			if (from.isReadableProperty(field) && to.isWritableProperty(field)) {
+				to.setPropertyValue(field, from.getPropertyValue(field));
+			}
+		}
+		return projected;
+	}
+
+	private static Expense copy(Expense expense) {
+		Expense copy = new Expense();
+		BeanUtils.copyProperties(expense, copy);
+		return copy;
+	}
+
+	// an inclusive range of datetimes in epoch milliseconds.  expenses without a datetime are at the very start.
+	private static class Range {
+		private static final Range ALL = new Range(Long.MIN_VALUE, Long.MAX_VALUE);
+
+		private final long from;
+		private final long to;
+
+		private Range(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		// the range a datetime condition allows.  exclusive bounds are kept inclusive; the query itself excludes them.
+		private static Range of(Object condition) {
+			if (condition instanceof Date) {
+				return new Range(((Date) condition).getTime(), ((Date) condition).getTime());
+			}
+			if (!isOperators(condition)) {
+				return ALL;
+			}
+
+			long from = Long.MIN_VALUE;
+			long to = Long.MAX_VALUE;
+			DBObject operators = (DBObject) condition;
+			for (String operator : operators.keySet()) {
+				Object operand = operators.get(operator);
+				if (!(operand instanceof Date)) {
+					continue;
+				}
+				long time = ((Date) operand).getTime();
+				if ("$gt".equals(operator) || "$gte".equals(operator) || "$eq".equals(operator)) {
+					from = Math.max(from, time);
+				}
+				if ("$lt".equals(operator) || "$lte".equals(operator) || "$eq".equals(operator)) {
+					to = Math.min(to, time);
+				}
+			}
+			return new Range(from, to);
+		}
+
+		private Range intersect(Range other) {
+			return new Range(Math.max(from, other.from), Math.min(to, other.to));
+		}
+
+		private Range union(Range other) {
+			return new Range(Math.min(from, other.from), Math.max(to, other.to));
+		}
+	}
+
+	// a sorted index of expenses by a field and then by datetime and id.  the expenses with a value are a range of the index,
+	// already in datetime order, and narrowing them to a datetime range is a smaller range.
+	private static class Index {
+		private final Function<Expense,String> field;
+		private final ConcurrentSkipListSet<Key> keys = new ConcurrentSkipListSet<>();
+
+		private Index(Function<Expense,String> field) {
+			this.field = field;
+		}
+
+		private void add(Expense expense) {
+			keys.add(Key.of(field.apply(expense), expense));
+		}
+
+		private void remove(Expense expense) {
+			keys.remove(Key.of(field.apply(expense), expense));
+		}
+
+		// the entries with a value in a datetime range, after the given entry if there is one
+		private NavigableSet<Key> keys(String value, Range range, Key after) {
+			Key from = new Key(value, range.from, "");
+			Key to = new Key(value, range.to, MAX_ID);
+			if (after != null && after.compareTo(from) >= 0) {
+				return after.compareTo(to) >= 0 ? Collections.emptyNavigableSet() : keys.subSet(after, false, to, true);
+			}
+			return range.from > range.to ? Collections.emptyNavigableSet() : keys.subSet(from, true, to, true);
+		}
+	}
+
+	private static class Key implements Comparable<Key> {
+		private final String value;
+		private final long time;
+		private final String id;
+
+		private Key(String value, long time, String id) {
+			this.value = value;
+			this.time = time;
+			this.id = id;
+		}
+
+		private static Key of(String value, Expense expense) {
+			return new Key(value, expense.getDatetime() == null ? Long.MIN_VALUE : expense.getDatetime().getTime(), expense.getId());
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			if (value == null || other.value == null) {
+				if (value != other.value) {
+					return value == null ? -1 : 1;
+				}
+			}
+			else {
+				int c = value.compareTo(other.value);
+				if (c != 0) {
+					return c;
+				}
+			}
+
+			int c = Long.compare(time, other.time);
+			return c != 0 ? c : id.compareTo(other.id);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && compareTo((Key) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package expense.api.repositories;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+// A MongoTemplate over an InMemoryExpenseRepository, so the expense service runs unchanged without a database.  The query
+// paths the service uses for expenses are answered from memory: find, findOne, exists, count, stream, findAndModify,
+// findAndRemove and the aggregations behind summaries.  Writes that report a driver result - updateFirst, updateMulti and
+// remove - are instead made through the repository's own methods (see ExpenseRepositoryCustom), since only the driver can
+// make those results.  Everything else - commands, other collections and the calls above - needs MongoDB and fails with an
+// InvalidDataAccessApiUsageException.
+public class InMemoryMongoTemplate extends MongoTemplate {
+
+	private final InMemoryExpenseRepository repository;
+
+	public InMemoryMongoTemplate(InMemoryExpenseRepository repository) {
+		super(new UnavailableMongoDbFactory());
+		this.repository = repository;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> List<T> find(Query query, Class<T> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.find(query, entityClass);
+		}
+		return (List<T>) repository.find(query.getQueryObject(), query.getFieldsObject(), query.getSortObject(), query.getSkip(), query.getLimit());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T findOne(Query query, Class<T> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.findOne(query, entityClass);
+		}
+		List<Expense> found = repository.find(query.getQueryObject(), query.getFieldsObject(), query.getSortObject(), query.getSkip(), 1);
+		return found.isEmpty() ? null : (T) found.get(0);
+	}
+
+	@Override
+	public boolean exists(Query query, Class<?> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.exists(query, entityClass);
+		}
+		return findOne(query, Expense.class) != null;
+	}
+
+	@Override
+	public long count(Query query, Class<?> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.count(query, entityClass);
+		}
+		return repository.count(query == null ? new Query().getQueryObject() : query.getQueryObject());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T findAndModify(Query query, Update update, Class<T> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.findAndModify(query, update, entityClass);
+		}
+		return (T) repository.findAndModify(query.getQueryObject(), query.getFieldsObject(), update.getUpdateObject());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T findAndRemove(Query query, Class<T> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.findAndRemove(query, entityClass);
+		}
+		return (T) repository.findAndRemove(query.getQueryObject(), query.getFieldsObject());
+	}
+
+	// runs the stages the expense service's summaries use - a $match first, then $project, $group and $sort - over the
+	// expenses as they would be stored, with the fields the database would give them
+	@Override
+	@SuppressWarnings("unchecked")
+	public <O> AggregationResults<O> aggregate(Aggregation aggregation, Class<?> inputType, Class<O> outputType) {
+		if (inputType != Expense.class || outputType != DBObject.class) {
+			return super.aggregate(aggregation, inputType, outputType);
+		}
+
+		DBObject command = aggregation.toDbObject(getCollectionName(Expense.class), Aggregation.DEFAULT_CONTEXT);
+		List<DBObject> documents = null;
+		for (Object stage : (List<?>) command.get("pipeline")) {
+			String operator = ((DBObject) stage).keySet().iterator().next();
+			DBObject operand = (DBObject) ((DBObject) stage).get(operator);
+
+			if (documents == null) {
+				documents = new ArrayList<>();
+				DBObject match = "$match".equals(operator) ? operand : new BasicDBObject();
+				for (Expense expense : repository.find(match, null, null, 0, 0)) {
+					DBObject document = new BasicDBObject();
+					getConverter().write(expense, document);
+					documents.add(document);
+				}
+				if ("$match".equals(operator)) {
+					continue;
+				}
+			}
+
+			switch (operator) {
+			case "$project": documents = project(documents, operand); break;
+			case "$group": documents = group(documents, operand); break;
+			case "$sort": documents.sort(order(operand)); break;
+			default:
+				throw new InvalidDataAccessApiUsageException("Aggregation stage [" + operator + "] is not supported by the in-memory expense store.");
+			}
+		}
+		return new AggregationResults<>((List<O>) documents, new BasicDBObject("result", documents).append("ok", 1.0));
+	}
+
+	@Override
+	public <T> CloseableIterator<T> stream(Query query, Class<T> entityClass) {
+		if (entityClass != Expense.class) {
+			return super.stream(query, entityClass);
+		}
+
+		@SuppressWarnings("unchecked")
+		Iterator<T> found = (Iterator<T>) repository.stream(query.getQueryObject(), query.getFieldsObject(), query.getSortObject());
+		return new CloseableIterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return found.hasNext();
+			}
+
+			@Override
+			public T next() {
+				return found.next();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static List<DBObject> project(List<DBObject> documents, DBObject fields) {
+		List<DBObject> projected = new ArrayList<>(documents.size());
+		for (DBObject document : documents) {
+			DBObject result = new BasicDBObject("_id", document.get("_id"));
+			for (String field : fields.keySet()) {
+				Object expression = fields.get(field);
+				result.put(field, expression instanceof Number ? document.get(field) : evaluate(expression, document));
+			}
+			projected.add(result);
+		}
+		return projected;
+	}
+
+	// groups keep the order their first document came in
+	private static List<DBObject> group(List<DBObject> documents, DBObject operand) {
+		Map<Object,DBObject> groups = new LinkedHashMap<>();
+		for (DBObject document : documents) {
+			Object id = evaluate(operand.get("_id"), document);
+			DBObject group = groups.computeIfAbsent(id, key -> new BasicDBObject("_id", key));
+
+			for (String field : operand.keySet()) {
+				if ("_id".equals(field)) {
+					continue;
+				}
+				DBObject accumulator = (DBObject) operand.get(field);
+				if (!accumulator.containsField("$sum")) {
+					throw new InvalidDataAccessApiUsageException("Group accumulator " + accumulator + " is not supported by the in-memory expense store.");
+				}
+				group.put(field, sum(group.get(field), evaluate(accumulator.get("$sum"), document)));
+			}
+		}
+		return new ArrayList<>(groups.values());
+	}
+
+	// sums are integers until a double is added, and values that aren't numbers are skipped, as in the database
+	private static Number sum(Object total, Object value) {
+		Number sum = total == null ? Integer.valueOf(0) : (Number) total;
+		if (!(value instanceof Number)) {
+			return sum;
+		}
+		if (sum instanceof Double || value instanceof Double) {
+			return sum.doubleValue() + ((Number) value).doubleValue();
+		}
+		return sum.longValue() + ((Number) value).longValue();
+	}
+
+	// a comparator for a $sort document.  a key inside the group id of a single key is the id itself.
+	private static Comparator<DBObject> order(DBObject sort) {
+		Comparator<DBObject> order = (a, b) -> 0;
+		for (String key : sort.keySet()) {
+			Comparator<DBObject> byKey = (a, b) -> compare(field(a, key), field(b, key));
+			order = order.thenComparing(((Number) sort.get(key)).intValue() < 0 ? byKey.reversed() : byKey);
+		}
+		return order;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		return a.getClass() == b.getClass() && a instanceof Comparable ? ((Comparable<Object>) a).compareTo(b) : 0;
+	}
+
+	private static Object field(DBObject document, String path) {
+		Object value = document;
+		for (String name : path.split("\\.")) {
+			if (!(value instanceof DBObject)) {
+				return value;
+			}
+			value = ((DBObject) value).get(name);
+		}
+		return value;
+	}
+
+	// the value of a field path ("$field"), a document of expressions, a $year or $month of a date in UTC, or a constant
+	private static Object evaluate(Object expression, DBObject document) {
+		if (expression instanceof String && ((String) expression).startsWith("$")) {
+			return field(document, ((String) expression).substring(1));
+		}
+		if (!(expression instanceof DBObject)) {
+			return expression;
+		}
+
+		DBObject expressions = (DBObject) expression;
+		for (String operator : new String[] { "$year", "$month" }) {
+			if (expressions.containsField(operator)) {
+				Object date = evaluate(((List<?>) expressions.get(operator)).get(0), document);
+				if (!(date instanceof Date)) {
+					return null;
+				}
+				ZonedDateTime utc = ((Date) date).toInstant().atZone(ZoneOffset.UTC);
+				return "$year".equals(operator) ? utc.getYear() : utc.getMonthValue();
+			}
+		}
+
+		DBObject values = new BasicDBObject();
+		for (String field : expressions.keySet()) {
+			values.put(field, evaluate(expressions.get(field), document));
+		}
+		return values;
+	}
+
+	// stands in for the database, which isn't there
+	private static class UnavailableMongoDbFactory implements MongoDbFactory {
+
+		@Override
+		public DB getDb() {
+			throw new InvalidDataAccessApiUsageException("This operation needs MongoDB and is not supported by the in-memory expense store.");
+		}
+
+		@Override
+		public DB getDb(String dbName) {
+			return getDb();
+		}
+
+		@Override
+		public PersistenceExceptionTranslator getExceptionTranslator() {
+			return new MongoExceptionTranslator();
+		}
+	}
+}
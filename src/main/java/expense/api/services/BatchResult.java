@@ -0,0 +1,33 @@
+package expense.api.services;
+
+// the outcome of one expense in a batch request: either the database id of the expense or the reason it failed.
+public class BatchResult {
+
+	private String id;
+	private String error;
+
+	private BatchResult(String id, String error) {
+		this.id = id;
+		this.error = error;
+	}
+
+	public static BatchResult id(String id) {
+		return new BatchResult(id, null);
+	}
+
+	public static BatchResult error(String error) {
+		return new BatchResult(null, error);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+}
@@ -0,0 +1,26 @@
+package expense.api.services;
+
+import java.util.List;
+
+import expense.api.model.Expense;
+
+// a page of expenses fetched with keyset (cursor) paging, along with the cursor for the following page.
+public class CursorPage {
+
+	private List<Expense> contents;
+	private String next;
+
+	public CursorPage(List<Expense> contents, String next) {
+		this.contents = contents;
+		this.next = next;
+	}
+
+	public List<Expense> getContents() {
+		return contents;
+	}
+
+	// the opaque cursor of the following page, or null if this is the last page.
+	public String getNext() {
+		return next;
+	}
+}
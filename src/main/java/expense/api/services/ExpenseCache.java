@@ -0,0 +1,197 @@
+package expense.api.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import expense.api.model.Expense;
+
+// A bounded in-process cache of expenses by id.  The least recently used expense is evicted when the cache is full, and
+// expenses older than the time to live are evicted when they are next read.  Hit, miss and eviction counts are published
+// to the actuator metrics endpoint.
+//
+// An invalidated id is kept for a while as a marker stamped with the time of the invalidation, so that an expense loaded
+// before it is not cached after it.  A cached expense is stamped with the time its load started, so that a slower load from
+// before an invalidation never replaces one from after it.  Invalidating one id never holds back loads of other ids.
+//
+// Callers are given their own copy of a cached expense, so changing it never changes the cache.
+@Component
+public class ExpenseCache implements PublicMetrics {
+
+	private final int maxSize;
+	private final long ttlMillis;
+
+	private final LinkedHashMap<String,CachedExpense> entries;
+	// counts invalidations, stamping each invalidated id and each load
+	private long clock = 0;
+	// the latest stamp of any invalidation marker no longer kept.  a load from before it may have missed an invalidation, so
+	// it is not cached.
+	private long forgotten = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	@Autowired
+	public ExpenseCache(@Value("${expense.cache.max-size:10000}") int maxSize, @Value("${expense.cache.ttl-seconds:60}") long ttlSeconds) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlSeconds * 1000;
+
+		this.entries = new LinkedHashMap<String,CachedExpense>(16, 0.75f, true) {
+			private static final long serialVersionUID = 6024139283312427455L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,CachedExpense> eldest) {
+				if (size() > ExpenseCache.this.maxSize) {
+					removed(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// a cache that holds nothing
+	public static ExpenseCache disabled() {
+		return new ExpenseCache(0, 0);
+	}
+
+	// the cached expense, or null if the expense isn't cached or has expired
+	public Expense get(String id) {
+		synchronized (entries) {
+			CachedExpense entry = entries.get(id);
+
+			if (entry != null && System.currentTimeMillis() - entry.loaded > ttlMillis) {
+				entries.remove(id);
+				removed(entry);
+				entry = null;
+			}
+
+			if (entry == null || entry.expense == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+
+			hits.incrementAndGet();
+			return copy(entry.expense);
+		}
+	}
+
+	// read before loading an expense from the database, and passed back to put() with the loaded expense
+	public long generation() {
+		synchronized (entries) {
+			return clock;
+		}
+	}
+
+	// cache an expense loaded from the database, unless its id was invalidated while it was being loaded or a load that
+	// started later has already been cached
+	public void put(String id, Expense expense, long loadedGeneration) {
+		if (maxSize < 1) {
+			return;
+		}
+
+		synchronized (entries) {
+			CachedExpense entry = entries.get(id);
+			boolean stale = entry != null && entry.generation > loadedGeneration;
+			if (!stale && loadedGeneration >= forgotten) {
+				entries.put(id, new CachedExpense(copy(expense), System.currentTimeMillis(), loadedGeneration));
+			}
+		}
+	}
+
+	public void invalidate(String id) {
+		if (maxSize < 1) {
+			return;
+		}
+
+		synchronized (entries) {
+			entries.put(id, new CachedExpense(null, System.currentTimeMillis(), ++clock));
+		}
+	}
+
+	public void invalidate(Collection<String> ids) {
+		if (maxSize < 1) {
+			return;
+		}
+
+		synchronized (entries) {
+			long stamp = ++clock;
+			long now = System.currentTimeMillis();
+			for (String id : ids) {
+				entries.put(id, new CachedExpense(null, now, stamp));
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+			forgotten = ++clock;
+		}
+	}
+
+	// account for an entry leaving the cache.  called holding the entries lock.
+	private void removed(CachedExpense entry) {
+		if (entry.expense != null) {
+			evictions.incrementAndGet();
+		}
+		else {
+			forgotten = Math.max(forgotten, entry.generation);
+		}
+	}
+
+	// the number of entries, counting recently invalidated ids
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("cache.expense.size", size()));
+		metrics.add(new Metric<>("cache.expense.hits", hits.get()));
+		metrics.add(new Metric<>("cache.expense.misses", misses.get()));
+		metrics.add(new Metric<>("cache.expense.evictions", evictions.get()));
+		return metrics;
+	}
+
+	// a copy of an expense sharing nothing mutable with it
+	private static Expense copy(Expense expense) {
+		Expense copy = new Expense();
+		BeanUtils.copyProperties(expense, copy);
+		if (expense.getDatetime() != null) {
+			copy.setDatetime(new Date(expense.getDatetime().getTime()));
+		}
+		if (expense.getLastModified() != null) {
+			copy.setLastModified(new Date(expense.getLastModified().getTime()));
+		}
+		return copy;
+	}
+
+	// a cached expense stamped with the generation its load started at, or the marker of an invalidated id with a null
+	// expense stamped with the generation of the invalidation
+	private static class CachedExpense {
+		private final Expense expense;
+		private final long loaded;
+		private final long generation;
+
+		private CachedExpense(Expense expense, long loaded, long generation) {
+			this.expense = expense;
+			this.loaded = loaded;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package expense.api.services;
+
+// the number of expenses matching a listing's filters, and whether it is exact or an estimate.
+public class ExpenseCount {
+
+	private long count;
+	private boolean estimated;
+
+	public ExpenseCount(long count, boolean estimated) {
+		this.count = count;
+		this.estimated = estimated;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	// an estimated count stopped counting at a limit, so there are at least this many matching expenses.
+	public boolean isEstimated() {
+		return estimated;
+	}
+}
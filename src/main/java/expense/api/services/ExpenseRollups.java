@@ -0,0 +1,473 @@
+package expense.api.services;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
+
+// A pre-aggregated rollup of spend: the total and count of expenses for each merchant, status and UTC day.  Every change to
+// an expense moves its total between buckets with atomic $inc updates, so summaries can be read from the buckets instead of
+// from every expense.
+//
+// The rollup is rebuilt from the expenses by the database, in the background: at startup when it doesn't exist yet or the
+// application is started with --rebuild-rollups, on request from the rollups actuator endpoint, and whenever the buckets
+// moved by a status change can't be summed.  Summaries are aggregated from the expenses until a rebuild has finished.  The buckets
+// changed while a rebuild runs are recomputed once it has replaced the rollup, so no change made during a rebuild is lost.
+@Component
+@Profile("!memory")  // the in-memory store has no rollups
+@Order(2)  // the totalValue backfill asks for another rebuild once it has filled in older totals
+public class ExpenseRollups implements CommandLineRunner {
+
+	public static final String COLLECTION = "expenseRollup";
+	public static final String REBUILD_ARG = "--rebuild-rollups";
+	// the field that marks the expenses updated by one status change until they have been moved between buckets
+	public static final String STATUS_CHANGE = "statusChange";
+
+	private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+
+	// how many times the buckets changed during a rebuild are recomputed before the rebuild gives up waiting for quiet
+	private static final int MAX_RECOMPUTE_PASSES = 10;
+
+	private final Logger log = LoggerFactory.getLogger(ExpenseRollups.class);
+
+	private MongoTemplate mongoTemplate;
+	private Executor rebuilder;
+
+	// whether the rollup is complete enough to summarize from
+	private volatile boolean ready = false;
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	// whether the expenses were changed behind the running rebuild, so that it has to run again once it has finished
+	private volatile boolean stale = false;
+	// the buckets changed since the running rebuild started, or null when there is no rebuild running
+	private volatile Set<Bucket> changed;
+
+	@Autowired
+	public ExpenseRollups(MongoTemplate mongoTemplate) {
+		this(mongoTemplate, runnable -> {
+			Thread thread = new Thread(runnable, "expense-rollup-rebuild");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	public ExpenseRollups(MongoTemplate mongoTemplate, Executor rebuilder) {
+		this.mongoTemplate = mongoTemplate;
+		this.rebuilder = rebuilder;
+	}
+
+	// rollups that are never written or read
+	public static ExpenseRollups disabled() {
+		return new ExpenseRollups(null, null);
+	}
+
+	public boolean isEnabled() {
+		return mongoTemplate != null;
+	}
+
+	// whether summaries can be read from the rollup.  false until the rollup is known to exist and while it is rebuilt.
+	public boolean isReady() {
+		return isEnabled() && ready;
+	}
+
+	public boolean isRebuilding() {
+		return rebuilding.get();
+	}
+
+	// count a new expense
+	public void add(Expense expense) {
+		inc(Bucket.of(expense), value(expense), 1);
+	}
+
+	// stop counting a deleted expense
+	public void remove(Expense expense) {
+		inc(Bucket.of(expense), -value(expense), -1);
+	}
+
+	// move an expense between buckets after a sparse update.  the saved expense must hold the merchant, status, datetime and
+	// total from before the update.
+	public void update(Expense saved, Expense changes) {
+		Expense updated = new Expense();
+		updated.setMerchant(changes.getMerchant() != null ? changes.getMerchant() : saved.getMerchant());
+		updated.setStatus(changes.getStatus() != null ? changes.getStatus() : saved.getStatus());
+		updated.setDatetime(changes.getDatetime() != null ? changes.getDatetime() : saved.getDatetime());
+		updated.setTotal(changes.getTotal() != null ? changes.getTotal() : saved.getTotal());
+
+		if (Bucket.of(saved).equals(Bucket.of(updated)) && value(saved) == value(updated)) {
+			return;
+		}
+
+		remove(saved);
+		add(updated);
+	}
+
+	// mark the expenses a status change updates, so that transition() can find exactly those expenses once the change is
+	// made.  returns the mark, or null when there are no rollups to move them in.
+	public String mark(Update update) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		String mark = new ObjectId().toString();
+		update.set(STATUS_CHANGE, mark);
+		return mark;
+	}
+
+	// move the expenses marked by a status change from their old status to the new one, then take the mark off them.  the
+	// marked expenses are summed by the database after the change, so each bucket moves by exactly what the change updated
+	// in it, however the expenses changed between being selected and being updated.
+	public void transition(String mark, String from, String to) {
+		if (!isEnabled() || mark == null) {
+			return;
+		}
+
+		DBObject marked = new BasicDBObject(STATUS_CHANGE, mark);
+		try {
+			if (!Objects.equals(from, to)) {
+				for (Map.Entry<Bucket,Tally> entry : tally(marked).entrySet()) {
+					Bucket moved = entry.getKey();
+					Tally tally = entry.getValue();
+					inc(new Bucket(moved.merchant, from, moved.day), -tally.total, -tally.count);
+					inc(new Bucket(moved.merchant, to, moved.day), tally.total, tally.count);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Expense rollups are out of date: unable to sum the expenses moved by a status change. Rebuilding them.", e);
+			startRebuild();
+		}
+
+		// written straight to the collection, so that taking the mark off doesn't change the expense versions
+		try {
+			mongoTemplate.getCollection(mongoTemplate.getCollectionName(Expense.class)).updateMulti(marked,
+					new BasicDBObject("$unset", new BasicDBObject(STATUS_CHANGE, "")));
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to unmark the expenses of status change [" + mark + "].", e);
+		}
+	}
+
+	// summarize spend from the buckets, grouped by any of 'merchant', 'status' and 'month' and filtered by merchant and status
+	public List<ExpenseSummary> summarize(Map<String,String> filters, List<String> groups) {
+		Criteria criteria = new Criteria();
+		for (Map.Entry<String,String> filter : filters.entrySet()) {
+			criteria = criteria.and("_id." + filter.getKey()).is(filter.getValue());
+		}
+
+		// groups are ordered by their values, in the order the groups were requested
+		Map<List<String>,Tally> grouped = new TreeMap<>((a, b) -> {
+			for (int i = 0; i < a.size(); i++) {
+				int c = Objects.toString(a.get(i), "").compareTo(Objects.toString(b.get(i), ""));
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		});
+
+		// there are far fewer buckets than expenses, so they are read all at once
+		for (DBObject document : mongoTemplate.find(new Query(criteria), DBObject.class, COLLECTION)) {
+			DBObject id = (DBObject) document.get("_id");
+
+			List<String> key = new ArrayList<>();
+			// expenses without a datetime have no month, as when summing the expenses themselves
+			for (String group : groups) {
+				String day = (String) id.get("day");
+				key.add("month".equals(group) ? (day == null ? null : day.substring(0, 7)) : (String) id.get(group));
+			}
+
+			Tally tally = grouped.computeIfAbsent(key, k -> new Tally());
+			tally.total += ((Number) document.get("total")).doubleValue();
+			tally.count += ((Number) document.get("count")).longValue();
+		}
+
+		List<ExpenseSummary> summaries = new ArrayList<>();
+		for (Map.Entry<List<String>,Tally> entry : grouped.entrySet()) {
+			// a bucket whose expenses have all been deleted or moved stays behind, empty
+			if (entry.getValue().count == 0) {
+				continue;
+			}
+
+			ExpenseSummary summary = new ExpenseSummary();
+			for (int i = 0; i < groups.size(); i++) {
+				String value = entry.getKey().get(i);
+				switch (groups.get(i)) {
+				case "merchant": summary.setMerchant(value); break;
+				case "status": summary.setStatus(value); break;
+				case "month": summary.setMonth(value); break;
+				}
+			}
+			summary.setTotal(BigDecimal.valueOf(entry.getValue().total).setScale(2, RoundingMode.HALF_UP));
+			summary.setCount(entry.getValue().count);
+			summaries.add(summary);
+		}
+		return summaries;
+	}
+
+	// rebuild the rollup in the background unless a rebuild is already running.  returns whether a rebuild was started.
+	public boolean startRebuild() {
+		if (!isEnabled() || !rebuilding.compareAndSet(false, true)) {
+			return false;
+		}
+
+		ready = false;
+		stale = false;
+		changed = ConcurrentHashMap.newKeySet();
+		try {
+			rebuilder.execute(() -> {
+				try {
+					log.info("[" + rebuild() + "] expense rollup buckets rebuilt.");
+					ready = true;
+				}
+				catch (RuntimeException e) {
+					log.warn("Unable to rebuild expense rollups; summaries will be aggregated from the expenses.", e);
+				}
+				finally {
+					changed = null;
+					rebuilding.set(false);
+					if (stale) {
+						startRebuild();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			changed = null;
+			rebuilding.set(false);
+			throw e;
+		}
+		return true;
+	}
+
+	// rebuild the rollup for expenses changed without going through it, straight away or once the running rebuild, which
+	// may have missed the changes, has finished
+	public void restartRebuild() {
+		if (!isEnabled()) {
+			return;
+		}
+
+		// marked before trying, so that a running rebuild that finishes first sees the mark and starts again
+		stale = true;
+		startRebuild();
+	}
+
+	// recompute every bucket from the expenses.  the buckets are written to a new collection that then replaces the rollup,
+	// and the buckets changed in the meantime are then recomputed until no more change.
+	long rebuild() {
+		Map<Bucket,Tally> tallies = tally(new BasicDBObject());
+
+		String rebuilding = COLLECTION + "_rebuild";
+		if (mongoTemplate.collectionExists(rebuilding)) {
+			mongoTemplate.dropCollection(rebuilding);
+		}
+		DBCollection collection = mongoTemplate.createCollection(rebuilding);
+
+		List<DBObject> documents = new ArrayList<>();
+		for (Map.Entry<Bucket,Tally> entry : tallies.entrySet()) {
+			documents.add(new BasicDBObject("_id", entry.getKey().id())
+					.append("total", entry.getValue().total)
+					.append("count", entry.getValue().count));
+
+			if (documents.size() == 1000) {
+				collection.insert(documents);
+				documents.clear();
+			}
+		}
+		if (!documents.isEmpty()) {
+			collection.insert(documents);
+		}
+
+		collection.rename(COLLECTION, true);
+
+		// a change made while the expenses were being summed may or may not have been counted, and its increment may have gone
+		// to the replaced rollup, so its bucket is summed again
+		Set<Bucket> changes = changed;
+		for (int pass = 0; pass < MAX_RECOMPUTE_PASSES && !changes.isEmpty(); pass++) {
+			List<Bucket> buckets = new ArrayList<>(changes);
+			changes.removeAll(buckets);
+			for (Bucket bucket : buckets) {
+				recompute(bucket);
+			}
+		}
+		if (!changes.isEmpty()) {
+			log.warn("[" + changes.size() + "] expense rollup buckets were still changing at the end of the rebuild and may be out of date.");
+		}
+		return tallies.size();
+	}
+
+	@Override
+	public void run(String... args) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		try {
+			if (Arrays.asList(args).contains(REBUILD_ARG) || !mongoTemplate.collectionExists(COLLECTION)) {
+				startRebuild();
+			}
+			else {
+				ready = true;
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to rebuild expense rollups; summaries will be aggregated from the expenses.", e);
+		}
+	}
+
+	// sum the expenses of one bucket again and overwrite the bucket with the sum
+	private void recompute(Bucket bucket) {
+		DBObject match = new BasicDBObject("merchant", bucket.merchant).append("status", bucket.status);
+		if (bucket.day == null) {
+			match.put("datetime", null);
+		}
+		else {
+			Instant start = LocalDate.parse(bucket.day).atStartOfDay(ZoneOffset.UTC).toInstant();
+			match.put("datetime", new BasicDBObject("$gte", Date.from(start)).append("$lt", Date.from(start.plus(1, ChronoUnit.DAYS))));
+		}
+
+		Tally tally = tally(match).getOrDefault(bucket, new Tally());
+		mongoTemplate.upsert(new Query(Criteria.where("_id").is(bucket.id())), new Update().set("total", tally.total).set("count", tally.count), COLLECTION);
+	}
+
+	// sum the matching expenses by bucket in the database.  the results are read through a cursor, so there may be any
+	// number of buckets.
+	private Map<Bucket,Tally> tally(DBObject match) {
+		DBObject id = new BasicDBObject("merchant", "$merchant").append("status", "$status")
+				.append("year", new BasicDBObject("$year", "$datetime"))
+				.append("month", new BasicDBObject("$month", "$datetime"))
+				.append("day", new BasicDBObject("$dayOfMonth", "$datetime"));
+		List<DBObject> pipeline = Arrays.asList(
+				new BasicDBObject("$match", match),
+				new BasicDBObject("$group", new BasicDBObject("_id", id)
+						.append("total", new BasicDBObject("$sum", "$totalValue"))
+						.append("count", new BasicDBObject("$sum", 1))));
+		AggregationOptions options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).allowDiskUse(true).build();
+
+		return mongoTemplate.execute(Expense.class, collection -> {
+			Map<Bucket,Tally> tallies = new LinkedHashMap<>();
+			Cursor results = collection.aggregate(pipeline, options);
+			try {
+				while (results.hasNext()) {
+					DBObject result = results.next();
+					DBObject key = (DBObject) result.get("_id");
+
+					String day = key.get("year") == null ? null : String.format("%04d-%02d-%02d",
+							((Number) key.get("year")).intValue(), ((Number) key.get("month")).intValue(), ((Number) key.get("day")).intValue());
+					Tally tally = new Tally();
+					tally.total = ((Number) result.get("total")).doubleValue();
+					tally.count = ((Number) result.get("count")).longValue();
+					tallies.put(new Bucket((String) key.get("merchant"), (String) key.get("status"), day), tally);
+				}
+			}
+			finally {
+				results.close();
+			}
+			return tallies;
+		});
+	}
+
+	// a lost increment leaves the rollup out of date but doesn't undo the change to the expense, so it is reported and left
+	// for a rebuild to correct
+	private void inc(Bucket bucket, double total, long count) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		try {
+			mongoTemplate.upsert(new Query(Criteria.where("_id").is(bucket.id())), new Update().inc("total", total).inc("count", count), COLLECTION);
+		}
+		catch (RuntimeException e) {
+			log.warn("Expense rollups are out of date: unable to update bucket " + bucket.id() + ". Rebuild them from the rollups endpoint.", e);
+		}
+		finally {
+			// recorded after the increment, so that a rebuild finishing in between still recomputes the bucket
+			Set<Bucket> changes = changed;
+			if (changes != null) {
+				changes.add(bucket);
+			}
+		}
+	}
+
+	private static double value(Expense expense) {
+		return expense.getTotal() == null ? 0 : expense.getTotal().doubleValue();
+	}
+
+	// the merchant, status and UTC day an expense is counted under
+	public static class Bucket {
+		private final String merchant;
+		private final String status;
+		private final String day;
+
+		public Bucket(String merchant, String status, String day) {
+			this.merchant = merchant;
+			this.status = status;
+			this.day = day;
+		}
+
+		public static Bucket of(Expense expense) {
+			return new Bucket(expense.getMerchant(), expense.getStatus(),
+					expense.getDatetime() == null ? null : DAY_FORMAT.format(expense.getDatetime().toInstant()));
+		}
+
+		// the bucket document id.  the keys are always in the same order so that ids compare equal.
+		public DBObject id() {
+			return new BasicDBObject("merchant", merchant).append("status", status).append("day", day);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Bucket)) {
+				return false;
+			}
+			Bucket other = (Bucket) o;
+			return Objects.equals(merchant, other.merchant) && Objects.equals(status, other.status) && Objects.equals(day, other.day);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(merchant, status, day);
+		}
+	}
+
+	// the total and count of the expenses in a bucket
+	public static class Tally {
+		private double total;
+		private long count;
+	}
+}
@@ -1,12 +1,17 @@
 package expense.api.services;
 
+import java.util.List;
 import java.util.Map;
 
+import org.springframework.data.util.CloseableIterator;
+
 import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
 import expense.api.services.exceptions.NotFoundException;
 import expense.api.services.exceptions.OutOfBoundsException;
 import expense.api.services.exceptions.ServiceException;
 import expense.api.services.exceptions.ValidationException;
+import expense.api.services.exceptions.VersionConflictException;
 
 public interface ExpenseService {
 	/**
@@ -20,11 +25,70 @@ public interface ExpenseService {
 	/**
 	 * List all the expenses stored in the database with filtering and paging.
 	 * 
-	 * @param filters The map of filter values.
+	 * @param filters The map of filter values.  A 'fields' value is a comma separated list of the fields to include.  A 'q' value
+	 * searches for words in the merchant and comments, and the matching expenses are listed most relevant first.
 	 * @return The list of expenses.
-	 * @throws OutOfBoundsException if paging values are invalid.
+	 * @throws OutOfBoundsException if paging or field values are invalid.
 	 */
 	Iterable<Expense> listExpenses(Map<String,String> filters) throws OutOfBoundsException;
+
+	/**
+	 * List the expenses stored in the database with filtering and keyset (cursor) paging.  Results are ordered by datetime and id,
+	 * and each page costs the same to fetch regardless of how deep into the result set it is.
+	 *
+	 * @param filters The map of filter values.  A 'size' value sets the page size, and a 'fields' value is a comma separated list
+	 * of the fields to include along with the datetime the cursor is made from.
+	 * @param cursor The cursor returned with the previous page, or null or empty to fetch the first page.
+	 * @return The page of expenses along with the cursor for the following page.
+	 * @throws OutOfBoundsException if the paging values or the cursor are invalid.
+	 */
+	CursorPage listExpenses(Map<String,String> filters, String cursor) throws OutOfBoundsException;
+
+	/**
+	 * Count the expenses stored in the database that match the filters, for showing the size of a paged listing.
+	 * An unfiltered count is read from the collection's document count whatever the mode.  An estimated filtered count
+	 * stops at 10,000 expenses and gives up after 200 milliseconds.
+	 *
+	 * @param filters The map of filter values.  Paging values are ignored.
+	 * @param mode 'exact', 'estimate', or null or 'none' to not count.
+	 * @return The count, or null if not counting or if an estimate could not be made in time.
+	 * @throws OutOfBoundsException if the mode or filter values are invalid.
+	 */
+	ExpenseCount countExpenses(Map<String,String> filters, String mode) throws OutOfBoundsException;
+	
+	/**
+	 * Suggest merchant names for autocompletion.  Suggestions come from an in-memory index of the merchants of the stored
+	 * expenses, so the database is not queried.
+	 * 
+	 * @param prefix The start of the merchant name, in any case.  A null or empty prefix suggests from every merchant.
+	 * @param limit The most suggestions to return, between 1 and 100.
+	 * @return The merchant names starting with the prefix, those with the most expenses first.
+	 * @throws OutOfBoundsException if the limit is invalid.
+	 */
+	List<String> suggestMerchants(String prefix, int limit) throws OutOfBoundsException;
+	
+	/**
+	 * Stream all the expenses stored in the database that match the filters.  Expenses are read from a database cursor as
+	 * the iterator advances, so the result set is never held in memory.  The caller must close the iterator.
+	 * 
+	 * @param filters The map of filter values.  Paging values are ignored, and a 'fields' value is a comma separated list of
+	 * the fields to include.
+	 * @return An iterator over the matching expenses.
+	 * @throws OutOfBoundsException if filter values are invalid.
+	 */
+	CloseableIterator<Expense> streamExpenses(Map<String,String> filters) throws OutOfBoundsException;
+	
+	/**
+	 * Sum the totals of the expenses that match the filters in a single aggregation in the database, grouped by merchant, status
+	 * and calendar month.  Totals are summed as numbers and rounded to cents.  Summaries filtered by nothing but merchant and
+	 * status are read from the pre-aggregated daily rollup instead of from the expenses.
+	 * 
+	 * @param filters The map of filter values.  A 'groupBy' value is a comma separated list of the groups to use, any of
+	 * 'merchant', 'status' and 'month'.  Paging values are ignored.
+	 * @return The total and count of each group, ordered by group.
+	 * @throws OutOfBoundsException if filter or group values are invalid.
+	 */
+	List<ExpenseSummary> summarizeExpenses(Map<String,String> filters) throws OutOfBoundsException;
 	
 	/**
 	 * Delete an expense from the database.  Expenses with a 'reimbursed' status cannot be deleted.
@@ -35,6 +99,17 @@ public interface ExpenseService {
 	 */
 	void deleteExpense(String id) throws NotFoundException, ValidationException;
 	
+	/**
+	 * Delete an expense from the database if it has not changed since the expected version.  Expenses with a 'reimbursed' status cannot be deleted.
+	 * 
+	 * @param id The id of the expense.
+	 * @param expectedVersion The version the expense must be at, or null to delete whatever the version.
+	 * @throws NotFoundException if the expense id is invalid or the expense does not exist in the database. 
+	 * @throws ValidationException if the expense has 'reimbursed' status.
+	 * @throws VersionConflictException if the expense is not at the expected version.
+	 */
+	void deleteExpense(String id, Long expectedVersion) throws NotFoundException, ValidationException;
+	
 	/**
 	 * Find a specific expense in the database.
 	 * 
@@ -44,6 +119,18 @@ public interface ExpenseService {
 	 */
 	Expense findExpense(String id) throws NotFoundException;
 	
+	/**
+	 * Find part of a specific expense in the database.  Only the requested fields are read from the database, along with the
+	 * id, version and last modified time which are always included.
+	 * 
+	 * @param id The id of the expense.
+	 * @param fields The comma separated fields to include, or null or empty to include every field.
+	 * @return The expense, with the fields that weren't included left null.
+	 * @throws NotFoundException if the expense id is invalid or the expense does not exist in the database.
+	 * @throws OutOfBoundsException if a field is not an expense field.
+	 */
+	Expense findExpense(String id, String fields) throws NotFoundException, OutOfBoundsException;
+	
 	/**
 	 * Save an expense in the database.
 	 * 
@@ -53,6 +140,16 @@ public interface ExpenseService {
 	 */
 	String createExpense(Expense expense) throws ValidationException;
 	
+	/**
+	 * Save a batch of expenses in the database with a single unordered bulk insert.  Each expense is validated on its own, and
+	 * an invalid expense or a failed insert does not prevent the rest of the batch from being saved.
+	 * 
+	 * @param expenses The expenses to save.
+	 * @return The database id or the error message of each expense, in the order submitted.
+	 * @throws ValidationException if the batch is empty or larger than 10,000 expenses.
+	 */
+	List<BatchResult> createExpenses(List<Expense> expenses) throws ValidationException;
+	
 	/**
 	 * Update an existing expense in the database.  The properties of the expense to save can be sparse, meaning if a property has a null value, the 
 	 * no change to that property in the database will occur.  Expenses with a 'reimbursed' status cannot be deleted.
@@ -65,4 +162,33 @@ public interface ExpenseService {
 	 * @throws ServiceException if some other unclassified error occurred.
 	 */
 	String updateExpense(String id, Expense expense) throws NotFoundException,ValidationException,ServiceException;
+	
+	/**
+	 * Update an existing expense in the database if it has not changed since the expected version.  Every update increments
+	 * the version by one.
+	 * 
+	 * @param id The id of the expense.
+	 * @param expense The expense to update.
+	 * @param expectedVersion The version the expense must be at, or null to update whatever the version.
+	 * @return The database id of the saved expense.
+	 * @throws NotFoundException if the expense id is invalid or the expense does not exist in the database.
+	 * @throws ValidationException if the expense is invalid or if the expense has a 'reimbursed' status.
+	 * @throws VersionConflictException if the expense is not at the expected version.
+	 * @throws ServiceException if some other unclassified error occurred.
+	 */
+	String updateExpense(String id, Expense expense, Long expectedVersion) throws NotFoundException,ValidationException,ServiceException;
+	
+	/**
+	 * Change the status of many expenses with a single update.  Only expenses currently in 'new' status are changed, so
+	 * reimbursed expenses stay immutable.  Expenses are selected by id, narrowed down by any filters, or, when no ids are
+	 * given, by filters alone.  Paging parameters are not filters.
+	 * 
+	 * @param status The new status.
+	 * @param ids The ids of the expenses to change, or null or empty to select expenses by filters.
+	 * @param filters The map of filter values the expenses must also match.
+	 * @return The number of expenses changed and, when selecting by id, the ids that were skipped, including those the filters don't match.
+	 * @throws ValidationException if the status is invalid, if there are more than 10,000 ids, or if neither ids nor filters are given.
+	 * @throws OutOfBoundsException if filter values are invalid.
+	 */
+	TransitionResult updateExpenseStatus(String status, List<String> ids, Map<String,String> filters) throws ValidationException,OutOfBoundsException;
 }
@@ -1,43 +1,100 @@
 package expense.api.services;
 
-import java.lang.reflect.InvocationTargetException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
 
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
 import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
 import expense.api.repositories.ExpenseRepository;
 import expense.api.services.exceptions.NotFoundException;
 import expense.api.services.exceptions.OutOfBoundsException;
 import expense.api.services.exceptions.ServiceException;
 import expense.api.services.exceptions.ValidationException;
+import expense.api.services.exceptions.VersionConflictException;
 import expense.api.services.validation.ExpenseValidator;
 
 @Service
 public class ExpenseServiceImpl implements ExpenseService {
 
-	private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+	private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+	
+	// the properties a spend summary can be grouped by
+	private static final List<String> SUMMARY_GROUPS = Collections.unmodifiableList(Arrays.asList("merchant", "status", "month"));
+	
+	// the filters a spend summary can be read from the rollups with
+	private static final List<String> ROLLUP_FILTERS = Collections.unmodifiableList(Arrays.asList("merchant", "status"));
+	
+	// where an estimated count stops counting, and how long it may take
+	private static final int ESTIMATE_COUNT_LIMIT = 10000;
+	private static final int ESTIMATE_COUNT_MAX_TIME_MS = 200;
+	// how long an exact count may take.  it counts every matching expense, so it gets longer.
+	private static final int EXACT_COUNT_MAX_TIME_MS = 2000;
+	
+	// how many times to retry a comments update that raced with another update
+	private static final int MAX_UPDATE_ATTEMPTS = 5;
 	
 	private ExpenseRepository repository;
 	private MongoTemplate mongoTemplate;
+	private ExpenseCache cache;
+	private ExpenseRollups rollups;
+	private MerchantSuggestions merchants;
+	private SlowQueryLog slowQueries;
 	
-	@Autowired
 	public ExpenseServiceImpl(ExpenseRepository repository, MongoTemplate mongoTemplate) {
+		this(repository, mongoTemplate, ExpenseCache.disabled(), ExpenseRollups.disabled(), new MerchantSuggestions(mongoTemplate));
+	}
+	
+	public ExpenseServiceImpl(ExpenseRepository repository, MongoTemplate mongoTemplate, ExpenseCache cache, ExpenseRollups rollups,
+			MerchantSuggestions merchants) {
+		this(repository, mongoTemplate, cache, rollups, merchants, SlowQueryLog.disabled());
+	}
+	
+	@Autowired
+	public ExpenseServiceImpl(ExpenseRepository repository, MongoTemplate mongoTemplate, ExpenseCache cache, ExpenseRollups rollups,
+			MerchantSuggestions merchants, SlowQueryLog slowQueries) {
 		this.repository = repository;
 		this.mongoTemplate = mongoTemplate;
+		this.cache = cache;
+		this.rollups = rollups;
+		this.merchants = merchants;
+		this.slowQueries = slowQueries;
 	}
 	
 	@Override
@@ -48,10 +105,364 @@ public class ExpenseServiceImpl implements ExpenseService {
 	@Override
 	public Iterable<Expense> listExpenses(Map<String,String> filters) throws OutOfBoundsException {
 
+		long start = System.nanoTime();
+		String shape = SlowQueryLog.shape(filters);
+		
+		int page = pageParam(filters);
+		int size = sizeParam(filters);
+		List<String> fields = Projection.parse(filters.remove("fields"));
+		String search = filters.remove("q");
+
+		// no filters, search or projection? - return the paged results
+		if (filters.isEmpty() && fields == null && search == null) {
+			// a page of no expenses needs no query, and can't be asked for as a page request
+			if (size == 0) {
+				return new ArrayList<>();
+			}
+			
+			List<Expense> contents;
+			try {
+				contents = repository.findAll(new PageRequest(page, size)).getContent();
+			}
+			catch (RuntimeException e) {
+				slowQueries.failed("listing", shape, System.nanoTime() - start, e);
+				throw e;
+			}
+			slowQueries.record(shape, page, size, System.nanoTime() - start, contents.size(), 
+					() -> explain(new Query().with(new PageRequest(page, size))));
+			return contents;
+		}
+		
+		// use the submitted filters to build a criteria query.  search results come most relevant first.
+		
+		Query query = search == null ? new Query() : new TextQuery(TextCriteria.forDefaultLanguage().matching(search)).sortByScore();
+		if (!filters.isEmpty()) {
+			query.addCriteria(CriteriaBuilder.build(filters));
+		}
+		if (size == 0) {
+			return new ArrayList<>();
+		}
+		query.with(new PageRequest(page, size));
+		Projection.apply(query, fields);
+		
+		List<Expense> contents;
+		try {
+			contents = mongoTemplate.find(query, Expense.class);
+		}
+		catch (RuntimeException e) {
+			slowQueries.failed("listing", shape, System.nanoTime() - start, e);
+			throw e;
+		}
+		slowQueries.record(shape, page, size, System.nanoTime() - start, contents.size(), () -> explain(query));
+		return contents;
+	}
+	
+	@Override
+	public CursorPage listExpenses(Map<String,String> filters, String cursor) throws OutOfBoundsException {
+
+		long start = System.nanoTime();
+		boolean seeking = cursor != null && cursor.length() > 0;
+		String shape = SlowQueryLog.shape(filters) + (seeking ? " after cursor" : "");
+		
+		int size = sizeParam(filters);
+		filters.remove("page");  // page numbers have no meaning with a cursor
+		List<String> fields = Projection.parse(filters.remove("fields"));
+		
+		List<Criteria> criteriaList = new ArrayList<>();
+		if (!filters.isEmpty()) {
+			criteriaList.add(CriteriaBuilder.build(filters));
+		}
+		
+		// seek past the last expense of the previous page instead of skipping over every earlier expense
+		if (seeking) {
+			criteriaList.add(Cursor.after(Cursor.decode(cursor)));
+		}
+		
+		Query query = new Query();
+		if (!criteriaList.isEmpty()) {
+			query.addCriteria(new Criteria().andOperator(criteriaList.toArray(new Criteria[criteriaList.size()])));
+		}
+		
+		// fetch one extra expense to find out whether there is a following page
+		query.with(new Sort(Sort.Direction.ASC, "datetime", "id"));
+		query.limit(size + 1);
+		// the next cursor is made from the datetime of the last expense
+		if (fields != null) {
+			Projection.apply(query, fields).fields().include("datetime");
+		}
+		
+		// a page of no expenses has no last expense to make a next cursor from
+		if (size == 0) {
+			return new CursorPage(new ArrayList<>(), null);
+		}
+		
+		List<Expense> contents;
+		try {
+			contents = mongoTemplate.find(query, Expense.class);
+		}
+		catch (RuntimeException e) {
+			slowQueries.failed("listing", shape, System.nanoTime() - start, e);
+			throw e;
+		}
+		slowQueries.record(shape, 0, size, System.nanoTime() - start, contents.size(), () -> explain(query));
+		
+		String next = null;
+		if (contents.size() > size) {
+			contents = contents.subList(0, size);
+			next = Cursor.encode(contents.get(size - 1));
+		}
+		
+		// a datetime read only for the cursor is not returned
+		if (fields != null && !fields.contains("datetime")) {
+			for (Expense expense : contents) {
+				expense.setDatetime(null);
+			}
+		}
+		
+		return new CursorPage(contents, next);
+	}
+	
+	@Override
+	public ExpenseCount countExpenses(Map<String,String> filters, String mode) throws OutOfBoundsException {
+		
+		if (mode == null || "none".equals(mode)) {
+			return null;
+		}
+		
+		if (!"exact".equals(mode) && !"estimate".equals(mode)) {
+			throw new OutOfBoundsException("Expense count must be one of 'exact', 'estimate' or 'none'.");
+		}
+		
+		// the whole result set is counted, so paging parameters are not filters
+		filters.remove("page");
+		filters.remove("size");
+		
+		long start = System.nanoTime();
+		String shape = SlowQueryLog.shape(filters);
+		Query query = filters.isEmpty() ? new Query() : new Query(CriteriaBuilder.build(filters));
+		
+		Long count;
+		try {
+			if (filters.isEmpty()) {
+				// the collection keeps its document count, so an unfiltered count reads no expenses
+				count = repository.count();
+			}
+			else if ("exact".equals(mode)) {
+				count = repository.countUpTo(query, 0, EXACT_COUNT_MAX_TIME_MS);
+			}
+			else {
+				count = repository.countUpTo(query, ESTIMATE_COUNT_LIMIT, ESTIMATE_COUNT_MAX_TIME_MS);
+			}
+		}
+		catch (RuntimeException e) {
+			slowQueries.failed("count", shape, System.nanoTime() - start, e);
+			throw e;
+		}
+		slowQueries.recordCount(shape, mode, System.nanoTime() - start, count, () -> explain(query));
+		
+		if (count == null) {
+			return null;
+		}
+		return new ExpenseCount(count, "estimate".equals(mode) && !filters.isEmpty() && count >= ESTIMATE_COUNT_LIMIT);
+	}
+	
+	@Override
+	public List<String> suggestMerchants(String prefix, int limit) throws OutOfBoundsException {
+		
+		// enforce arbitrary suggestion limits
+		if (limit < 1 || limit > 100) {
+			throw new OutOfBoundsException("Merchant suggestion limit must be between 1 and 100.");
+		}
+		
+		return merchants.suggest(prefix, limit);
+	}
+	
+	@Override
+	public CloseableIterator<Expense> streamExpenses(Map<String,String> filters) throws OutOfBoundsException {
+		
+		// the whole result set is streamed, so paging parameters are not filters
+		filters.remove("page");
+		filters.remove("size");
+		List<String> fields = Projection.parse(filters.remove("fields"));
+		
+		Query query = filters.isEmpty() ? new Query() : new Query(CriteriaBuilder.build(filters));
+		Projection.apply(query, fields);
+		
+		return mongoTemplate.stream(query, Expense.class);
+	}
+	
+	@Override
+	public List<ExpenseSummary> summarizeExpenses(Map<String,String> filters) throws OutOfBoundsException {
+		
+		// the whole result set is summarized, so paging parameters are not filters
+		filters.remove("page");
+		filters.remove("size");
+		
+		List<String> groups = summaryGroups(filters.remove("groupBy"));
+		
+		// the rollup buckets answer merchant and status filters without reading any expenses, once the rollup is complete
+		if (rollups.isReady() && ROLLUP_FILTERS.containsAll(filters.keySet())) {
+			return rollups.summarize(filters, groups);
+		}
+		
+		// a month is grouped by its year and month number
+		List<String> keys = new ArrayList<>();
+		for (String group : groups) {
+			if ("month".equals(group)) {
+				keys.add("year");
+				keys.add("month");
+			}
+			else {
+				keys.add(group);
+			}
+		}
+		
+		List<AggregationOperation> pipeline = new ArrayList<>();
+		if (!filters.isEmpty()) {
+			pipeline.add(Aggregation.match(CriteriaBuilder.build(filters)));
+		}
+		pipeline.add(Aggregation.project("merchant", "status", "totalValue")
+				.and("datetime").extractYear().as("year")
+				.and("datetime").extractMonth().as("month"));
+		pipeline.add(Aggregation.group(keys.toArray(new String[keys.size()])).sum("totalValue").as("total").count().as("count"));
+		pipeline.add(Aggregation.sort(Sort.Direction.ASC, keys.toArray(new String[keys.size()])));
+		
+		AggregationResults<DBObject> results = mongoTemplate.aggregate(Aggregation.newAggregation(pipeline), Expense.class, DBObject.class);
+		
+		List<ExpenseSummary> summaries = new ArrayList<>();
+		for (DBObject result : results) {
+			// grouping by a single key makes the key itself the id, otherwise the id holds each key
+			Object id = result.get("_id");
+			Map<String,Object> key = new HashMap<>();
+			if (keys.size() == 1) {
+				key.put(keys.get(0), id);
+			}
+			else {
+				for (String k : keys) {
+					key.put(k, ((DBObject) id).get(k));
+				}
+			}
+			
+			ExpenseSummary summary = new ExpenseSummary();
+			summary.setMerchant((String) key.get("merchant"));
+			summary.setStatus((String) key.get("status"));
+			if (key.get("year") != null) {
+				summary.setMonth(String.format("%04d-%02d", ((Number) key.get("year")).intValue(), ((Number) key.get("month")).intValue()));
+			}
+			Number total = (Number) result.get("total");
+			summary.setTotal(BigDecimal.valueOf(total == null ? 0 : total.doubleValue()).setScale(2, RoundingMode.HALF_UP));
+			summary.setCount(((Number) result.get("count")).longValue());
+			summaries.add(summary);
+		}
+		return summaries;
+	}
+	
+	// the summary groups requested, in the order given, or every group when none are requested
+	private List<String> summaryGroups(String groupBy) throws OutOfBoundsException {
+		if (groupBy == null || groupBy.trim().isEmpty()) {
+			return SUMMARY_GROUPS;
+		}
+		
+		List<String> groups = new ArrayList<>();
+		for (String group : groupBy.split(",")) {
+			group = group.trim();
+			if (!SUMMARY_GROUPS.contains(group)) {
+				throw new OutOfBoundsException("Unable to group summary by [" + group + "] (must be one of " + SUMMARY_GROUPS + ")");
+			}
+			if (!groups.contains(group)) {
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+	
+	@Override
+	public TransitionResult updateExpenseStatus(String status, List<String> ids, Map<String,String> filters) throws ValidationException,OutOfBoundsException {
+		
+		if (!"new".equals(status) && !"reimbursed".equals(status)) {
+			throw new ValidationException("Expense status is invalid (must be either 'new' or 'reimbursed')");
+		}
+		
+		// business rule: only 'new' expenses can change, whichever way they are selected
+		Criteria isNew = Criteria.where("status").is("new");
+		
+		// every matching expense changes, so paging parameters are not filters
+		Map<String,String> selection = filters == null ? new HashMap<>() : new HashMap<>(filters);
+		selection.remove("page");
+		selection.remove("size");
+		
+		if (ids == null || ids.isEmpty()) {
+			if (selection.isEmpty()) {
+				throw new ValidationException("Expense ids or filters are required.");
+			}
+			
+			Query query = new Query(CriteriaBuilder.build(selection)).addCriteria(isNew);
+			Update update = touch(Update.update("status", status));
+			String mark = rollups.mark(update);
+			
+			long updated = repository.updateAll(query, update);
+			rollups.transition(mark, "new", status);
+			
+			// there's no telling which expenses the filters matched
+			cache.invalidateAll();
+			return new TransitionResult(updated, null);
+		}
+		
+		// enforce arbitrary batch size limits
+		if (ids.size() > 10000) {
+			throw new ValidationException("Batch of expense ids must contain between 1 and 10,000 ids.");
+		}
+		
+		// find which of the requested expenses can change so the rest can be reported as skipped.  filters given with ids
+		// narrow them down, so an expense they don't match is skipped too.
+		Query eligibleQuery = selected(selection).addCriteria(Criteria.where("id").in(ids)).addCriteria(isNew);
+		eligibleQuery.fields().include("id");
+		
+		Set<String> eligible = new HashSet<>();
+		for (Expense expense : mongoTemplate.find(eligibleQuery, Expense.class)) {
+			eligible.add(expense.getId());
+		}
+		
+		List<String> skipped = new ArrayList<>();
+		for (String id : ids) {
+			if (!eligible.contains(id)) {
+				skipped.add(id);
+			}
+		}
+		
+		if (eligible.isEmpty()) {
+			return new TransitionResult(0, skipped);
+		}
+		
+		// the status and filters are checked again by the update in case an expense changed since it was found
+		Query query = selected(selection).addCriteria(Criteria.where("id").in(eligible)).addCriteria(isNew);
+		Update update = touch(Update.update("status", status));
+		String mark = rollups.mark(update);
+		
+		long updated = repository.updateAll(query, update);
+		rollups.transition(mark, "new", status);
+		
+		cache.invalidate(eligible);
+		return new TransitionResult(updated, skipped);
+	}
+	
+	// the plan the database chooses for a listing query, and what running it examined
+	private DBObject explain(Query query) {
+		QueryMapper mapper = new QueryMapper(mongoTemplate.getConverter());
+		MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getPersistentEntity(Expense.class);
+		
+		DBObject mappedQuery = mapper.getMappedObject(query.getQueryObject(), entity);
+		DBObject mappedFields = query.getFieldsObject() == null ? null : mapper.getMappedFields(query.getFieldsObject(), entity);
+		DBObject mappedSort = query.getSortObject() == null ? null : mapper.getMappedSort(query.getSortObject(), entity);
+		
+		return mongoTemplate.execute(Expense.class, collection -> 
+				collection.find(mappedQuery, mappedFields).sort(mappedSort).skip(query.getSkip()).limit(query.getLimit()).explain());
+	}
+	
+	// remove and check the page number paging parameter
+	private static int pageParam(Map<String,String> filters) throws OutOfBoundsException {
 		int page = 0;
-		int size = 1000;  // arbitrary default size
 		
-		// look for paging parameters
 		if (filters.containsKey("page")) {
 			page = Integer.parseInt(filters.get("page"));
 			
@@ -62,6 +473,18 @@ public class ExpenseServiceImpl implements ExpenseService {
 			filters.remove("page");
 		}
 		
+		return page;
+	}
+	
+	// a query for the expenses matching the filters, or every expense when there are none
+	private static Query selected(Map<String,String> filters) throws OutOfBoundsException {
+		return filters.isEmpty() ? new Query() : new Query(CriteriaBuilder.build(filters));
+	}
+	
+	// remove and check the page size paging parameter
+	private static int sizeParam(Map<String,String> filters) throws OutOfBoundsException {
+		int size = 1000;  // arbitrary default size
+		
 		if (filters.containsKey("size")) {
 			size = Integer.parseInt(filters.get("size"));
 			
@@ -72,23 +495,17 @@ public class ExpenseServiceImpl implements ExpenseService {
 			
 			filters.remove("size");
 		}
-
-		// no filters? - return the paged results
-		if (filters.isEmpty()) {
-			return repository.findAll(new PageRequest(page, size)).getContent();
-		}
-		
-		// use the submitted filters to build a criteria query
 		
-		Query query = new Query(CriteriaBuilder.build(filters));
-		query.limit(size);
-		query.skip(page);
-		
-		return mongoTemplate.find(query, Expense.class);
+		return size;
 	}
 	
 	@Override
 	public void deleteExpense(String id) throws NotFoundException, ValidationException {
+		deleteExpense(id, null);
+	}
+	
+	@Override
+	public void deleteExpense(String id, Long expectedVersion) throws NotFoundException, ValidationException {
 		if (id == null || id.length() < 1) {
     		throw new NotFoundException("Expense not found for id [" + id + "]");
 		}
@@ -103,7 +520,24 @@ public class ExpenseServiceImpl implements ExpenseService {
 			throw new ValidationException("Reimbursed expense cannot be deleted.");
 		}
 		
-		repository.delete(id);
+		if (expectedVersion == null) {
+			repository.delete(id);
+			cache.invalidate(id);
+			rollups.remove(savedExpense);
+			merchants.remove(savedExpense);
+			return;
+		}
+		
+		checkVersion(savedExpense, expectedVersion);
+		
+		// the version is checked again by the delete in case the expense changed since it was found
+		Query query = new Query(Criteria.where("id").is(id).andOperator(VersionCriteria.is(expectedVersion)));
+		if (mongoTemplate.findAndRemove(query, Expense.class) == null) {
+			throw new VersionConflictException("Expense [" + id + "] has been changed since version [" + expectedVersion + "].");
+		}
+		cache.invalidate(id);
+		rollups.remove(savedExpense);
+		merchants.remove(savedExpense);
 	}
 	
 	@Override
@@ -113,7 +547,42 @@ public class ExpenseServiceImpl implements ExpenseService {
     		throw new NotFoundException("Expense not found for id [" + id + "]");
 		}
 		
-		Expense result = repository.findOne(id);
+		Expense result = cache.get(id);
+		if (result != null) {
+			return result;
+		}
+		
+		long generation = cache.generation();
+		result = repository.findOne(id);
+		
+		if (result == null) { 
+    		throw new NotFoundException("Expense not found for id [" + id + "]");
+		}
+		
+		cache.put(id, result, generation);
+		return result;
+	}
+	
+	@Override
+	public Expense findExpense(String id, String fields) throws NotFoundException, OutOfBoundsException {
+		
+		List<String> projection = Projection.parse(fields);
+		if (projection == null) {
+			return findExpense(id);
+		}
+		
+		if (id == null || id.length() < 1) {
+    		throw new NotFoundException("Expense not found for id [" + id + "]");
+		}
+		
+		// a cached expense is already here in full, so it is cut down in place of reading part of it again
+		Expense cached = cache.get(id);
+		if (cached != null) {
+			return Projection.of(cached, projection);
+		}
+		
+		// part of an expense is never cached
+		Expense result = mongoTemplate.findOne(Projection.apply(new Query(Criteria.where("id").is(id)), projection), Expense.class);
 		
 		if (result == null) { 
     		throw new NotFoundException("Expense not found for id [" + id + "]");
@@ -132,15 +601,149 @@ public class ExpenseServiceImpl implements ExpenseService {
 		if (expense.getStatus() == null) {
 			expense.setStatus("new");
 		}
-		return repository.save(expense).getId();
+		expense.setLastModified(new Date());
+		
+		// a new id can't have been cached, so there is nothing to invalidate
+		String id = repository.save(expense).getId();
+		rollups.add(expense);
+		merchants.add(expense);
+		return id;
+	}
+	
+	@Override
+	public List<BatchResult> createExpenses(List<Expense> expenses) throws ValidationException {
+		
+		// enforce arbitrary batch size limits
+		if (expenses == null || expenses.size() < 1 || expenses.size() > 10000) {
+			throw new ValidationException("Batch of expenses must contain between 1 and 10,000 expenses.");
+		}
+		
+		List<BatchResult> results = new ArrayList<>(expenses.size());
+		List<Integer> positions = new ArrayList<>(expenses.size());
+		List<Expense> inserted = new ArrayList<>(expenses.size());
+		
+		for (Expense expense : expenses) {
+			try {
+				ExpenseValidator.validate(expense);
+			} catch (ValidationException e) {
+				results.add(BatchResult.error(e.getMessage()));
+				continue;
+			}
+			
+			// ids are assigned up front so they can be reported without reading the inserted expenses back
+			expense.setId(ObjectId.get().toString());
+			expense.setVersion(0L);
+			expense.setLastModified(new Date());
+			// business rule: all expenses start in the 'new' state if not otherwise specified
+			if (expense.getStatus() == null) {
+				expense.setStatus("new");
+			}
+			
+			inserted.add(expense);
+			positions.add(results.size());
+			results.add(BatchResult.id(expense.getId()));
+		}
+		
+		if (inserted.isEmpty()) {
+			return results;
+		}
+		
+		// the insert carries on past failures and reports each one by its position in the batch inserted
+		for (Map.Entry<Integer,String> error : repository.insertAll(inserted).entrySet()) {
+			results.set(positions.get(error.getKey()), BatchResult.error(error.getValue()));
+		}
+		
+		for (int i = 0; i < inserted.size(); i++) {
+			if (!results.get(positions.get(i)).isError()) {
+				rollups.add(inserted.get(i));
+				merchants.add(inserted.get(i));
+			}
+		}
+		
+		return results;
 	}
 	
 	@Override
 	public String updateExpense(String id, Expense expense) throws NotFoundException,ValidationException,ServiceException {
+		return updateExpense(id, expense, null);
+	}
+	
+	@Override
+	public String updateExpense(String id, Expense expense, Long expectedVersion) throws NotFoundException,ValidationException,ServiceException {
 		if (id == null || id.length() < 1) {
     		throw new NotFoundException("Expense not found for id [" + id + "]");
 		}
 		
+		ExpenseValidator.validate(id, expense);
+		
+		Update update = UpdateBuilder.build(expense);
+		
+		if (expense.getComments() == null) {
+			if (update.getUpdateObject().keySet().isEmpty()) {
+				// nothing to write, but still report missing, reimbursed and changed expenses
+				Expense savedExpense = checkUpdatable(id);
+				checkVersion(savedExpense, expectedVersion);
+				return savedExpense.getId();
+			}
+			
+			// business rule: reimbursed expenses cannot be updated.  the rule is part of the update query so that the check and
+			// the write happen together.  the expense is returned as it was before the update.
+			Expense updated = mongoTemplate.findAndModify(updatableQuery(id, expectedVersion), touch(update), Expense.class);
+			if (updated == null) {
+				// find out why the update matched nothing
+				checkVersion(checkUpdatable(id), expectedVersion);
+				throw new ServiceException("Error updating expense.", new ConcurrentModificationException("Expense [" + id + "] changed during update."));
+			}
+			cache.invalidate(id);
+			rollups.update(updated, expense);
+			merchants.update(updated, expense);
+			return updated.getId();
+		}
+		
+		touch(update);
+		
+		// business rule: comments can only be added to.  there is no update operator to append to a string, so the comments
+		// are written only if they have not changed since they were read, and read again if they have.
+		for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+			Expense savedExpense = checkUpdatable(id);
+			checkVersion(savedExpense, expectedVersion);
+			
+			String savedComments = savedExpense.getComments();
+			update.set("comments", savedComments == null ? expense.getComments() : savedComments + "\n" + expense.getComments());
+			
+			Query query = updatableQuery(id, expectedVersion).addCriteria(Criteria.where("comments").is(savedComments));
+			
+			Expense updated = mongoTemplate.findAndModify(query, update, Expense.class);
+			if (updated != null) {
+				cache.invalidate(id);
+				rollups.update(updated, expense);
+				merchants.update(updated, expense);
+				return updated.getId();
+			}
+		}
+		
+		throw new ServiceException("Error updating expense.", new ConcurrentModificationException("Expense [" + id + "] is being updated concurrently."));
+	}
+	
+	// every change to an expense increments its version and records when it happened
+	private static Update touch(Update update) {
+		return update.inc("version", 1).set("lastModified", new Date());
+	}
+	
+	// query for an expense that is not reimbursed and, if a version is expected, still at that version
+	private static Query updatableQuery(String id, Long expectedVersion) {
+		Query query = new Query(Criteria.where("id").is(id).and("status").ne("reimbursed"));
+		if (expectedVersion != null) {
+			query.addCriteria(VersionCriteria.is(expectedVersion));
+		}
+		
+		// just enough of the expense to move it between rollup buckets
+		query.fields().include("id").include("merchant").include("status").include("datetime").include("total");
+		return query;
+	}
+	
+	// find an expense that is about to be updated, failing if it doesn't exist or is reimbursed
+	private Expense checkUpdatable(String id) throws NotFoundException, ValidationException {
 		Expense savedExpense = repository.findOne(id);
 		if (savedExpense == null) {
     		throw new NotFoundException("Expense not found for id [" + id + "]");
@@ -150,22 +753,59 @@ public class ExpenseServiceImpl implements ExpenseService {
 			throw new ValidationException("Reimbursed expense cannot be updated.");
 		}
 		
-		ExpenseValidator.validate(id, expense);
+		return savedExpense;
+	}
+	
+	// fail if a version is expected and the expense is not at that version
+	private static void checkVersion(Expense savedExpense, Long expectedVersion) throws VersionConflictException {
+		if (expectedVersion != null && expectedVersion.longValue() != VersionCriteria.of(savedExpense)) {
+			throw new VersionConflictException("Expense [" + savedExpense.getId() + "] has been changed since version [" + expectedVersion + "].");
+		}
+	}
+	
+	// a small helper class for mapping a sparse expense to db update operators.  id and comments are never set directly.
+	public static class UpdateBuilder {
 		
-		// business rule: comments can only be added to.
-		if (savedExpense.getComments() != null && expense.getComments() != null) {
-			expense.setComments(savedExpense.getComments() + "\n" + expense.getComments());
+		public static Update build(Expense expense) {
+			Update update = new Update();
+			
+			if (expense.getMerchant() != null) {
+				update.set("merchant", expense.getMerchant());
+			}
+			
+			if (expense.getTotal() != null) {
+				update.set("total", expense.getTotal());
+				update.set("totalValue", expense.getTotal().doubleValue());
+			}
+			
+			if (expense.getDatetime() != null) {
+				update.set("datetime", expense.getDatetime());
+			}
+			
+			if (expense.getStatus() != null) {
+				update.set("status", expense.getStatus());
+			}
+			
+			return update;
 		}
+	}
+	
+	// a small helper class for matching expense versions.  expenses saved before versioning was added have no version, which
+	// counts as version 0.
+	public static class VersionCriteria {
 		
-		try {
-			NullAwareBeanUtils.copy(savedExpense,  expense);
-		} catch (IllegalArgumentException | IllegalAccessException | NoSuchFieldException | SecurityException | InvocationTargetException e) {
-			throw new ServiceException("Error updating expense.", e);
+		public static long of(Expense expense) {
+			return expense.getVersion() == null ? 0 : expense.getVersion();
 		}
 		
-		return repository.save(savedExpense).getId();
+		public static Criteria is(long version) {
+			if (version == 0) {
+				return Criteria.where("version").in(0L, null);
+			}
+			return Criteria.where("version").is(version);
+		}
 	}
-
+	
 	// a small helper class for mapping API filters to db query criteria
 	public static class CriteriaBuilder {
 		
@@ -178,25 +818,144 @@ public class ExpenseServiceImpl implements ExpenseService {
 				
 				// handle datetime filter
 				if ("datetime".equals(key)) {
-					try {
-						Date dateFilter = SDF.parse((String)value);
-						
-						// deal with SDF parsing the date in the server local (or JVM local) time zone
-						long defaultTimeZoneOffset = TimeZone.getDefault().getOffset(dateFilter.getTime());
-						GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
-						cal.setTimeInMillis(dateFilter.getTime() + defaultTimeZoneOffset);
-						
-						value = cal.getTime();
-						
-					} catch (ParseException e) {
-						throw new OutOfBoundsException("Unable to parse requested date filter [" + filters.get(key) + "]");
-					}
+					value = parseDatetime((String)value);
 				}
 				
-				criteriaList.add(Criteria.where(key).is(value));
+				// handle range filters.  ranges include their lower bound and exclude their upper bound.
+				if ("datetimeFrom".equals(key)) {
+					criteriaList.add(Criteria.where("datetime").gte(parseDatetime((String)value)));
+				}
+				else if ("datetimeTo".equals(key)) {
+					criteriaList.add(Criteria.where("datetime").lt(parseDatetime((String)value)));
+				}
+				else if ("totalMin".equals(key)) {
+					criteriaList.add(Criteria.where("totalValue").gte(parseTotal((String)value)));
+				}
+				else if ("totalMax".equals(key)) {
+					criteriaList.add(Criteria.where("totalValue").lt(parseTotal((String)value)));
+				}
+				// handle search, which matches words in the merchant or comments through the text index
+				else if ("q".equals(key)) {
+					criteriaList.add(Criteria.where("$text").is(new BasicDBObject("$search", value)));
+				}
+				else {
+					criteriaList.add(Criteria.where(key).is(value));
+				}
 			}
 			
 			return new Criteria().andOperator(criteriaList.toArray(new Criteria[criteriaList.size()]));
 		}
+		
+		// parse a total filter as a number comparable with the stored totalValue
+		public static double parseTotal(String value) throws OutOfBoundsException {
+			try {
+				return new BigDecimal(value).doubleValue();
+			} catch (NumberFormatException | NullPointerException e) {
+				throw new OutOfBoundsException("Unable to parse requested total filter [" + value + "]");
+			}
+		}
+		
+		// parse a date filter as a UTC instant.  the formatter is immutable, so it is safe to share between request threads.
+		public static Date parseDatetime(String value) throws OutOfBoundsException {
+			try {
+				return Date.from(Instant.from(DATETIME_FORMAT.parse(value)));
+			} catch (DateTimeException e) {
+				throw new OutOfBoundsException("Unable to parse requested date filter [" + value + "]");
+			}
+		}
+	}
+
+	// a small helper class for mapping a 'fields' parameter to a db field projection.  the id, version and last modified time
+	// identify an expense and make up its ETag, so they are always included.
+	public static class Projection {
+		
+		private static final List<String> FIELDS = Arrays.asList("id", "merchant", "total", "datetime", "comments", "status", "version", "lastModified");
+		
+		// the comma separated fields to include, or null if every field is included
+		public static List<String> parse(String fields) throws OutOfBoundsException {
+			if (fields == null || fields.trim().isEmpty()) {
+				return null;
+			}
+			
+			List<String> projection = new ArrayList<>();
+			for (String field : fields.split(",")) {
+				field = field.trim();
+				if (!FIELDS.contains(field)) {
+					throw new OutOfBoundsException("Unable to include requested field [" + field + "] (must be one of " + FIELDS + ")");
+				}
+				projection.add(field);
+			}
+			return projection;
+		}
+		
+		public static Query apply(Query query, List<String> fields) {
+			if (fields == null) {
+				return query;
+			}
+			
+			for (String field : fields) {
+				query.fields().include(field);
+			}
+			query.fields().include("version").include("lastModified");
+			return query;
+		}
+		
+		// a copy of a whole expense with only the included fields
+		public static Expense of(Expense expense, List<String> fields) {
+			Expense projected = new Expense();
+			projected.setId(expense.getId());
+			projected.setVersion(expense.getVersion());
+			projected.setLastModified(expense.getLastModified());
+			
+			for (String field : fields) {
+				switch (field) {
+				case "merchant": projected.setMerchant(expense.getMerchant()); break;
+				case "total": projected.setTotal(expense.getTotal()); break;
+				case "datetime": projected.setDatetime(expense.getDatetime()); break;
+				case "comments": projected.setComments(expense.getComments()); break;
+				case "status": projected.setStatus(expense.getStatus()); break;
+				}
+			}
+			return projected;
+		}
+	}
+
+	// a small helper class for encoding keyset paging cursors.  a cursor is the datetime and id of the last expense on a page.
+	// an expense without a datetime has an empty datetime in its cursor; those expenses sort first, as the database sorts them.
+	public static class Cursor {
+		
+		public static String encode(Expense expense) {
+			String key = (expense.getDatetime() == null ? "" : expense.getDatetime().getTime()) + ":" + expense.getId();
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		public static Expense decode(String cursor) throws OutOfBoundsException {
+			try {
+				String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+				int separator = key.indexOf(':');
+				
+				Expense last = new Expense();
+				if (separator > 0) {
+					last.setDatetime(new Date(Long.parseLong(key.substring(0, separator))));
+				}
+				last.setId(key.substring(separator + 1));
+				return last;
+				
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				throw new OutOfBoundsException("Unable to parse requested cursor [" + cursor + "]");
+			}
+		}
+		
+		// criteria for the expenses that sort after the given expense.  every expense with a datetime sorts after one without.
+		public static Criteria after(Expense last) {
+			if (last.getDatetime() == null) {
+				return new Criteria().orOperator(
+						Criteria.where("datetime").ne(null),
+						new Criteria().andOperator(Criteria.where("datetime").is(null), Criteria.where("id").gt(last.getId())));
+			}
+			return new Criteria().orOperator(
+					Criteria.where("datetime").gt(last.getDatetime()),
+					new Criteria().andOperator(Criteria.where("datetime").is(last.getDatetime()), Criteria.where("id").gt(last.getId())));
+		}
 	}
 }
@@ -0,0 +1,318 @@
+package expense.api.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import expense.api.model.Expense;
+
+// An in-memory index of merchant names for autocompletion, with the number of expenses for each merchant.  Names are kept in
+// a sorted map by their lower case form, so the names starting with a prefix are a range of the map and suggestions never
+// touch the database.  The index is built from the expenses at startup and kept current as expenses change; changes made
+// by other instances of the application are only picked up when this one restarts.
+//
+// The ranges of short prefixes hold most merchants, so the best ranked merchants of each prefix of up to two characters
+// are kept ready in rank order, and updated in place as expenses change.  Only a bounded number of prefixes are kept ready;
+// longer prefixes, whose ranges are short, and short ones past the bound are ranked when they are asked for.
+@Component
+@Order(3)
+public class MerchantSuggestions implements CommandLineRunner {
+
+	// most frequent first, then alphabetically
+	private static final Comparator<Merchant> RANK = Comparator.comparingLong((Merchant m) -> m.count).reversed()
+			.thenComparing(m -> m.key);
+
+	// the longest prefix whose best merchants are kept ready, and how many of them are kept
+	private static final int SHORT_PREFIX = 2;
+	private static final int KEPT = 100;
+	// the most short prefixes whose best merchants are kept ready.  enough for every pair of letters and digits.
+	private static final int KEPT_PREFIXES = 2048;
+
+	private final Logger log = LoggerFactory.getLogger(MerchantSuggestions.class);
+
+	private MongoTemplate mongoTemplate;
+
+	private volatile Index index = new Index(new ConcurrentSkipListMap<>());
+
+	// changes are made holding the read lock, so they can be made together.  a rebuild holds the write lock to swap in the
+	// rebuilt index with the changes made while it was rebuilt.
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// the changes made since the running rebuild started by expense id, or null when there is no rebuild running, and the
+	// id of the last expense the rebuild has counted.  both are guarded by the pending changes.
+	private Map<String,Change> pending;
+	private String scanned;
+
+	@Autowired
+	public MerchantSuggestions(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	// the most frequent merchant names starting with the prefix, ignoring case
+	public List<String> suggest(String prefix, int limit) {
+		String from = prefix == null ? "" : prefix.toLowerCase(Locale.ROOT);
+		Index current = index;
+
+		List<Merchant> ranked = from.length() <= SHORT_PREFIX && limit <= KEPT ? current.best(from) : rank(current.merchants, from, limit);
+
+		List<String> names = new ArrayList<>(Math.min(limit, ranked.size()));
+		for (Merchant merchant : ranked) {
+			if (names.size() == limit) {
+				break;
+			}
+			names.add(merchant.name);
+		}
+		return names;
+	}
+
+	// count a new expense
+	public void add(Expense expense) {
+		change(expense.getId(), null, expense.getMerchant());
+	}
+
+	// stop counting a deleted expense
+	public void remove(Expense expense) {
+		change(expense.getId(), expense.getMerchant(), null);
+	}
+
+	// move an expense to its new merchant after a sparse update.  the saved expense must hold the merchant from before the update.
+	public void update(Expense saved, Expense changes) {
+		if (changes.getMerchant() != null && !changes.getMerchant().equals(saved.getMerchant())) {
+			change(saved.getId(), saved.getMerchant(), changes.getMerchant());
+		}
+	}
+
+	// recount every merchant from the expenses, in id order.  the first change made to an expense while the merchants are
+	// counted notes whether the count had already passed the expense, and the count skips an expense that has changed
+	// before it gets there.  once counted, each changed expense is taken back out of the count if the count passed it, and
+	// counted again with its merchant after its last change, so no expense is lost or counted twice however often it
+	// changed.
+	public int rebuild() {
+		Date start = new Date();
+		Query query = new Query(Criteria.where("merchant").exists(true).and("id").lt(new ObjectId(start)));
+		query.with(new Sort("id"));
+		query.fields().include("merchant");
+
+		lock.writeLock().lock();
+		try {
+			pending = new HashMap<>();
+			scanned = null;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+
+		Index counted = new Index(new ConcurrentSkipListMap<>());
+		Map<String,Change> changes = pending;
+		try {
+			try (CloseableIterator<Expense> expenses = mongoTemplate.stream(query, Expense.class)) {
+				while (expenses.hasNext()) {
+					Expense expense = expenses.next();
+					synchronized (changes) {
+						if (!changes.containsKey(expense.getId())) {
+							counted.add(expense.getMerchant(), 1);
+						}
+						scanned = expense.getId();
+					}
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			lock.writeLock().lock();
+			try {
+				pending = null;
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			for (Change change : changes.values()) {
+				if (change.passed) {
+					counted.add(change.before, -1);
+				}
+				counted.add(change.after, 1);
+			}
+			pending = null;
+			index = counted;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		return counted.merchants.size();
+	}
+
+	@Override
+	public void run(String... args) {
+		try {
+			log.info("[" + rebuild() + "] merchants indexed for suggestions.");
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to index merchants; suggestions will only include merchants added from now on.", e);
+		}
+	}
+
+	// move an expense from one merchant to another, where a null merchant is no expense
+	private void change(String id, String before, String after) {
+		lock.readLock().lock();
+		try {
+			index.add(before, -1);
+			index.add(after, 1);
+
+			Map<String,Change> changes = pending;
+			if (changes != null && id != null) {
+				synchronized (changes) {
+					Change first = changes.get(id);
+					changes.put(id, first == null ? new Change(before, after, scanned != null && scanned.compareTo(id) >= 0)
+							: new Change(first.before, after, first.passed));
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// the best ranked merchants starting with the prefix, at most limit of them
+	private static List<Merchant> rank(ConcurrentSkipListMap<String,Merchant> merchants, String prefix, int limit) {
+		// keep the best so far with the worst of them on top, ready to be replaced
+		PriorityQueue<Merchant> best = new PriorityQueue<>(limit + 1, RANK.reversed());
+		for (Merchant merchant : merchants.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+			best.add(merchant);
+			if (best.size() > limit) {
+				best.poll();
+			}
+		}
+
+		List<Merchant> ranked = new ArrayList<>(best);
+		Collections.sort(ranked, RANK);
+		return ranked;
+	}
+
+	// the merchants by lower case name, and the best ranked merchants of each short prefix that has been asked for
+	private static class Index {
+		private final ConcurrentSkipListMap<String,Merchant> merchants;
+		// each list is either every merchant starting with the prefix, when there are fewer than KEPT, or the best KEPT of
+		// them.  lists are never changed, only replaced.
+		private final ConcurrentHashMap<String,List<Merchant>> best = new ConcurrentHashMap<>();
+
+		private Index(ConcurrentSkipListMap<String,Merchant> merchants) {
+			this.merchants = merchants;
+		}
+
+		private List<Merchant> best(String prefix) {
+			List<Merchant> ranked = best.get(prefix);
+			if (ranked != null) {
+				return ranked;
+			}
+			if (best.size() >= KEPT_PREFIXES) {
+				return rank(merchants, prefix, KEPT);
+			}
+			return best.computeIfAbsent(prefix, p -> Collections.unmodifiableList(rank(merchants, p, KEPT)));
+		}
+
+		// the most recent spelling of a name is the one suggested.  a merchant is dropped once it has no expenses left.
+		private void add(String name, long delta) {
+			if (name == null) {
+				return;
+			}
+
+			String key = name.toLowerCase(Locale.ROOT);
+			merchants.compute(key, (k, merchant) -> {
+				long count = (merchant == null ? 0 : merchant.count) + delta;
+				if (count <= 0) {
+					return null;
+				}
+				return new Merchant(k, delta > 0 || merchant == null ? name : merchant.name, count);
+			});
+
+			for (int length = 0; length <= Math.min(SHORT_PREFIX, key.length()); length++) {
+				// the merchant is read again in each list's own update, so that concurrent changes leave each list with the
+				// latest count
+				best.computeIfPresent(key.substring(0, length), (prefix, ranked) -> rerank(ranked, key, merchants.get(key)));
+			}
+		}
+
+		// a list of best merchants with one merchant changed, or null if the list has to be ranked again.  a merchant that
+		// moved up can only displace the last merchant of a full list, but a listed one that moved down may have fallen
+		// behind a merchant that isn't in the list.
+		private static List<Merchant> rerank(List<Merchant> ranked, String key, Merchant changed) {
+			List<Merchant> reranked = new ArrayList<>(ranked.size() + 1);
+			Merchant listed = null;
+			for (Merchant merchant : ranked) {
+				if (merchant.key.equals(key)) {
+					listed = merchant;
+				}
+				else {
+					reranked.add(merchant);
+				}
+			}
+
+			boolean full = ranked.size() >= KEPT;
+			if (listed != null && full && (changed == null || RANK.compare(changed, listed) > 0)) {
+				return null;
+			}
+
+			if (changed != null) {
+				int at = Collections.binarySearch(reranked, changed, RANK);
+				reranked.add(at < 0 ? -at - 1 : at, changed);
+			}
+			if (reranked.size() > KEPT) {
+				reranked.remove(KEPT);
+			}
+			return Collections.unmodifiableList(reranked);
+		}
+	}
+
+	// the changes made to an expense while the merchants were being counted: its merchant before the first of them, its
+	// merchant after the last of them, and whether the count had already passed the expense at the first of them
+	private static class Change {
+		private final String before;
+		private final String after;
+		private final boolean passed;
+
+		private Change(String before, String after, boolean passed) {
+			this.before = before;
+			this.after = after;
+			this.passed = passed;
+		}
+	}
+
+	private static class Merchant {
+		private final String key;
+		private final String name;
+		private final long count;
+
+		private Merchant(String key, String name, long count) {
+			this.key = key;
+			this.name = name;
+			this.count = count;
+		}
+	}
+}
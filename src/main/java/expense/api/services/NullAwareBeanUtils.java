@@ -1,63 +1,145 @@
 package expense.api.services;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 
 // A utility class to copy bean properties, ignoring null properties in the source.
 // Sorry to do this the hard way, but we're avoiding a dependency on Apache BeanUtils
+// Expense updates here are applied as $set operators rather than copied; the legacy com.services service copies its
+// sparse updates through this class by way of com.services.NullAwareBeanUtils.
 public class NullAwareBeanUtils {
 
+	// the properties of each class, with their getter and setter resolved the first time the class is copied
+	private static final ClassValue<Property[]> PROPERTIES = new ClassValue<Property[]>() {
+		@Override
+		protected Property[] computeValue(Class<?> clz) {
+			Field[] fields = clz.getDeclaredFields();
+
+			Property[] properties = new Property[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				properties[i] = new Property(fields[i].getName(), getter(clz, fields[i]), setter(clz, fields[i].getName()));
+			}
+			return properties;
+		}
+	};
+
+	// the setters of each class by property name, for copies between different classes
+	private static final ClassValue<ConcurrentHashMap<String,Accessor>> SETTERS = new ClassValue<ConcurrentHashMap<String,Accessor>>() {
+		@Override
+		protected ConcurrentHashMap<String,Accessor> computeValue(Class<?> clz) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
 	public static void copy(Object dest, Object src) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, SecurityException, InvocationTargetException {
-		for (Field f : src.getClass().getDeclaredFields()) {
-			Method getterMethod = getterMethod(src.getClass(), f);
-			
+		boolean sameClass = dest.getClass() == src.getClass();
+
+		for (Property property : PROPERTIES.get(src.getClass())) {
+
 			// A little trick from the JPA internals - we call getter and setter methods instead of calling field.get() or field.set() directly
-			// because this avoids issues with visibility of declared fields.  
-			
-			Object value = getterMethod.invoke(src);
-			
+			// because this avoids issues with visibility of declared fields.
+
+			Object value;
+			try {
+				value = property.getter.handle().invokeExact(src);
+			} catch (NoSuchFieldException | IllegalAccessException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+
 			if (value != null) {
-				Method setter = setterMethod(dest.getClass(), f);
-				setter.invoke(dest, value);
+				Accessor setter = sameClass ? property.setter : setter(dest.getClass(), property.name);
+				try {
+					setter.handle().invokeExact(dest, value);
+				} catch (NoSuchFieldException | IllegalAccessException e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new InvocationTargetException(t);
+				}
 			}
 		}
 	}
 
-	// get the setter method for the specified field in the class.
-	private static Method setterMethod(Class<?> clz, Field f) throws NoSuchFieldException {
-		String setterMethodName = setterMethodName(f);
-		
-		for (Method meth : clz.getDeclaredMethods()) {
-			if (meth.getName().equals(setterMethodName)) {
-				return meth;
-			}
+	// get the setter method for the named property in the class, resolving it once.
+	private static Accessor setter(Class<?> clz, String name) {
+		ConcurrentHashMap<String,Accessor> setters = SETTERS.get(clz);
+
+		Accessor setter = setters.get(name);
+		if (setter == null) {
+			setter = setters.computeIfAbsent(name, n -> resolve(clz, setterMethodName(n), MethodType.methodType(void.class, Object.class, Object.class)));
 		}
-		
-		throw new NoSuchFieldException();
+		return setter;
 	}
-	
+
 	// get the getter method for the specified field in the class.
-	private static Method getterMethod(Class<?> clz, Field f) throws NoSuchFieldException {
-		String getterMethodName = getterMethodName(f);
-		
-		// naively select the first declared method with a name match instead of a full method signature match.
-		// a poor idea for classes in general but almost always fine for data storage POJOs.
+	private static Accessor getter(Class<?> clz, Field f) {
+		return resolve(clz, getterMethodName(f.getName()), MethodType.methodType(Object.class, Object.class));
+	}
+
+	// naively select the first declared method with a name match instead of a full method signature match.
+	// a poor idea for classes in general but almost always fine for data storage POJOs.
+	// a method that is missing or can't be called is remembered and reported each time it is needed, just as if it had been looked up then.
+	private static Accessor resolve(Class<?> clz, String methodName, MethodType genericType) {
 		for (Method meth : clz.getDeclaredMethods()) {
-			if (meth.getName().equals(getterMethodName)) {
-				return meth;
+			if (meth.getName().equals(methodName)) {
+				try {
+					// adapt the method to a generic type so it can be called with invokeExact, without boxing argument arrays
+					return new Accessor(MethodHandles.publicLookup().unreflect(meth).asType(genericType), null, null);
+				} catch (IllegalAccessException | RuntimeException e) {
+					return new Accessor(null, null, new IllegalAccessException(clz.getName() + "." + methodName + ": " + e.getMessage()));
+				}
 			}
 		}
-		
-		throw new NoSuchFieldException();
+
+		return new Accessor(null, new NoSuchFieldException(), null);
+	}
+
+	private static String getterMethodName(String name) {
+		return "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
 	}
 
-	
-	private static String getterMethodName(Field f) {
-		return "get" + Character.toUpperCase(f.getName().charAt(0)) + f.getName().substring(1);
+	private static String setterMethodName(String name) {
+		return "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
 	}
 
-	private static String setterMethodName(Field f) {
-		return "set" + Character.toUpperCase(f.getName().charAt(0)) + f.getName().substring(1);
+	private static class Property {
+		private final String name;
+		private final Accessor getter;
+		private final Accessor setter;
+
+		private Property(String name, Accessor getter, Accessor setter) {
+			this.name = name;
+			this.getter = getter;
+			this.setter = setter;
+		}
+	}
+
+	// a resolved getter or setter, or the reason it couldn't be resolved
+	private static class Accessor {
+		private final MethodHandle handle;
+		private final NoSuchFieldException missing;
+		private final IllegalAccessException inaccessible;
+
+		private Accessor(MethodHandle handle, NoSuchFieldException missing, IllegalAccessException inaccessible) {
+			this.handle = handle;
+			this.missing = missing;
+			this.inaccessible = inaccessible;
+		}
+
+		private MethodHandle handle() throws NoSuchFieldException, IllegalAccessException {
+			if (missing != null) {
+				throw missing;
+			}
+			if (inaccessible != null) {
+				throw inaccessible;
+			}
+			return handle;
+		}
 	}
 }
@@ -0,0 +1,206 @@
+package expense.api.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.DBObject;
+
+// Logs expense listings and counts that take longer than a threshold, with the shape of their filters - the filter names
+// without their values - so that slow listings can be grouped and turned into index requests.  Listings and counts that
+// fail are logged whatever they took.  A sample of slow ones is also explained, logging the plan the database chose for the
+// query and whether it used an index.  Explains run the query again, so they run apart from the request on a single thread
+// of their own, only for the sample and no more than a set number a minute.  An explain that finds the thread busy and its
+// short queue full is dropped.
+@Component
+public class SlowQueryLog {
+
+	// how many explains may wait for the explain thread
+	private static final int EXPLAIN_QUEUE_SIZE = 10;
+
+	private final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+
+	private final long thresholdNanos;
+	private final double explainSampleRate;
+	private final int maxExplainsPerMinute;
+	private final Executor explainer;
+
+	// the explains started in the current minute, and the minute they are counted for
+	private final AtomicInteger explains = new AtomicInteger();
+	private final AtomicLong explainMinute = new AtomicLong(-1);
+
+	@Autowired
+	public SlowQueryLog(@Value("${expense.slow-query.threshold-ms:500}") long thresholdMillis,
+			@Value("${expense.slow-query.explain-sample-rate:0.1}") double explainSampleRate,
+			@Value("${expense.slow-query.max-explains-per-minute:10}") int maxExplainsPerMinute) {
+		this(thresholdMillis, explainSampleRate, maxExplainsPerMinute, explainThread());
+	}
+
+	public SlowQueryLog(long thresholdMillis, double explainSampleRate, int maxExplainsPerMinute, Executor explainer) {
+		// a negative threshold logs nothing
+		this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.explainSampleRate = explainSampleRate;
+		this.maxExplainsPerMinute = maxExplainsPerMinute;
+		this.explainer = explainer;
+	}
+
+	// a log that never logs
+	public static SlowQueryLog disabled() {
+		return new SlowQueryLog(-1, 0, 0, Runnable::run);
+	}
+
+	// a single thread that goes away when idle, dropping explains once its queue is full
+	private static ThreadPoolExecutor explainThread() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(EXPLAIN_QUEUE_SIZE),
+				runnable -> {
+					Thread thread = new Thread(runnable, "expense-slow-query-explain");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (explainer instanceof ExecutorService) {
+			((ExecutorService) explainer).shutdown();
+		}
+	}
+
+	// the filter names of a listing in order, without paging parameters or values.  listings with the same shape can use the
+	// same index.
+	public static String shape(Map<String,String> filters) {
+		TreeSet<String> names = new TreeSet<>(filters.keySet());
+		names.remove("page");
+		names.remove("size");
+		return String.join(",", names);
+	}
+
+	// log a listing if it was slow, returning the message logged or null if it wasn't.  the explain supplier is only called
+	// for sampled slow listings.
+	public String record(String shape, int page, int size, long nanos, int returned, Supplier<DBObject> explain) {
+		return record(shape, page, size, nanos, returned, explain, System.currentTimeMillis() / 60000);
+	}
+
+	String record(String shape, int page, int size, long nanos, int returned, Supplier<DBObject> explain, long minute) {
+		if (nanos < thresholdNanos) {
+			return null;
+		}
+
+		String message = "Slow expense listing [" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms]: filters [" + shape + "] page [" + page
+				+ "] size [" + size + "] returned [" + returned + "]";
+		log.warn(message);
+		explain("listing", shape, explain, minute);
+		return message;
+	}
+
+	// log a count if it was slow, as for a listing.  a count that ran out of time counted nothing.
+	public String recordCount(String shape, String mode, long nanos, Long counted, Supplier<DBObject> explain) {
+		if (nanos < thresholdNanos) {
+			return null;
+		}
+
+		String message = "Slow expense count [" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms]: filters [" + shape + "] mode [" + mode
+				+ "] counted [" + (counted == null ? "nothing" : counted) + "]";
+		log.warn(message);
+		explain("count", shape, explain, System.currentTimeMillis() / 60000);
+		return message;
+	}
+
+	// log a listing or count that failed, returning the message logged
+	public String failed(String kind, String shape, long nanos, RuntimeException e) {
+		if (thresholdNanos == Long.MAX_VALUE) {
+			return null;
+		}
+
+		String message = "Failed expense " + kind + " [" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms]: filters [" + shape + "]: " + e;
+		log.warn(message);
+		return message;
+	}
+
+	// explain a sample of slow queries on the explain thread, up to the limit for the minute
+	private void explain(String kind, String shape, Supplier<DBObject> explain, long minute) {
+		if (explainSampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= explainSampleRate) {
+			return;
+		}
+
+		// the first explain in a new minute starts its count again.  one racing it may go uncounted.
+		long stamp = explainMinute.get();
+		if (stamp != minute && explainMinute.compareAndSet(stamp, minute)) {
+			explains.set(0);
+		}
+		if (explains.incrementAndGet() > maxExplainsPerMinute) {
+			return;
+		}
+
+		explainer.execute(() -> {
+			try {
+				log.warn("Plan for slow expense " + kind + " with filters [" + shape + "]: " + summarize(explain.get()));
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to explain slow expense " + kind + " with filters [" + shape + "].", e);
+			}
+		});
+	}
+
+	// a one line summary of an explain plan: the stages of the winning plan from last to first, with the indexes scanned, and
+	// how many index keys and documents were examined.  servers before 3.0 report a cursor instead of stages.
+	public static String summarize(DBObject explain) {
+		StringBuilder summary = new StringBuilder();
+
+		DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+		if (queryPlanner != null) {
+			List<String> stages = new ArrayList<>();
+			stages((DBObject) queryPlanner.get("winningPlan"), stages);
+			summary.append(String.join(" <- ", stages));
+		}
+		else {
+			summary.append(explain.get("cursor"));
+		}
+
+		DBObject stats = (DBObject) explain.get("executionStats");
+		Object keys = stats != null ? stats.get("totalKeysExamined") : explain.get("nscanned");
+		Object documents = stats != null ? stats.get("totalDocsExamined") : explain.get("nscannedObjects");
+		if (keys != null || documents != null) {
+			summary.append(" (examined ").append(keys).append(" keys, ").append(documents).append(" documents)");
+		}
+		return summary.toString();
+	}
+
+	private static void stages(DBObject stage, List<String> stages) {
+		if (stage == null) {
+			return;
+		}
+
+		Object index = stage.get("indexName");
+		stages.add(stage.get("stage") + (index != null ? " " + index : ""));
+
+		stages((DBObject) stage.get("inputStage"), stages);
+		Object inputStages = stage.get("inputStages");
+		if (inputStages instanceof Collection) {
+			for (Object input : (Collection<?>) inputStages) {
+				stages((DBObject) input, stages);
+			}
+		}
+	}
+}
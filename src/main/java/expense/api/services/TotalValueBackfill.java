@@ -0,0 +1,110 @@
+package expense.api.services;
+
+import java.math.BigDecimal;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+// Fills in the numeric total of expenses saved before range filters on totals were supported.  Runs in the background at
+// startup and only touches expenses that still need it, so it is a no-op once the collection has been brought up to date.
+//
+// The totals are written straight to the collection in bulk, a batch at a time, so that filling them in leaves the expense
+// versions, and the ETags clients hold, unchanged.  The expense rollups are summed from the numeric totals, so they are
+// rebuilt once any have been filled in.
+@Component
+@Profile("!memory")  // the in-memory store always holds the numeric total
+@Order(1)
+public class TotalValueBackfill implements CommandLineRunner {
+
+	private static final int BATCH_SIZE = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(TotalValueBackfill.class);
+
+	private MongoTemplate mongoTemplate;
+	private ExpenseRollups rollups;
+	private Executor backfiller;
+
+	@Autowired
+	public TotalValueBackfill(MongoTemplate mongoTemplate, ExpenseRollups rollups) {
+		this(mongoTemplate, rollups, runnable -> {
+			Thread thread = new Thread(runnable, "expense-totalvalue-backfill");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	public TotalValueBackfill(MongoTemplate mongoTemplate, ExpenseRollups rollups, Executor backfiller) {
+		this.mongoTemplate = mongoTemplate;
+		this.rollups = rollups;
+		this.backfiller = backfiller;
+	}
+
+	@Override
+	public void run(String... args) {
+		backfiller.execute(() -> {
+			try {
+				long backfilled = backfill();
+				if (backfilled > 0) {
+					log.info("[" + backfilled + "] expenses backfilled with totalValue.");
+					rollups.restartRebuild();
+				}
+			}
+			catch (RuntimeException e) {
+				log.warn("Unable to backfill expense totalValue; total range filters will not match older expenses.", e);
+			}
+		});
+	}
+
+	// fill in the numeric total of every expense without one, returning how many were filled in
+	long backfill() {
+		DBCollection collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Expense.class));
+		DBObject unfilled = new BasicDBObject("totalValue", new BasicDBObject("$exists", false))
+				.append("total", new BasicDBObject("$exists", true));
+
+		long backfilled = 0;
+		DBCursor expenses = collection.find(unfilled, new BasicDBObject("total", 1));
+		try {
+			BulkWriteOperation batch = null;
+			int batched = 0;
+			while (expenses.hasNext()) {
+				DBObject expense = expenses.next();
+				if (batch == null) {
+					batch = collection.initializeUnorderedBulkOperation();
+				}
+
+				// an update made since the expense was read has already set the numeric total
+				double value = new BigDecimal(expense.get("total").toString()).doubleValue();
+				batch.find(new BasicDBObject("_id", expense.get("_id")).append("totalValue", new BasicDBObject("$exists", false)))
+						.updateOne(new BasicDBObject("$set", new BasicDBObject("totalValue", value)));
+
+				if (++batched == BATCH_SIZE) {
+					backfilled += batch.execute().getMatchedCount();
+					batch = null;
+					batched = 0;
+				}
+			}
+			if (batch != null) {
+				backfilled += batch.execute().getMatchedCount();
+			}
+		}
+		finally {
+			expenses.close();
+		}
+		return backfilled;
+	}
+}
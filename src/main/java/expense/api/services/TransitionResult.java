@@ -0,0 +1,24 @@
+package expense.api.services;
+
+import java.util.List;
+
+// the outcome of a bulk status transition: how many expenses changed status and which requested ids were left alone.
+public class TransitionResult {
+
+	private long updated;
+	private List<String> skipped;
+
+	public TransitionResult(long updated, List<String> skipped) {
+		this.updated = updated;
+		this.skipped = skipped;
+	}
+
+	public long getUpdated() {
+		return updated;
+	}
+
+	// the requested ids that were not in 'new' status or do not exist, or null when the transition was requested by filter.
+	public List<String> getSkipped() {
+		return skipped;
+	}
+}
@@ -0,0 +1,10 @@
+package expense.api.services.exceptions;
+
+// a validation failure caused by the expense changing since the version the caller expected.
+public class VersionConflictException extends ValidationException {
+	private static final long serialVersionUID = 4829736014775519303L;
+
+	public VersionConflictException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,105 @@
+package expense.api.controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import expense.api.model.Expense;
+import expense.api.msgs.ResponseList;
+import expense.api.msgs.StreamedMsg;
+import expense.api.services.ExpenseCount;
+import expense.api.services.ExpenseService;
+
+public class ExpenseControllerTest {
+
+	private final ExpenseService service = mock(ExpenseService.class);
+	private final ExpenseController controller = new ExpenseController(service, new ObjectMapper(), new ListingExecutor(1, 10), 1000);
+
+	private static Expense expense(String id, long version) {
+		Expense expense = new Expense();
+		expense.setId(id);
+		expense.setVersion(version);
+		return expense;
+	}
+
+	private ResponseEntity<StreamingResponseBody> list(String ifNoneMatch) throws Exception {
+		return controller.listExpenses(new HashMap<>(), ifNoneMatch).get();
+	}
+
+	private static String written(StreamingResponseBody body) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.writeTo(out);
+		return out.toString("UTF-8");
+	}
+
+	// a listing comes with its ETag, and a client that already has the list gets a 304 with no body
+	@Test
+	public void listExpenses_notModified() throws Exception {
+		when(service.listExpenses(anyMapOf(String.class, String.class))).thenReturn(Arrays.asList(expense("1", 2)));
+		when(service.countExpenses(anyMapOf(String.class, String.class), anyString())).thenReturn(null);
+
+		ResponseEntity<StreamingResponseBody> listed = list(null);
+		assertEquals(HttpStatus.OK, listed.getStatusCode());
+		assertTrue(((StreamedMsg) listed.getBody()).getMsg() instanceof ResponseList);
+		String etag = listed.getHeaders().getETag();
+		assertTrue(etag.startsWith("W/\""));
+
+		ResponseEntity<StreamingResponseBody> unchanged = list("\"other\", " + etag.substring(2));
+		assertEquals(HttpStatus.NOT_MODIFIED, unchanged.getStatusCode());
+		assertNull(unchanged.getBody());
+		assertEquals(etag, unchanged.getHeaders().getETag());
+
+		assertEquals(HttpStatus.OK, list("\"other\"").getStatusCode());
+	}
+
+	// the list is written as JSON once the listing is ready, with the count ahead of the expenses
+	@Test
+	public void listExpenses_streamed() throws Exception {
+		when(service.listExpenses(anyMapOf(String.class, String.class))).thenReturn(Arrays.asList(expense("1", 2)));
+		when(service.countExpenses(anyMapOf(String.class, String.class), anyString())).thenReturn(new ExpenseCount(1, false));
+
+		ResponseEntity<StreamingResponseBody> listed = list(null);
+
+		assertEquals(MediaType.APPLICATION_JSON, listed.getHeaders().getContentType());
+		assertEquals("{\"count\":1,\"countEstimated\":false,\"contents\":[{\"id\":\"1\",\"version\":2}]}", written(listed.getBody()));
+	}
+
+	// a listing that fails answers with its error message
+	@Test
+	public void listExpenses_error() throws Exception {
+		when(service.listExpenses(anyMapOf(String.class, String.class))).thenThrow(new RuntimeException("down"));
+
+		ResponseEntity<StreamingResponseBody> listed = list(null);
+
+		assertEquals(HttpStatus.OK, listed.getStatusCode());
+		assertEquals("{\"error\":\"down\"}", written(listed.getBody()));
+	}
+
+	// an If-None-Match of * matches every list, and one listing the ETag matches whether weak or not
+	@Test
+	public void versionETag_matches() {
+		String etag = ExpenseController.VersionETag.of(Arrays.asList(expense("1", 2)));
+
+		assertTrue(ExpenseController.VersionETag.matches("*", etag));
+		assertTrue(ExpenseController.VersionETag.matches(etag, etag));
+		assertFalse(ExpenseController.VersionETag.matches(null, etag));
+		assertFalse(ExpenseController.VersionETag.matches("W/\"x\"", etag));
+	}
+}
@@ -0,0 +1,76 @@
+package expense.api.controllers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+public class ListingExecutorTest {
+
+	private static Map<String,Number> metrics(ListingExecutor executor) {
+		Map<String,Number> metrics = new HashMap<>();
+		for (Metric<?> metric : executor.metrics()) {
+			metrics.put(metric.getName(), metric.getValue());
+		}
+		return metrics;
+	}
+
+	// listings beyond the threads and the queue are rejected and counted
+	@Test
+	public void execute_rejectedWhenFull() throws Exception {
+		ListingExecutor executor = new ListingExecutor(1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		try {
+			executor.execute(() -> {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+			});
+			started.await(5, TimeUnit.SECONDS);
+			executor.execute(() -> {});
+
+			try {
+				executor.execute(() -> {});
+				fail("Expected RejectedExecutionException");
+			} catch (RejectedExecutionException e) {
+				assertEquals("Too many expense listings are in progress.", e.getMessage());
+			}
+
+			Map<String,Number> metrics = metrics(executor);
+			assertEquals(1, metrics.get("executor.listing.active").intValue());
+			assertEquals(1, metrics.get("executor.listing.queued").intValue());
+			assertEquals(1L, metrics.get("executor.listing.rejected").longValue());
+		}
+		finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	// listings run on the listing threads
+	@Test
+	public void execute_listingThread() throws Exception {
+		ListingExecutor executor = new ListingExecutor(2, 10);
+		String[] thread = new String[1];
+		CountDownLatch done = new CountDownLatch(1);
+
+		executor.execute(() -> {
+			thread[0] = Thread.currentThread().getName();
+			done.countDown();
+		});
+		done.await(5, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		assertEquals("expense-listing-1", thread[0]);
+	}
+}
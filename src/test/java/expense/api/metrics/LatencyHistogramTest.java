@@ -0,0 +1,84 @@
+package expense.api.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	// every latency falls in a bucket whose top is within 1/64 of it
+	@Test
+	public void buckets_precision() {
+		for (long micros = 0; micros < 10_000_000; micros = micros * 11 / 10 + 1) {
+			long highest = LatencyHistogram.highest(LatencyHistogram.index(micros));
+			assertTrue(micros + " in bucket topped at " + highest, highest >= micros && highest - micros <= micros / 64);
+			assertEquals(LatencyHistogram.index(micros), LatencyHistogram.index(highest));
+		}
+	}
+
+	// percentiles come from the recorded distribution, and never exceed the max
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int ms = 1; ms <= 1000; ms++) {
+			histogram.record(ms * 1_000_000L, ms % 100 == 0);
+		}
+
+		double[] percentiles = histogram.percentilesMillis(50, 99, 100);
+		assertEquals(500, percentiles[0], 500 / 64.0);
+		assertEquals(990, percentiles[1], 990 / 64.0);
+		assertEquals(1000, percentiles[2], 0);
+		assertEquals(1000, histogram.maxMillis(), 0);
+		assertEquals(500.5, histogram.meanMillis(), 0.001);
+		assertEquals(1000, histogram.count());
+		assertEquals(10, histogram.errors());
+	}
+
+	// an empty histogram reports zeros
+	@Test
+	public void percentiles_empty() {
+		assertEquals(0, new LatencyHistogram().percentilesMillis(99)[0], 0);
+	}
+
+	// the rate counts the last full minute, and slots are reused a minute later
+	@Test
+	public void rate() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long second = 1000; second < 1060; second++) {
+			histogram.record(1000, false, second);
+			histogram.record(1000, false, second);
+		}
+		assertEquals(2.0, histogram.rate(1060), 0.001);
+
+		histogram.record(1000, false, 1060);
+		assertEquals(1.0 * 119 / 60, histogram.rate(1061), 0.001);
+		assertEquals(0.0, histogram.rate(1200), 0.001);
+	}
+
+	// the last minute holds only the calls of the minute before the current one, while the totals hold every call
+	@Test
+	public void lastMinute() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(900_000_000L, true, 600);
+		for (long second = 660; second < 720; second++) {
+			histogram.record(2_000_000L, false, second);
+		}
+		histogram.record(5_000_000L, false, 720);
+
+		LatencyHistogram.Counts lastMinute = histogram.lastMinute(725);
+		assertEquals(60, lastMinute.count());
+		assertEquals(0, lastMinute.errors());
+		assertEquals(2, lastMinute.percentilesMillis(99.9)[0], 2 / 64.0);
+		assertEquals(2, lastMinute.maxMillis(), 0);
+		assertEquals(2, lastMinute.meanMillis(), 0.001);
+		assertEquals(62, histogram.count());
+		assertEquals(900, histogram.maxMillis(), 0);
+
+		// the counts of two minutes before are cleared when their turn comes again
+		histogram.record(3_000_000L, false, 780);
+		assertEquals(1, histogram.lastMinute(785).count());
+		assertEquals(5, histogram.lastMinute(785).maxMillis(), 0);
+		assertEquals(0, histogram.lastMinute(905).count());
+	}
+}
@@ -0,0 +1,148 @@
+package expense.api.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import expense.api.msgs.ResponseErr;
+import expense.api.msgs.ResponseId;
+import expense.api.msgs.ResponseMsg;
+import expense.api.msgs.StreamedMsg;
+import expense.api.services.ExpenseService;
+import expense.api.services.exceptions.NotFoundException;
+
+public class LatencyMetricsTest {
+
+	@RestController
+	public static class TestController {
+		@RequestMapping("/ok")
+		public ResponseMsg ok() {
+			return new ResponseId("1");
+		}
+
+		@RequestMapping("/err")
+		public ResponseMsg err() {
+			return new ResponseErr("failed");
+		}
+
+		@RequestMapping("/later")
+		public CompletableFuture<Object> later(CompletableFuture<Object> answer) {
+			return answer;
+		}
+
+		@RequestMapping("/stream")
+		public StreamingResponseBody stream() {
+			return out -> out.write('x');
+		}
+
+		public String helper() {
+			return "untimed";
+		}
+	}
+
+	private static Map<String,Number> published(LatencyMetrics latencyMetrics) {
+		Map<String,Number> metrics = new HashMap<>();
+		for (Metric<?> metric : latencyMetrics.metrics()) {
+			metrics.put(metric.getName(), metric.getValue());
+		}
+		return metrics;
+	}
+
+	// service calls are timed, and those that throw are errors
+	@Test
+	public void service_calls() throws Exception {
+		ExpenseService service = mock(ExpenseService.class);
+		when(service.findExpense(anyString())).thenThrow(new NotFoundException("test"));
+
+		LatencyMetrics latencyMetrics = new LatencyMetrics();
+		ExpenseService timed = (ExpenseService) latencyMetrics.postProcessAfterInitialization(service, "expenseService");
+
+		timed.listExpenses();
+		timed.listExpenses();
+		try {
+			timed.findExpense("1");
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {}
+
+		Map<String,Number> metrics = published(latencyMetrics);
+		assertEquals(2L, metrics.get("service.listExpenses.count"));
+		assertEquals(0L, metrics.get("service.listExpenses.errors"));
+		assertEquals(1L, metrics.get("service.findExpense.errors"));
+		assertTrue(metrics.containsKey("service.findExpense.p99"));
+	}
+
+	// endpoints answering with an error message are errors, asynchronous answers are timed once ready, and methods that
+	// aren't endpoints aren't timed
+	@Test
+	public void endpoint_calls() {
+		LatencyMetrics latencyMetrics = new LatencyMetrics();
+		TestController timed = (TestController) latencyMetrics.postProcessAfterInitialization(new TestController(), "testController");
+
+		timed.ok();
+		timed.err();
+		timed.helper();
+		CompletableFuture<Object> answer = new CompletableFuture<>();
+		timed.later(answer);
+
+		Map<String,Number> metrics = published(latencyMetrics);
+		assertEquals(1L, metrics.get("endpoint.ok.count"));
+		assertEquals(0L, metrics.get("endpoint.ok.errors"));
+		assertEquals(1L, metrics.get("endpoint.err.errors"));
+		assertEquals(0L, metrics.get("endpoint.later.count"));
+		assertEquals(null, metrics.get("endpoint.helper.count"));
+
+		answer.complete(new ResponseErr("too busy"));
+		metrics = published(latencyMetrics);
+		assertEquals(1L, metrics.get("endpoint.later.count"));
+		assertEquals(1L, metrics.get("endpoint.later.errors"));
+	}
+
+	// an answer streaming an error message is an error, and one streaming anything else is not
+	@Test
+	public void endpoint_streamedAnswers() {
+		LatencyMetrics latencyMetrics = new LatencyMetrics();
+		TestController timed = (TestController) latencyMetrics.postProcessAfterInitialization(new TestController(), "testController");
+		ObjectMapper objectMapper = new ObjectMapper();
+
+		timed.later(CompletableFuture.completedFuture(ResponseEntity.ok(new StreamedMsg(new ResponseErr("failed"), objectMapper))));
+		timed.later(CompletableFuture.completedFuture(ResponseEntity.ok(new StreamedMsg(new ResponseId("1"), objectMapper))));
+
+		Map<String,Number> metrics = published(latencyMetrics);
+		assertEquals(2L, metrics.get("endpoint.later.count"));
+		assertEquals(1L, metrics.get("endpoint.later.errors"));
+	}
+
+	// a streamed body is timed once it is written
+	@Test
+	public void endpoint_streams() throws Exception {
+		LatencyMetrics latencyMetrics = new LatencyMetrics();
+		TestController timed = (TestController) latencyMetrics.postProcessAfterInitialization(new TestController(), "testController");
+
+		StreamingResponseBody body = timed.stream();
+		assertEquals(0L, published(latencyMetrics).get("endpoint.stream.count"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.writeTo(out);
+		assertEquals("x", out.toString("UTF-8"));
+		assertEquals(1L, published(latencyMetrics).get("endpoint.stream.count"));
+		assertEquals(0L, published(latencyMetrics).get("endpoint.stream.errors"));
+		assertTrue(published(latencyMetrics).containsKey("endpoint.stream.minute.p99"));
+	}
+}
@@ -0,0 +1,44 @@
+package expense.api.msgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import expense.api.model.Expense;
+
+public class ResponseListTest {
+
+	private static Expense expense(String id) {
+		Expense expense = new Expense();
+		expense.setId(id);
+		return expense;
+	}
+
+	// the paging properties come before the contents
+	@Test
+	public void serialize_contentsLast() throws Exception {
+		ResponseList list = new ResponseList(Arrays.asList(expense("1"), expense("2")), "cursor");
+		list.setCount(2L);
+
+		String json = new ObjectMapper().writeValueAsString(list);
+
+		assertEquals("{\"next\":\"cursor\",\"count\":2,\"contents\":[{\"id\":\"1\"},{\"id\":\"2\"}]}", json);
+	}
+
+	// contents that can only be iterated once are written as they are iterated
+	@Test
+	public void serialize_iterable() throws Exception {
+		Iterator<Expense> expenses = Arrays.asList(expense("1"), expense("2")).iterator();
+		ResponseList list = new ResponseList(() -> expenses);
+
+		String json = new ObjectMapper().writeValueAsString(list);
+
+		assertTrue(json.endsWith("\"contents\":[{\"id\":\"1\"},{\"id\":\"2\"}]}"));
+	}
+}
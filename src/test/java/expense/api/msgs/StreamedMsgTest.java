@@ -0,0 +1,92 @@
+package expense.api.msgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import expense.api.model.Expense;
+
+public class StreamedMsgTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static Expense expense(String id) {
+		Expense expense = new Expense();
+		expense.setId(id);
+		return expense;
+	}
+
+	private String written(ResponseMsg msg) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StreamedMsg(msg, objectMapper).writeTo(out);
+		return out.toString("UTF-8");
+	}
+
+	// a list is written exactly as ResponseList serializes
+	@Test
+	public void writeTo_list() throws Exception {
+		ResponseList list = new ResponseList(Arrays.asList(expense("1"), expense("2")), "cursor");
+		list.setCount(2L);
+		list.setCountEstimated(true);
+
+		assertEquals(objectMapper.writeValueAsString(list), written(list));
+		assertEquals(objectMapper.writeValueAsString(new ResponseList(new ArrayList<>())), written(new ResponseList(new ArrayList<>())));
+	}
+
+	// other messages are written as they serialize
+	@Test
+	public void writeTo_msg() throws Exception {
+		assertEquals("{\"error\":\"failed\"}", written(new ResponseErr("failed")));
+	}
+
+	// the expenses written so far are flushed every FLUSH_EVERY expenses, without closing the response stream
+	@Test
+	public void writeTo_flushes() throws Exception {
+		List<Expense> expenses = new ArrayList<>();
+		for (int i = 0; i < StreamedMsg.FLUSH_EVERY * 2 + 1; i++) {
+			expenses.add(expense(String.valueOf(i)));
+		}
+
+		List<Integer> flushedAt = new ArrayList<>();
+		boolean[] closed = new boolean[1];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				bytes.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				bytes.write(b, off, len);
+			}
+
+			@Override
+			public void flush() {
+				flushedAt.add(bytes.size());
+			}
+
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+
+		new StreamedMsg(new ResponseList(expenses), objectMapper).writeTo(out);
+
+		assertTrue(flushedAt.size() >= 2);
+		assertTrue(bytes.toString("UTF-8").substring(0, flushedAt.get(0)).endsWith("{\"id\":\"" + (StreamedMsg.FLUSH_EVERY - 1) + "\"}"));
+		assertEquals(objectMapper.writeValueAsString(new ResponseList(expenses)), bytes.toString("UTF-8"));
+		assertTrue(!closed[0]);
+	}
+}
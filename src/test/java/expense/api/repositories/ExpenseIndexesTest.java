@@ -0,0 +1,91 @@
+package expense.api.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+
+import expense.api.model.Expense;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExpenseIndexesTest {
+
+	@Mock
+	MongoOperations mongoOperations;
+
+	@Mock
+	IndexOperations indexOps;
+
+	@Before
+	public void setup() {
+		when(mongoOperations.indexOps(Expense.class)).thenReturn(indexOps);
+	}
+
+	// every desired index is created on an empty collection, in the background
+	@Test
+	public void ensure_createsMissing() {
+		when(indexOps.getIndexInfo()).thenReturn(indexes("_id_"));
+
+		List<String> created = new ExpenseIndexes(mongoOperations).ensure();
+
+		assertEquals(Arrays.asList("status_1_datetime_1", "merchant_1_datetime_1", "datetime_1__id_1", "totalValue_1", "merchant_text_comments_text"), created);
+		ArgumentCaptor<IndexDefinition> definitions = ArgumentCaptor.forClass(IndexDefinition.class);
+		verify(indexOps, times(5)).ensureIndex(definitions.capture());
+		for (IndexDefinition definition : definitions.getAllValues()) {
+			assertEquals(true, definition.getIndexOptions().get("background"));
+		}
+		assertEquals("text", definitions.getAllValues().get(4).getIndexKeys().get("merchant"));
+	}
+
+	// nothing is created when every desired index already exists
+	@Test
+	public void ensure_existing() {
+		when(indexOps.getIndexInfo()).thenReturn(indexes("_id_", "status_1_datetime_1", "merchant_1_datetime_1", "datetime_1__id_1", "totalValue_1", "merchant_text_comments_text"));
+
+		List<String> created = new ExpenseIndexes(mongoOperations).ensure();
+
+		assertEquals(Collections.emptyList(), created);
+		verify(indexOps, never()).ensureIndex(any(IndexDefinition.class));
+	}
+
+	// the report lists missing and undesired indexes, leaving out _id
+	@Test
+	public void report() {
+		when(indexOps.getIndexInfo()).thenReturn(indexes("_id_", "status_1_datetime_1", "merchant_1"));
+
+		Map<String,List<String>> report = new ExpenseIndexes(mongoOperations).report();
+
+		assertEquals(5, report.get("desired").size());
+		assertEquals(Arrays.asList("status_1_datetime_1", "merchant_1"), report.get("existing"));
+		assertEquals(Arrays.asList("merchant_1_datetime_1", "datetime_1__id_1", "totalValue_1", "merchant_text_comments_text"), report.get("missing"));
+		assertEquals(Arrays.asList("merchant_1"), report.get("undesired"));
+	}
+
+	private static List<IndexInfo> indexes(String... names) {
+		List<IndexInfo> indexes = new ArrayList<>();
+		for (String name : names) {
+			indexes.add(new IndexInfo(Collections.<IndexField>emptyList(), name, false, false, false));
+		}
+		return indexes;
+	}
+}
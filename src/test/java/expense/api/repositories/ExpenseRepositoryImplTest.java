@@ -0,0 +1,118 @@
+package expense.api.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+
+import expense.api.model.Expense;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExpenseRepositoryImplTest {
+
+	@Mock
+	MongoTemplate mongoTemplate;
+
+	@Before
+	public void setup() {
+		when(mongoTemplate.getConverter()).thenReturn(new MappingMongoConverter(mock(DbRefResolver.class), new MongoMappingContext()));
+		when(mongoTemplate.getCollectionName(Expense.class)).thenReturn("expense");
+	}
+
+	private static Query newExpenses() {
+		return new Query(Criteria.where("status").is("new"));
+	}
+
+	// a limited count is a count command with the limit and time limit
+	@Test
+	public void countUpTo() {
+		CommandResult result = mock(CommandResult.class);
+		when(result.ok()).thenReturn(true);
+		when(result.get("n")).thenReturn(10000.0);
+		ArgumentCaptor<DBObject> commandCaptor = ArgumentCaptor.forClass(DBObject.class);
+		when(mongoTemplate.executeCommand(commandCaptor.capture())).thenReturn(result);
+
+		assertEquals(Long.valueOf(10000), new ExpenseRepositoryImpl(mongoTemplate).countUpTo(newExpenses(), 10000, 200));
+		assertEquals("expense", commandCaptor.getValue().get("count"));
+		assertEquals("new", ((DBObject) commandCaptor.getValue().get("query")).get("status"));
+		assertEquals(10000, commandCaptor.getValue().get("limit"));
+		assertEquals(200, commandCaptor.getValue().get("maxTimeMS"));
+	}
+
+	// a count that runs out of time gives no count
+	@Test
+	public void countUpTo_timedOut() {
+		CommandResult result = mock(CommandResult.class);
+		when(result.ok()).thenReturn(false);
+		when(result.getInt("code", 0)).thenReturn(50);
+		when(mongoTemplate.executeCommand(any(DBObject.class))).thenReturn(result);
+
+		assertNull(new ExpenseRepositoryImpl(mongoTemplate).countUpTo(newExpenses(), 10000, 200));
+	}
+
+	// every matching expense is updated by a single update
+	@Test
+	public void updateAll() {
+		WriteResult writeResult = mock(WriteResult.class);
+		when(writeResult.getN()).thenReturn(5);
+		when(mongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(Expense.class))).thenReturn(writeResult);
+
+		assertEquals(5, new ExpenseRepositoryImpl(mongoTemplate).updateAll(newExpenses(), Update.update("status", "reimbursed")));
+	}
+
+	// expenses are inserted by a single unordered bulk insert
+	@Test
+	@SuppressWarnings("unchecked")
+	public void insertAll() {
+		DBCollection collection = mock(DBCollection.class);
+		BulkWriteOperation bulk = mock(BulkWriteOperation.class);
+		when(collection.initializeUnorderedBulkOperation()).thenReturn(bulk);
+		when(mongoTemplate.execute(eq(Expense.class), any(CollectionCallback.class)))
+				.thenAnswer(invocation -> ((CollectionCallback<?>) invocation.getArguments()[1]).doInCollection(collection));
+
+		Expense first = new Expense();
+		first.setId("5f0000000000000000000001");
+		first.setMerchant("a");
+		Expense second = new Expense();
+		second.setId("5f0000000000000000000002");
+		second.setMerchant("b");
+
+		Map<Integer,String> errors = new ExpenseRepositoryImpl(mongoTemplate).insertAll(Arrays.asList(first, second));
+		assertTrue(errors.isEmpty());
+
+		ArgumentCaptor<DBObject> documents = ArgumentCaptor.forClass(DBObject.class);
+		verify(bulk, times(2)).insert(documents.capture());
+		assertEquals("a", documents.getAllValues().get(0).get("merchant"));
+		assertEquals("b", documents.getAllValues().get(1).get("merchant"));
+		verify(bulk).execute();
+	}
+}
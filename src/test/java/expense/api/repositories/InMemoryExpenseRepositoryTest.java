@@ -0,0 +1,268 @@
+package expense.api.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+
+import com.mongodb.BasicDBObject;
+
+import expense.api.model.Expense;
+import expense.api.services.CursorPage;
+import expense.api.services.ExpenseService;
+import expense.api.services.ExpenseServiceImpl;
+import expense.api.services.exceptions.NotFoundException;
+import expense.api.services.exceptions.VersionConflictException;
+
+// the in-memory store, driven through the expense service the way the application uses it
+public class InMemoryExpenseRepositoryTest {
+
+	InMemoryExpenseRepository repository;
+	ExpenseService service;
+
+	@Before
+	public void setup() {
+		repository = new InMemoryExpenseRepository();
+		service = new ExpenseServiceImpl(repository, new InMemoryMongoTemplate(repository));
+	}
+
+	// create an expense at the given second of the epoch
+	private String create(String merchant, String total, long second, String comments) throws Exception {
+		Expense expense = new Expense();
+		expense.setMerchant(merchant);
+		expense.setTotal(new BigDecimal(total));
+		expense.setDatetime(new Date(1000L * second));
+		expense.setComments(comments);
+		return service.createExpense(expense);
+	}
+
+	private static List<String> merchants(Iterable<Expense> expenses) {
+		List<String> merchants = new ArrayList<>();
+		for (Expense expense : expenses) {
+			merchants.add(expense.getMerchant() + "@" + expense.getDatetime().getTime() / 1000);
+		}
+		return merchants;
+	}
+
+	private static Map<String,String> filters(String... keyValues) {
+		Map<String,String> filters = new HashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			filters.put(keyValues[i], keyValues[i + 1]);
+		}
+		return filters;
+	}
+
+	// saving assigns an id and version, and a stale version is refused
+	@Test
+	public void save_versions() throws Exception {
+		Expense expense = new Expense();
+		expense.setMerchant("a");
+		repository.save(expense);
+		assertEquals(Long.valueOf(0), expense.getVersion());
+
+		Expense stale = repository.findOne(expense.getId());
+		repository.save(expense);
+		assertEquals(Long.valueOf(1), repository.findOne(expense.getId()).getVersion());
+
+		try {
+			repository.save(stale);
+			fail("Expected OptimisticLockingFailureException");
+		} catch (OptimisticLockingFailureException e) {}
+	}
+
+	// unfiltered pages come in datetime order
+	@Test
+	public void findAll_paged() throws Exception {
+		create("c", "1.00", 30, null);
+		create("a", "1.00", 10, null);
+		create("b", "1.00", 20, null);
+
+		assertEquals(Arrays.asList("a@10", "b@20"), merchants(repository.findAll(new PageRequest(0, 2))));
+		assertEquals(Arrays.asList("c@30"), merchants(repository.findAll(new PageRequest(1, 2))));
+		assertEquals(3, repository.findAll(new PageRequest(1, 2)).getTotalElements());
+	}
+
+	// equality, datetime range and total range filters combine
+	@Test
+	public void listExpenses_filters() throws Exception {
+		create("a", "5.00", 10, null);
+		create("a", "15.00", 20, null);
+		create("b", "15.00", 30, null);
+		create("a", "25.00", 40, null);
+		create("a", "15.00", 50, null);
+
+		assertEquals(Arrays.asList("a@20", "a@40"), merchants(service.listExpenses(filters("merchant", "a",
+				"datetimeFrom", "1970-01-01T00:00:20Z", "datetimeTo", "1970-01-01T00:00:50Z"))));
+		assertEquals(Arrays.asList("a@20", "b@30", "a@50"), merchants(service.listExpenses(filters("totalMin", "10", "totalMax", "20"))));
+		assertEquals(Arrays.asList("b@30"), merchants(service.listExpenses(filters("status", "new", "total", "15.00", "merchant", "b"))));
+		assertEquals(Arrays.asList("a@40"), merchants(service.listExpenses(filters("merchant", "a", "page", "2", "size", "1"))));
+	}
+
+	// cursor pages seek past each other and together hold every matching expense once
+	@Test
+	public void listExpenses_cursor() throws Exception {
+		for (int i = 0; i < 7; i++) {
+			create(i % 2 == 0 ? "even" : "odd", "1.00", 100 - i * 10, null);
+		}
+		// two at the same time are ordered by id
+		create("even", "1.00", 70, null);
+
+		List<String> seen = new ArrayList<>();
+		String cursor = "";
+		do {
+			CursorPage page = service.listExpenses(filters("merchant", "even", "size", "2"), cursor);
+			seen.addAll(merchants(page.getContents()));
+			cursor = page.getNext();
+		} while (cursor != null);
+
+		assertEquals(Arrays.asList("even@40", "even@60", "even@70", "even@80", "even@100"), seen);
+	}
+
+	// updates move expenses between index entries
+	@Test
+	public void updateExpense_reindexes() throws Exception {
+		String id = create("a", "1.00", 10, "first");
+		create("a", "1.00", 20, null);
+
+		Expense changes = new Expense();
+		changes.setMerchant("b");
+		changes.setDatetime(new Date(30000));
+		changes.setComments("second");
+		service.updateExpense(id, changes);
+
+		assertEquals(Arrays.asList("a@20"), merchants(service.listExpenses(filters("merchant", "a"))));
+		assertEquals(Arrays.asList("b@30"), merchants(service.listExpenses(filters("merchant", "b", "datetimeFrom", "1970-01-01T00:00:25Z"))));
+
+		Expense updated = service.findExpense(id);
+		assertEquals("first\nsecond", updated.getComments());
+		assertEquals(Long.valueOf(1), updated.getVersion());
+	}
+
+	// status transitions update every selected new expense
+	@Test
+	public void updateExpenseStatus_filters() throws Exception {
+		create("a", "1.00", 10, null);
+		create("a", "1.00", 20, null);
+		create("b", "1.00", 30, null);
+
+		assertEquals(2, service.updateExpenseStatus("reimbursed", null, filters("merchant", "a")).getUpdated());
+
+		assertEquals(Arrays.asList("a@10", "a@20"), merchants(service.listExpenses(filters("status", "reimbursed"))));
+		assertEquals(Arrays.asList("b@30"), merchants(service.listExpenses(filters("status", "new"))));
+	}
+
+	// a delete at a stale version is refused, and one at the current version removes the expense
+	@Test
+	public void deleteExpense_versioned() throws Exception {
+		String id = create("a", "1.00", 10, null);
+
+		try {
+			service.deleteExpense(id, 3L);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {}
+
+		service.deleteExpense(id, 0L);
+		try {
+			service.findExpense(id);
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {}
+		assertEquals(0, repository.count());
+	}
+
+	// search matches words in the merchant and comments, best matches first
+	@Test
+	public void listExpenses_search() throws Exception {
+		create("Coffee Shop", "1.00", 10, "coffee and cake");
+		create("Bakery", "1.00", 20, "cake");
+		create("Hardware", "1.00", 30, "nails");
+
+		assertEquals(Arrays.asList("Coffee Shop@10", "Bakery@20"), merchants(service.listExpenses(filters("q", "coffee cake"))));
+		assertEquals(Arrays.asList("Bakery@20"), merchants(service.listExpenses(filters("q", "cake", "merchant", "Bakery"))));
+	}
+
+	// projected expenses hold only the requested fields
+	@Test
+	public void listExpenses_fields() throws Exception {
+		create("a", "1.00", 10, "comment");
+
+		Expense expense = service.listExpenses(filters("fields", "merchant")).iterator().next();
+		assertEquals("a", expense.getMerchant());
+		assertNull(expense.getComments());
+		assertNull(expense.getTotal());
+	}
+
+	// a listing made while expenses move along the indexes sees each expense once
+	@Test
+	public void find_duringMoves() throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			ids.add(create("a", "1.00", i, null));
+		}
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread mover = new Thread(() -> {
+			Random random = new Random(1);
+			while (!done.get()) {
+				String id = ids.get(random.nextInt(ids.size()));
+				repository.update(new BasicDBObject("id", id), new BasicDBObject("$set", new BasicDBObject("datetime", new Date(random.nextInt(200000)))), false);
+			}
+		});
+		mover.start();
+		try {
+			for (int i = 0; i < 500; i++) {
+				List<Expense> found = repository.find(new BasicDBObject("merchant", "a"), null, null, 0, 0);
+				assertEquals(200, found.size());
+				assertEquals(200, new HashSet<>(ids(found)).size());
+				assertEquals(200, repository.count(new BasicDBObject()));
+			}
+		}
+		finally {
+			done.set(true);
+			mover.join();
+		}
+	}
+
+	// a stream reads past a batch in datetime order
+	@Test
+	public void stream_batches() throws Exception {
+		for (int i = 2500; i > 0; i--) {
+			create(i % 2 == 0 ? "even" : "odd", "1.00", i, null);
+		}
+
+		Iterator<Expense> expenses = repository.stream(new BasicDBObject("merchant", "even"), null, null);
+		long last = 0;
+		int streamed = 0;
+		while (expenses.hasNext()) {
+			long time = expenses.next().getDatetime().getTime();
+			assertTrue(time > last);
+			last = time;
+			streamed++;
+		}
+		assertEquals(1250, streamed);
+	}
+
+	private static List<String> ids(List<Expense> expenses) {
+		List<String> ids = new ArrayList<>();
+		for (Expense expense : expenses) {
+			ids.add(expense.getId());
+		}
+		return ids;
+	}
+}
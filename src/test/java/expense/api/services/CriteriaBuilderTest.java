@@ -0,0 +1,138 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+import expense.api.services.ExpenseServiceImpl.CriteriaBuilder;
+import expense.api.services.exceptions.OutOfBoundsException;
+
+public class CriteriaBuilderTest {
+
+	// datetime filters are read as UTC whatever the server time zone
+	@Test
+	public void parseDatetime_utc() throws Exception {
+		assertEquals(1451703845000L, CriteriaBuilder.parseDatetime("2016-01-02T03:04:05Z").getTime());
+		assertEquals(0L, CriteriaBuilder.parseDatetime("1970-01-01T00:00:00Z").getTime());
+	}
+
+	// an unreadable datetime filter causes an OutOfBoundsException
+	@Test
+	public void parseDatetime_invalid() throws Exception {
+		try {
+			CriteriaBuilder.parseDatetime("01/02/2016");
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Unable to parse requested date filter [01/02/2016]", e.getMessage());
+		}
+	}
+
+	// the datetime filter becomes an equality criteria on the parsed instant
+	@Test
+	public void build_datetime() throws Exception {
+		Map<String,String> filters = new HashMap<>();
+		filters.put("datetime", "2016-01-02T03:04:05Z");
+		
+		BasicDBList and = (BasicDBList) CriteriaBuilder.build(filters).getCriteriaObject().get("$and");
+		assertEquals(new Date(1451703845000L), ((DBObject) and.get(0)).get("datetime"));
+	}
+
+	// datetime range filters include the start and exclude the end
+	@Test
+	public void build_datetimeRange() throws Exception {
+		Map<String,String> filters = new HashMap<>();
+		filters.put("datetimeFrom", "2016-01-01T00:00:00Z");
+		
+		BasicDBList and = (BasicDBList) CriteriaBuilder.build(filters).getCriteriaObject().get("$and");
+		DBObject range = (DBObject) ((DBObject) and.get(0)).get("datetime");
+		assertEquals(new Date(1451606400000L), range.get("$gte"));
+
+		filters.clear();
+		filters.put("datetimeTo", "2016-01-01T00:00:00Z");
+		
+		and = (BasicDBList) CriteriaBuilder.build(filters).getCriteriaObject().get("$and");
+		range = (DBObject) ((DBObject) and.get(0)).get("datetime");
+		assertEquals(new Date(1451606400000L), range.get("$lt"));
+	}
+
+	// total range filters compare against the numeric total
+	@Test
+	public void build_totalRange() throws Exception {
+		Map<String,String> filters = new HashMap<>();
+		filters.put("totalMin", "10.50");
+		
+		BasicDBList and = (BasicDBList) CriteriaBuilder.build(filters).getCriteriaObject().get("$and");
+		DBObject range = (DBObject) ((DBObject) and.get(0)).get("totalValue");
+		assertEquals(10.5, range.get("$gte"));
+
+		filters.clear();
+		filters.put("totalMax", "100");
+		
+		and = (BasicDBList) CriteriaBuilder.build(filters).getCriteriaObject().get("$and");
+		range = (DBObject) ((DBObject) and.get(0)).get("totalValue");
+		assertEquals(100.0, range.get("$lt"));
+	}
+
+	// an unreadable total filter causes an OutOfBoundsException
+	@Test
+	public void build_totalInvalid() throws Exception {
+		Map<String,String> filters = new HashMap<>();
+		filters.put("totalMin", "ten");
+		try {
+			CriteriaBuilder.build(filters);
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Unable to parse requested total filter [ten]", e.getMessage());
+		}
+	}
+
+	// many threads parsing different dates at once all get their own date back
+	@Test
+	public void parseDatetime_concurrent() throws Exception {
+		int threads = 16;
+		int iterations = 2000;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				results.add(executor.submit((Callable<Integer>) () -> {
+					int mismatches = 0;
+					for (int i = 0; i < iterations; i++) {
+						// a different instant for every thread and iteration, spread over the years, days and seconds
+						Instant expected = Instant.ofEpochSecond(31536000L * thread + 7919L * i);
+						
+						if (!CriteriaBuilder.parseDatetime(DateTimeFormatter.ISO_INSTANT.format(expected)).equals(Date.from(expected))) {
+							mismatches++;
+						}
+					}
+					return mismatches;
+				}));
+			}
+			
+			for (Future<Integer> result : results) {
+				assertEquals(Integer.valueOf(0), result.get(1, TimeUnit.MINUTES));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
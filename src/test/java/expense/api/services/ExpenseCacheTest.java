@@ -0,0 +1,151 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import expense.api.model.Expense;
+
+public class ExpenseCacheTest {
+
+	private Expense expense(String id) {
+		Expense expense = new Expense();
+		expense.setId(id);
+		return expense;
+	}
+
+	// a cached expense is a hit, an uncached one a miss
+	@Test
+	public void get_hitAndMiss() {
+		ExpenseCache cache = new ExpenseCache(10, 60);
+		Expense expense = expense("1");
+		
+		cache.put("1", expense, cache.generation());
+		
+		assertEquals("1", cache.get("1").getId());
+		assertNull(cache.get("2"));
+		assertEquals(1L, metric(cache, "cache.expense.hits"));
+		assertEquals(1L, metric(cache, "cache.expense.misses"));
+	}
+
+	// callers get their own copy, so changing the expense read or put never changes the cache
+	@Test
+	public void get_copy() {
+		ExpenseCache cache = new ExpenseCache(10, 60);
+		Expense expense = expense("1");
+		expense.setMerchant("a");
+		expense.setDatetime(new Date(1000));
+		
+		cache.put("1", expense, cache.generation());
+		expense.setMerchant("b");
+		Expense read = cache.get("1");
+		read.setMerchant("c");
+		read.getDatetime().setTime(2000);
+		
+		assertNotSame(read, cache.get("1"));
+		assertEquals("a", cache.get("1").getMerchant());
+		assertEquals(1000, cache.get("1").getDatetime().getTime());
+	}
+
+	// the least recently used expense is evicted when the cache is full
+	@Test
+	public void put_evictsLeastRecentlyUsed() {
+		ExpenseCache cache = new ExpenseCache(2, 60);
+		
+		cache.put("1", expense("1"), cache.generation());
+		cache.put("2", expense("2"), cache.generation());
+		cache.get("1");
+		cache.put("3", expense("3"), cache.generation());
+		
+		assertEquals(2, cache.size());
+		assertNull(cache.get("2"));
+		assertEquals(1L, metric(cache, "cache.expense.evictions"));
+	}
+
+	// expired expenses are evicted when read
+	@Test
+	public void get_expired() {
+		ExpenseCache cache = new ExpenseCache(10, -1);
+		
+		cache.put("1", expense("1"), cache.generation());
+		
+		assertNull(cache.get("1"));
+		assertEquals(0, cache.size());
+		assertEquals(1L, metric(cache, "cache.expense.evictions"));
+	}
+
+	// an expense loaded before an invalidation is not cached
+	@Test
+	public void put_afterInvalidation() {
+		ExpenseCache cache = new ExpenseCache(10, 60);
+		
+		long generation = cache.generation();
+		cache.invalidate("1");
+		cache.put("1", expense("1"), generation);
+		
+		assertNull(cache.get("1"));
+	}
+
+	// invalidating one expense doesn't stop another loaded meanwhile from being cached
+	@Test
+	public void put_afterOtherInvalidation() {
+		ExpenseCache cache = new ExpenseCache(10, 60);
+		
+		long generation = cache.generation();
+		cache.invalidate("2");
+		cache.put("1", expense("1"), generation);
+		
+		assertNotNull(cache.get("1"));
+		assertNull(cache.get("2"));
+	}
+
+	// a slow load from before an invalidation doesn't replace one that started after it
+	@Test
+	public void put_afterLaterLoad() {
+		ExpenseCache cache = new ExpenseCache(10, 60);
+		Expense stale = expense("1");
+		stale.setMerchant("stale");
+		Expense fresh = expense("1");
+		fresh.setMerchant("fresh");
+		
+		long before = cache.generation();
+		cache.invalidate("1");
+		cache.put("1", fresh, cache.generation());
+		cache.put("1", stale, before);
+		
+		assertEquals("fresh", cache.get("1").getMerchant());
+	}
+
+	// an expense loaded before an invalidation that has since been evicted is not cached
+	@Test
+	public void put_afterEvictedInvalidation() {
+		ExpenseCache cache = new ExpenseCache(2, 60);
+		
+		long generation = cache.generation();
+		cache.invalidate("1");
+		cache.put("2", expense("2"), cache.generation());
+		cache.put("3", expense("3"), cache.generation());
+		cache.put("1", expense("1"), generation);
+		
+		assertNull(cache.get("1"));
+	}
+
+	// a disabled cache holds nothing
+	@Test
+	public void disabled() {
+		ExpenseCache cache = ExpenseCache.disabled();
+		
+		cache.put("1", expense("1"), cache.generation());
+		
+		assertNull(cache.get("1"));
+	}
+
+	private long metric(ExpenseCache cache, String name) {
+		return cache.metrics().stream().filter(m -> m.getName().equals(name)).findFirst().get().getValue().longValue();
+	}
+}
@@ -0,0 +1,305 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.OngoingStubbing;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExpenseRollupsTest {
+
+	@Mock
+	MongoTemplate mongoTemplate;
+
+	ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+	ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ArgumentCaptor<List<DBObject>> pipelineCaptor = (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+
+	private Expense expense() {
+		Expense expense = new Expense();
+		expense.setMerchant("merchant");
+		expense.setStatus("new");
+		expense.setTotal(new BigDecimal("12.50"));
+		expense.setDatetime(new Date(1451703845000L));
+		return expense;
+	}
+
+	private static DBObject group(String merchant, String status, int year, int month, int day, double total, long count) {
+		return new BasicDBObject("_id", new BasicDBObject("merchant", merchant).append("status", status)
+				.append("year", year).append("month", month).append("day", day))
+				.append("total", total).append("count", count);
+	}
+
+	// answer each aggregation of the expenses with the next of the given results
+	@SafeVarargs
+	@SuppressWarnings("unchecked")
+	private final void aggregates(List<DBObject>... results) {
+		List<Cursor> cursors = new ArrayList<>();
+		for (List<DBObject> result : results) {
+			cursors.add(cursor(result));
+		}
+
+		when(mongoTemplate.getConverter()).thenReturn(new MappingMongoConverter(mock(DbRefResolver.class), new MongoMappingContext()));
+		DBCollection expenses = mock(DBCollection.class);
+		OngoingStubbing<Cursor> stubbing = when(expenses.aggregate(pipelineCaptor.capture(), any(AggregationOptions.class)));
+		for (Cursor cursor : cursors) {
+			stubbing = stubbing.thenReturn(cursor);
+		}
+		when(mongoTemplate.execute(eq(Expense.class), any(CollectionCallback.class)))
+				.thenAnswer(invocation -> ((CollectionCallback<?>) invocation.getArguments()[1]).doInCollection(expenses));
+	}
+
+	private static Cursor cursor(List<DBObject> results) {
+		Iterator<DBObject> iterator = results.iterator();
+		Cursor cursor = mock(Cursor.class);
+		when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+		when(cursor.next()).thenAnswer(invocation -> iterator.next());
+		return cursor;
+	}
+
+	private static DBObject bucket(String merchant, String status, String day, double total, long count) {
+		return new BasicDBObject("_id", new BasicDBObject("merchant", merchant).append("status", status).append("day", day))
+				.append("total", total).append("count", count);
+	}
+
+	// a new expense is counted in its merchant, status and UTC day bucket
+	@Test
+	public void add() {
+		new ExpenseRollups(mongoTemplate).add(expense());
+
+		verify(mongoTemplate).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ExpenseRollups.COLLECTION));
+		assertEquals(new BasicDBObject("merchant", "merchant").append("status", "new").append("day", "2016-01-02"),
+				queryCaptor.getValue().getQueryObject().get("_id"));
+		DBObject inc = (DBObject) updateCaptor.getValue().getUpdateObject().get("$inc");
+		assertEquals(12.5, inc.get("total"));
+		assertEquals(1L, inc.get("count"));
+	}
+
+	// an update to the total moves the expense out of its bucket and back in with the new total
+	@Test
+	public void update_total() {
+		Expense changes = new Expense();
+		changes.setTotal(new BigDecimal("20"));
+
+		new ExpenseRollups(mongoTemplate).update(expense(), changes);
+
+		verify(mongoTemplate, times(2)).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ExpenseRollups.COLLECTION));
+		assertEquals(-12.5, ((DBObject) updateCaptor.getAllValues().get(0).getUpdateObject().get("$inc")).get("total"));
+		assertEquals(20.0, ((DBObject) updateCaptor.getAllValues().get(1).getUpdateObject().get("$inc")).get("total"));
+	}
+
+	// an update that leaves the bucket and total alone doesn't touch the rollup
+	@Test
+	public void update_commentsOnly() {
+		Expense changes = new Expense();
+		changes.setComments("more");
+
+		new ExpenseRollups(mongoTemplate).update(expense(), changes);
+
+		verify(mongoTemplate, never()).upsert(any(Query.class), any(Update.class), any(String.class));
+	}
+
+	// a status change marks the expenses it updates
+	@Test
+	public void mark() {
+		Update update = Update.update("status", "reimbursed");
+
+		String mark = new ExpenseRollups(mongoTemplate).mark(update);
+
+		assertEquals(mark, ((DBObject) update.getUpdateObject().get("$set")).get(ExpenseRollups.STATUS_CHANGE));
+	}
+
+	// the expenses marked by a status change are summed by the database after it and their buckets moved to the new status,
+	// then unmarked without touching their versions
+	@Test
+	public void transition() {
+		aggregates(Arrays.asList(group("merchant", "reimbursed", 2016, 1, 2, 30.5, 2)));
+		DBCollection expenses = mock(DBCollection.class);
+		when(mongoTemplate.getCollectionName(Expense.class)).thenReturn("expense");
+		when(mongoTemplate.getCollection("expense")).thenReturn(expenses);
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate);
+
+		rollups.transition("m1", "new", "reimbursed");
+
+		DBObject match = (DBObject) pipelineCaptor.getValue().get(0).get("$match");
+		assertEquals(new BasicDBObject(ExpenseRollups.STATUS_CHANGE, "m1"), match);
+		DBObject group = (DBObject) pipelineCaptor.getValue().get(1).get("$group");
+		assertEquals(new BasicDBObject("$sum", "$totalValue"), group.get("total"));
+
+		verify(mongoTemplate, times(2)).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ExpenseRollups.COLLECTION));
+		assertEquals("new", ((DBObject) queryCaptor.getAllValues().get(0).getQueryObject().get("_id")).get("status"));
+		assertEquals(-2L, ((DBObject) updateCaptor.getAllValues().get(0).getUpdateObject().get("$inc")).get("count"));
+		assertEquals("reimbursed", ((DBObject) queryCaptor.getAllValues().get(1).getQueryObject().get("_id")).get("status"));
+		assertEquals(2L, ((DBObject) updateCaptor.getAllValues().get(1).getUpdateObject().get("$inc")).get("count"));
+
+		verify(expenses).updateMulti(new BasicDBObject(ExpenseRollups.STATUS_CHANGE, "m1"),
+				new BasicDBObject("$unset", new BasicDBObject(ExpenseRollups.STATUS_CHANGE, "")));
+	}
+
+	// a status change whose expenses can't be summed leaves the rollup to a rebuild, and still unmarks them
+	@Test
+	@SuppressWarnings("unchecked")
+	public void transition_tallyFails() {
+		List<Runnable> rebuilds = new ArrayList<>();
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate, rebuilds::add);
+		DBCollection expenses = mock(DBCollection.class);
+		when(mongoTemplate.getCollectionName(Expense.class)).thenReturn("expense");
+		when(mongoTemplate.getCollection("expense")).thenReturn(expenses);
+		when(mongoTemplate.execute(eq(Expense.class), any(CollectionCallback.class))).thenThrow(new IllegalStateException("no database"));
+
+		rollups.transition("m1", "new", "reimbursed");
+
+		verify(mongoTemplate, never()).upsert(any(Query.class), any(Update.class), any(String.class));
+		verify(expenses).updateMulti(any(DBObject.class), any(DBObject.class));
+		assertEquals(1, rebuilds.size());
+		assertTrue(rollups.isRebuilding());
+		assertFalse(rollups.isReady());
+	}
+
+	// summaries are only read from the rollup once it is known to exist, and a running rebuild isn't started twice
+	@Test
+	public void run_rebuildsMissingRollup() {
+		List<Runnable> rebuilds = new ArrayList<>();
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate, rebuilds::add);
+		assertFalse(rollups.isReady());
+
+		rollups.run();
+
+		assertEquals(1, rebuilds.size());
+		assertFalse(rollups.startRebuild());
+		assertFalse(rollups.isReady());
+
+		when(mongoTemplate.collectionExists(ExpenseRollups.COLLECTION)).thenReturn(true);
+		ExpenseRollups existing = new ExpenseRollups(mongoTemplate, rebuilds::add);
+		existing.run();
+		assertTrue(existing.isReady());
+	}
+
+	// a rebuild asked for again while one is running runs once that one has finished
+	@Test
+	public void restartRebuild_afterRunning() {
+		List<Runnable> rebuilds = new ArrayList<>();
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate, rebuilds::add);
+		aggregates(new ArrayList<>());
+		when(mongoTemplate.createCollection(ExpenseRollups.COLLECTION + "_rebuild")).thenReturn(mock(DBCollection.class));
+
+		rollups.startRebuild();
+		rollups.restartRebuild();
+		assertEquals(1, rebuilds.size());
+
+		rebuilds.get(0).run();
+		assertEquals(2, rebuilds.size());
+		assertTrue(rollups.isRebuilding());
+
+		rebuilds.get(1).run();
+		assertEquals(2, rebuilds.size());
+		assertTrue(rollups.isReady());
+	}
+
+	// a bucket changed while the rollup was rebuilt is summed again once the rebuilt rollup is in place
+	@Test
+	public void rebuild_recomputesChangedBuckets() {
+		DBCollection rebuilt = mock(DBCollection.class);
+		when(mongoTemplate.createCollection(ExpenseRollups.COLLECTION + "_rebuild")).thenReturn(rebuilt);
+		List<Runnable> rebuilds = new ArrayList<>();
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate, rebuilds::add);
+		aggregates(Arrays.asList(group("merchant", "new", 2016, 1, 2, 12.5, 1)), Arrays.asList(group("merchant", "new", 2016, 1, 2, 25, 2)));
+
+		rollups.startRebuild();
+		rollups.add(expense());
+		rebuilds.get(0).run();
+
+		verify(rebuilt).rename(ExpenseRollups.COLLECTION, true);
+		verify(mongoTemplate, times(2)).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ExpenseRollups.COLLECTION));
+		DBObject set = (DBObject) updateCaptor.getAllValues().get(1).getUpdateObject().get("$set");
+		assertEquals(25.0, set.get("total"));
+		assertEquals(2L, set.get("count"));
+		assertTrue(rollups.isReady());
+		assertFalse(rollups.isRebuilding());
+	}
+
+	// summaries add up the buckets of each group and skip groups left empty
+	@Test
+	public void summarize() {
+		when(mongoTemplate.find(any(Query.class), eq(DBObject.class), eq(ExpenseRollups.COLLECTION))).thenReturn(Arrays.asList(
+				bucket("b", "new", "2016-01-02", 10.1, 1),
+				bucket("a", "new", "2016-01-03", 5.25, 2),
+				bucket("b", "reimbursed", "2016-01-30", 20.2, 1),
+				bucket("c", "new", "2016-02-01", 0, 0)));
+
+		List<ExpenseSummary> summaries = new ExpenseRollups(mongoTemplate).summarize(new HashMap<>(), Arrays.asList("merchant", "month"));
+
+		assertEquals(2, summaries.size());
+		assertEquals("a", summaries.get(0).getMerchant());
+		assertEquals("2016-01", summaries.get(0).getMonth());
+		assertEquals(new BigDecimal("5.25"), summaries.get(0).getTotal());
+		assertEquals(2, summaries.get(0).getCount());
+		assertEquals("b", summaries.get(1).getMerchant());
+		assertEquals(new BigDecimal("30.30"), summaries.get(1).getTotal());
+		assertEquals(2, summaries.get(1).getCount());
+	}
+
+	// expenses without a datetime are summarized without a month, first
+	@Test
+	public void summarize_noDatetime() {
+		when(mongoTemplate.find(any(Query.class), eq(DBObject.class), eq(ExpenseRollups.COLLECTION))).thenReturn(Arrays.asList(
+				bucket("a", "new", "2016-01-03", 5.25, 2),
+				bucket("a", "new", null, 1, 1)));
+
+		List<ExpenseSummary> summaries = new ExpenseRollups(mongoTemplate).summarize(new HashMap<>(), Arrays.asList("month"));
+
+		assertEquals(2, summaries.size());
+		assertEquals(null, summaries.get(0).getMonth());
+		assertEquals(1, summaries.get(0).getCount());
+		assertEquals("2016-01", summaries.get(1).getMonth());
+	}
+
+	// disabled rollups write nothing
+	@Test
+	public void disabled() {
+		ExpenseRollups rollups = ExpenseRollups.disabled();
+		rollups.add(expense());
+		rollups.remove(expense());
+		assertEquals(null, rollups.mark(new Update()));
+		rollups.transition("m1", "new", "reimbursed");
+	}
+}
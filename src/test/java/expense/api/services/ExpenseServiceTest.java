@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -11,13 +12,19 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -27,11 +34,23 @@ import org.mockito.exceptions.base.MockitoException;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
 import expense.api.repositories.ExpenseRepository;
 import expense.api.services.exceptions.NotFoundException;
+import expense.api.services.exceptions.OutOfBoundsException;
 import expense.api.services.exceptions.ValidationException;
+import expense.api.services.exceptions.VersionConflictException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ExpenseServiceTest {
@@ -41,7 +60,12 @@ public class ExpenseServiceTest {
 	@Mock
 	ExpenseRepository repository;
 
+	@Mock
+	MongoTemplate mongoTemplate;
+
 	ArgumentCaptor<Expense> expenseCaptor = ArgumentCaptor.forClass(Expense.class);
+	ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+	ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
 	
 	// create a saved expense for update tests
 	private Expense savedExpense() {
@@ -56,6 +80,19 @@ public class ExpenseServiceTest {
 		return savedExpense;
 	}
 	
+	// create a list of saved expenses for paging tests
+	private List<Expense> savedExpenses(int count) {
+		List<Expense> savedExpenses = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Expense savedExpense = savedExpense();
+			savedExpense.setId(Integer.toString(i));
+			savedExpense.setDatetime(new Date(1000L * i));
+			savedExpenses.add(savedExpense);
+		}
+		
+		return savedExpenses;
+	}
+	
 	// a null Id causes a NotFoundException
 	@Test
 	public void findExpense_nullId() throws Exception {
@@ -113,6 +150,83 @@ public class ExpenseServiceTest {
 		verify(repository, times(1)).findOne(eq("1"));
 	}
 
+	// repeated reads are served from the cache
+	@Test
+	public void findExpense_cached() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, null, new ExpenseCache(10, 60), ExpenseRollups.disabled(), new MerchantSuggestions(null));
+		
+		when(repository.findOne(anyString())).thenReturn(savedExpense());
+		
+		service.findExpense("1");
+		service.findExpense("1");
+		
+		verify(repository, times(1)).findOne(eq("1"));
+	}
+	
+	// a projected read asks the database for only the requested fields and the ones the ETag needs
+	@Test
+	public void findExpense_fields() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.findOne(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpense());
+		
+		assertNotNull(service.findExpense("1", "merchant, total"));
+		
+		DBObject fields = queryCaptor.getValue().getFieldsObject();
+		assertEquals(4, fields.keySet().size());
+		assertTrue(fields.containsField("merchant"));
+		assertTrue(fields.containsField("total"));
+		assertTrue(fields.containsField("version"));
+		assertTrue(fields.containsField("lastModified"));
+		verify(repository, times(0)).findOne(anyString());
+	}
+	
+	// a projected read of a cached expense is cut down from the cached expense
+	@Test
+	public void findExpense_fieldsCached() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate, new ExpenseCache(10, 60), ExpenseRollups.disabled(), new MerchantSuggestions(null));
+		
+		when(repository.findOne(anyString())).thenReturn(savedExpense());
+		service.findExpense("1");
+		
+		Expense exp = service.findExpense("1", "status");
+		assertEquals("1", exp.getId());
+		assertEquals("new", exp.getStatus());
+		assertNull(exp.getComments());
+		assertNull(exp.getMerchant());
+		verify(mongoTemplate, times(0)).findOne(any(Query.class), eq(Expense.class));
+	}
+	
+	// an unknown field causes an OutOfBoundsException
+	@Test
+	public void findExpense_invalidField() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.findExpense("1", "merchant,totalValue");
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Unable to include requested field [totalValue] (must be one of [id, merchant, total, datetime, comments, status, version, lastModified])", e.getMessage());
+		}
+	}
+	
+	// a deleted expense is no longer served from the cache
+	@Test
+	public void findExpense_invalidatedByDelete() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, null, new ExpenseCache(10, 60), ExpenseRollups.disabled(), new MerchantSuggestions(null));
+		
+		when(repository.findOne(anyString())).thenReturn(savedExpense());
+		
+		service.findExpense("1");
+		service.deleteExpense("1");
+		
+		when(repository.findOne(anyString())).thenReturn(null);
+		try {
+			service.findExpense("1");
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {}
+	}
+
 	// a null Id causes a NotFoundException
 	@Test
 	public void deleteExpense_nullId() throws Exception {
@@ -181,6 +295,43 @@ public class ExpenseServiceTest {
 		verify(repository, times(1)).delete(eq("1"));
 	}
 	
+	// a delete of a changed expense causes a VersionConflictException
+	@Test
+	public void deleteExpense_versionConflict() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Expense savedExpense = savedExpense();
+		savedExpense.setVersion(3L);
+		when(repository.findOne(anyString())).thenReturn(savedExpense);
+		
+		try {
+			service.deleteExpense("1", 2L);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			assertEquals("Expense [1] has been changed since version [2].", e.getMessage());
+		}
+		
+		verify(repository, times(0)).delete(anyString());
+		verify(mongoTemplate, times(0)).findAndRemove(any(Query.class), eq(Expense.class));
+	}
+	
+	// a versioned delete is guarded on the version
+	@Test
+	public void deleteExpense_versionSuccess() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Expense savedExpense = savedExpense();
+		savedExpense.setVersion(3L);
+		when(repository.findOne(anyString())).thenReturn(savedExpense);
+		
+		when(mongoTemplate.findAndRemove(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpense);
+		
+		service.deleteExpense("1", 3L);
+		
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("\"version\" : 3"));
+		verify(repository, times(0)).delete(anyString());
+	}
+	
 	// repository exceptions are passed out
 	@Test
 	public void listExpenses_repositoryException() throws Exception {
@@ -210,6 +361,399 @@ public class ExpenseServiceTest {
 		verify(repository, times(1)).findAll(any(PageRequest.class));
 	}
 	
+	// a full page returns the cursor of its last expense
+	@Test
+	public void listExpensesCursor_firstPage() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(3));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("size", "2");
+		
+		CursorPage page = service.listExpenses(filters, null);
+		assertEquals(2, page.getContents().size());
+		assertNotNull(page.getNext());
+		
+		Expense last = ExpenseServiceImpl.Cursor.decode(page.getNext());
+		assertEquals("1", last.getId());
+		assertEquals(1000L, last.getDatetime().getTime());
+		
+		assertEquals(3, queryCaptor.getValue().getLimit());  // one extra to detect a following page
+		assertEquals(0, queryCaptor.getValue().getSkip());
+		
+		verify(repository, times(0)).findAll(any(PageRequest.class));
+	}
+	
+	// a datetime read only to make the cursor is not returned
+	@Test
+	public void listExpensesCursor_fieldsWithoutDatetime() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(3));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("size", "2");
+		filters.put("fields", "merchant");
+		
+		CursorPage page = service.listExpenses(filters, null);
+		assertTrue(queryCaptor.getValue().getFieldsObject().containsField("datetime"));
+		assertNull(page.getContents().get(0).getDatetime());
+		assertNull(page.getContents().get(1).getDatetime());
+		assertEquals(1000L, ExpenseServiceImpl.Cursor.decode(page.getNext()).getDatetime().getTime());
+	}
+	
+	// a short page has no following cursor
+	@Test
+	public void listExpensesCursor_lastPage() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(1));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("size", "2");
+		filters.put("status", "new");
+		
+		CursorPage page = service.listExpenses(filters, ExpenseServiceImpl.Cursor.encode(savedExpense()));
+		assertEquals(1, page.getContents().size());
+		assertNull(page.getNext());
+		
+		// the cursor seeks instead of skipping
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("$or"));
+		assertEquals(0, queryCaptor.getValue().getSkip());
+	}
+	
+	// a page of no expenses is read from nowhere and has no following cursor, so following it can't loop
+	@Test
+	public void listExpensesCursor_sizeZero() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("size", "0");
+		
+		CursorPage page = service.listExpenses(filters, ExpenseServiceImpl.Cursor.encode(savedExpense()));
+		assertEquals(0, page.getContents().size());
+		assertNull(page.getNext());
+		verify(mongoTemplate, never()).find(any(Query.class), eq(Expense.class));
+	}
+	
+	// the cursor of an expense without a datetime seeks past the others without one and on to every expense with one
+	@Test
+	public void listExpensesCursor_withoutDatetime() throws Exception {
+		Expense expense = savedExpense();
+		expense.setDatetime(null);
+		
+		Expense last = ExpenseServiceImpl.Cursor.decode(ExpenseServiceImpl.Cursor.encode(expense));
+		assertNull(last.getDatetime());
+		assertEquals(expense.getId(), last.getId());
+		
+		String after = ExpenseServiceImpl.Cursor.after(last).getCriteriaObject().toString();
+		assertTrue(after.contains("$ne"));
+		assertTrue(after.contains("$gt"));
+	}
+	
+	// a filtered page of no expenses is empty rather than an invalid page request
+	@Test
+	public void listExpenses_filteredSizeZero() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("size", "0");
+		filters.put("status", "new");
+		
+		assertFalse(service.listExpenses(filters).iterator().hasNext());
+		verify(mongoTemplate, never()).find(any(Query.class), eq(Expense.class));
+	}
+	
+	// an unreadable cursor causes an OutOfBoundsException
+	@Test
+	public void listExpensesCursor_invalidCursor() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.listExpenses(new HashMap<>(), "not a cursor");
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Unable to parse requested cursor [not a cursor]", e.getMessage());
+		}
+	}
+	
+	// filtered pages skip whole pages, not single expenses
+	@Test
+	public void listExpenses_filteredPage() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(1));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("page", "3");
+		filters.put("size", "10");
+		filters.put("status", "new");
+		
+		service.listExpenses(filters);
+		assertEquals(30, queryCaptor.getValue().getSkip());
+		assertEquals(10, queryCaptor.getValue().getLimit());
+	}
+	
+	// a projected listing is read through a query even without filters, and fields is not a filter
+	@Test
+	public void listExpenses_fields() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(1));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("fields", "id,merchant,total,status");
+		
+		service.listExpenses(filters);
+		assertEquals(0, queryCaptor.getValue().getQueryObject().keySet().size());
+		assertFalse(queryCaptor.getValue().getFieldsObject().containsField("comments"));
+		assertTrue(queryCaptor.getValue().getFieldsObject().containsField("merchant"));
+		verify(repository, times(0)).findAll(any(PageRequest.class));
+	}
+	
+	// a search uses the text index and lists the most relevant expenses first
+	@Test
+	public void listExpenses_search() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(1));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("q", "taxi airport");
+		filters.put("status", "new");
+		filters.put("page", "1");
+		
+		service.listExpenses(filters);
+		
+		Query query = queryCaptor.getValue();
+		assertEquals("taxi airport", ((DBObject) query.getQueryObject().get("$text")).get("$search"));
+		assertTrue(query.getQueryObject().toString().contains("status"));
+		assertEquals(new BasicDBObject("$meta", "textScore"), query.getSortObject().get("score"));
+		assertEquals(1000, query.getSkip());
+	}
+	
+	// a search in any other listing is a text filter
+	@Test
+	public void streamExpenses_search() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.stream(queryCaptor.capture(), eq(Expense.class))).thenReturn(mock(CloseableIterator.class));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("q", "taxi");
+		
+		service.streamExpenses(filters);
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("$text"));
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("taxi"));
+	}
+	
+	// streaming ignores paging values and filters on the rest
+	@Test
+	public void streamExpenses_success() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.stream(queryCaptor.capture(), eq(Expense.class))).thenReturn(mock(CloseableIterator.class));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("page", "3");
+		filters.put("size", "10");
+		filters.put("status", "new");
+		
+		assertNotNull(service.streamExpenses(filters));
+		assertEquals(0, queryCaptor.getValue().getSkip());
+		assertEquals(0, queryCaptor.getValue().getLimit());
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("status"));
+	}
+	
+	// summaries are grouped by every group by default and the sums come back rounded to cents
+	@Test
+	public void summarizeExpenses_allGroups() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		DBObject id = new BasicDBObject("merchant", "merchant").append("status", "new").append("year", 2016).append("month", 3);
+		DBObject result = new BasicDBObject("_id", id).append("total", 30.300000000000004).append("count", 3);
+		ArgumentCaptor<Aggregation> aggregationCaptor = ArgumentCaptor.forClass(Aggregation.class);
+		when(mongoTemplate.aggregate(aggregationCaptor.capture(), eq(Expense.class), eq(DBObject.class)))
+			.thenReturn(new AggregationResults<>(Arrays.asList(result), new BasicDBObject()));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("page", "3");
+		filters.put("status", "new");
+		
+		List<ExpenseSummary> summaries = service.summarizeExpenses(filters);
+		
+		assertEquals(1, summaries.size());
+		assertEquals("merchant", summaries.get(0).getMerchant());
+		assertEquals("new", summaries.get(0).getStatus());
+		assertEquals("2016-03", summaries.get(0).getMonth());
+		assertEquals(new BigDecimal("30.30"), summaries.get(0).getTotal());
+		assertEquals(3, summaries.get(0).getCount());
+		
+		String pipeline = aggregationCaptor.getValue().toDbObject("expense", Aggregation.DEFAULT_CONTEXT).toString();
+		assertTrue(pipeline.contains("$match"));
+		assertTrue(pipeline.contains("$group"));
+		assertFalse(pipeline.contains("page"));
+	}
+	
+	// grouping by a single group makes the group the id
+	@Test
+	public void summarizeExpenses_oneGroup() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		DBObject result = new BasicDBObject("_id", "merchant").append("total", 12.5).append("count", 2);
+		when(mongoTemplate.aggregate(any(Aggregation.class), eq(Expense.class), eq(DBObject.class)))
+			.thenReturn(new AggregationResults<>(Arrays.asList(result), new BasicDBObject()));
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("groupBy", "merchant");
+		
+		List<ExpenseSummary> summaries = service.summarizeExpenses(filters);
+		
+		assertEquals("merchant", summaries.get(0).getMerchant());
+		assertNull(summaries.get(0).getStatus());
+		assertNull(summaries.get(0).getMonth());
+		assertEquals(new BigDecimal("12.50"), summaries.get(0).getTotal());
+	}
+	
+	// an unknown group causes an OutOfBoundsException
+	@Test
+	public void summarizeExpenses_invalidGroup() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("groupBy", "merchant,comments");
+		
+		try {
+			service.summarizeExpenses(filters);
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Unable to group summary by [comments] (must be one of [merchant, status, month])", e.getMessage());
+		}
+	}
+	
+	// no count is made unless one is asked for
+	@Test
+	public void countExpenses_none() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		assertNull(service.countExpenses(new HashMap<>(), null));
+		assertNull(service.countExpenses(new HashMap<>(), "none"));
+	}
+	
+	// an unknown count mode causes an OutOfBoundsException
+	@Test
+	public void countExpenses_invalidMode() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.countExpenses(new HashMap<>(), "roughly");
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Expense count must be one of 'exact', 'estimate' or 'none'.", e.getMessage());
+		}
+	}
+	
+	// an unfiltered count is the collection's document count
+	@Test
+	public void countExpenses_unfiltered() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.count()).thenReturn(41200L);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("page", "3");
+		
+		ExpenseCount count = service.countExpenses(filters, "estimate");
+		assertEquals(41200L, count.getCount());
+		assertFalse(count.isEstimated());
+	}
+	
+	// an exact filtered count counts every matching expense, within its own time limit
+	@Test
+	public void countExpenses_exact() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.countUpTo(queryCaptor.capture(), eq(0), eq(2000))).thenReturn(25000L);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("status", "new");
+		
+		ExpenseCount count = service.countExpenses(filters, "exact");
+		assertEquals(25000L, count.getCount());
+		assertFalse(count.isEstimated());
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("status"));
+	}
+	
+	// an estimated count that reaches its limit is reported as an estimate
+	@Test
+	public void countExpenses_estimateLimited() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.countUpTo(queryCaptor.capture(), eq(10000), eq(200))).thenReturn(10000L);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("status", "new");
+		
+		ExpenseCount count = service.countExpenses(filters, "estimate");
+		assertEquals(10000L, count.getCount());
+		assertTrue(count.isEstimated());
+		assertTrue(queryCaptor.getValue().getQueryObject().toString().contains("status"));
+	}
+	
+	// an estimated count that runs out of time gives no count
+	@Test
+	public void countExpenses_estimateTimedOut() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.countUpTo(any(Query.class), eq(10000), eq(200))).thenReturn(null);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("status", "new");
+		
+		assertNull(service.countExpenses(filters, "estimate"));
+	}
+	
+	// an exact count that runs out of time gives no count either
+	@Test
+	public void countExpenses_exactTimedOut() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.countUpTo(any(Query.class), eq(0), eq(2000))).thenReturn(null);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("status", "new");
+		
+		assertNull(service.countExpenses(filters, "exact"));
+		verify(mongoTemplate, never()).count(any(Query.class), eq(Expense.class));
+	}
+	
+	// a created expense's merchant is suggested straight away
+	@Test
+	public void suggestMerchants_afterCreate() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		Expense expense = savedExpense();
+		expense.setId(null);
+		
+		when(repository.save(any(Expense.class))).thenReturn(savedExpense());
+		
+		service.createExpense(expense);
+		assertEquals(Arrays.asList("merchant"), service.suggestMerchants("mer", 10));
+	}
+	
+	// a suggestion limit out of range causes an OutOfBoundsException
+	@Test
+	public void suggestMerchants_invalidLimit() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		
+		try {
+			service.suggestMerchants("mer", 101);
+			fail("Expected OutOfBoundsException");
+		} catch (OutOfBoundsException e) {
+			assertEquals("Merchant suggestion limit must be between 1 and 100.", e.getMessage());
+		}
+	}
+	
 	// a null object causes a ValidationException
 	@Test
 	public void createExpense_null() throws Exception {
@@ -330,6 +874,25 @@ public class ExpenseServiceTest {
 		verify(repository, times(1)).save(any(Expense.class));
 	}
 	
+	// new expenses record when they were last modified
+	@Test
+	public void createExpense_lastModified() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		Expense expense = new Expense();
+		expense.setMerchant("merchant");
+		expense.setTotal(new BigDecimal("1.0"));
+		expense.setDatetime(new Date(0));
+		
+		when(repository.save(expenseCaptor.capture())).thenReturn(savedExpense());
+		
+		long before = System.currentTimeMillis();
+		service.createExpense(expense);
+		
+		Expense capturedExpense = expenseCaptor.getValue();
+		assertNotNull(capturedExpense.getLastModified());
+		assertTrue(capturedExpense.getLastModified().getTime() >= before);
+	}
+	
 	// validate success with optional comments
 	@Test
 	public void createExpense_successOptionalComments() throws Exception {
@@ -381,6 +944,178 @@ public class ExpenseServiceTest {
 		verify(repository, times(1)).save(any(Expense.class));
 	}
 	
+	// an empty batch causes a ValidationException
+	@Test
+	public void createExpenses_empty() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.createExpenses(new ArrayList<>());
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Batch of expenses must contain between 1 and 10,000 expenses.", e.getMessage());
+		}
+	}
+	
+	// invalid expenses are reported without stopping the rest of the batch
+	@Test
+	public void createExpenses_partiallyInvalid() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Expense valid = new Expense();
+		valid.setMerchant("merchant");
+		valid.setTotal(new BigDecimal("1.0"));
+		valid.setDatetime(new Date());
+		
+		Expense invalid = new Expense();
+		invalid.setTotal(new BigDecimal("1.0"));
+		invalid.setDatetime(new Date());
+		
+		List<Expense> expenses = new ArrayList<>();
+		expenses.add(valid);
+		expenses.add(invalid);
+		
+		List<BatchResult> results = service.createExpenses(expenses);
+		assertEquals(2, results.size());
+		assertFalse(results.get(0).isError());
+		assertEquals(valid.getId(), results.get(0).getId());
+		assertEquals("new", valid.getStatus());  // business rule: status value is defaulted
+		assertTrue(results.get(1).isError());
+		assertEquals("Expense merchant is required.", results.get(1).getError());
+		
+		verify(repository, times(1)).insertAll(Arrays.asList(valid));
+		verify(repository, times(0)).save(any(Expense.class));
+	}
+	
+	// a batch with no valid expenses does not touch the database
+	@Test
+	public void createExpenses_allInvalid() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		List<Expense> expenses = new ArrayList<>();
+		expenses.add(new Expense());
+		
+		List<BatchResult> results = service.createExpenses(expenses);
+		assertEquals(1, results.size());
+		assertTrue(results.get(0).isError());
+		
+		verify(repository, times(0)).insertAll(any(List.class));
+	}
+	
+	// a bulk transition to an unknown status causes a ValidationException
+	@Test
+	public void updateExpenseStatus_invalidStatus() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.updateExpenseStatus("invalid", null, new HashMap<>());
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Expense status is invalid (must be either 'new' or 'reimbursed')", e.getMessage());
+		}
+	}
+	
+	// a bulk transition needs ids or filters
+	@Test
+	public void updateExpenseStatus_noSelection() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		try {
+			service.updateExpenseStatus("reimbursed", new ArrayList<>(), new HashMap<>());
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Expense ids or filters are required.", e.getMessage());
+		}
+		
+		verify(repository, times(0)).updateAll(any(Query.class), any(Update.class));
+	}
+	
+	// ids that are not in 'new' status are skipped
+	@Test
+	public void updateExpenseStatus_byIds() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(any(Query.class), eq(Expense.class))).thenReturn(savedExpenses(2));
+		when(repository.updateAll(queryCaptor.capture(), any(Update.class))).thenReturn(2L);
+		
+		List<String> ids = new ArrayList<>();
+		ids.add("0");
+		ids.add("1");
+		ids.add("2");
+		
+		TransitionResult result = service.updateExpenseStatus("reimbursed", ids, new HashMap<>());
+		assertEquals(2, result.getUpdated());
+		assertEquals(1, result.getSkipped().size());
+		assertEquals("2", result.getSkipped().get(0));
+		
+		// business rule: only 'new' expenses are changed
+		assertEquals("new", queryCaptor.getValue().getQueryObject().get("status"));
+		verify(repository, times(0)).save(any(Expense.class));
+	}
+	
+	// filtered transitions are a single update
+	@Test
+	public void updateExpenseStatus_byFilters() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(repository.updateAll(queryCaptor.capture(), any(Update.class))).thenReturn(5L);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("merchant", "merchant");
+		
+		TransitionResult result = service.updateExpenseStatus("reimbursed", null, filters);
+		assertEquals(5, result.getUpdated());
+		assertNull(result.getSkipped());
+		
+		assertEquals("new", queryCaptor.getValue().getQueryObject().get("status"));
+		verify(mongoTemplate, times(0)).find(any(Query.class), eq(Expense.class));
+	}
+	
+	// paging parameters alone select nothing
+	@Test
+	public void updateExpenseStatus_pagingOnly() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("page", "1");
+		filters.put("size", "10");
+		
+		try {
+			service.updateExpenseStatus("reimbursed", null, filters);
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Expense ids or filters are required.", e.getMessage());
+		}
+		
+		verify(repository, times(0)).updateAll(any(Query.class), any(Update.class));
+	}
+	
+	// filters given with ids are part of both finding and updating the expenses
+	@Test
+	public void updateExpenseStatus_byIdsAndFilters() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		
+		when(mongoTemplate.find(queryCaptor.capture(), eq(Expense.class))).thenReturn(savedExpenses(1));
+		ArgumentCaptor<Query> updateQuery = ArgumentCaptor.forClass(Query.class);
+		when(repository.updateAll(updateQuery.capture(), any(Update.class))).thenReturn(1L);
+		
+		Map<String,String> filters = new HashMap<>();
+		filters.put("merchant", "merchant");
+		filters.put("page", "1");
+		
+		TransitionResult result = service.updateExpenseStatus("reimbursed", Arrays.asList("0", "1"), filters);
+		assertEquals(1, result.getUpdated());
+		assertEquals(Arrays.asList("1"), result.getSkipped());
+		
+		for (Query query : Arrays.asList(queryCaptor.getValue(), updateQuery.getValue())) {
+			String selected = query.getQueryObject().toString();
+			assertTrue(selected.contains("merchant"));
+			assertTrue(selected.contains("$in"));
+			assertFalse(selected.contains("page"));
+			assertEquals("new", query.getQueryObject().get("status"));
+		}
+	}
+	
 	// a null id causes a NotFoundException
 	@Test
 	public void updateExpense_noId() throws Exception {
@@ -482,7 +1217,7 @@ public class ExpenseServiceTest {
 	// reimbursed expenses cannot be updated
 	@Test
 	public void updateExpense_reimbursed() throws Exception {
-		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
 		Expense expense = new Expense();
 		expense.setMerchant("one");
 		
@@ -518,60 +1253,118 @@ public class ExpenseServiceTest {
 	// validate success
 	@Test
 	public void updateExpense_success() throws Exception {
-		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
 		Expense expense = new Expense();
 		expense.setMerchant("Starbucks");
 		
-		when(repository.findOne(eq("1"))).thenReturn(savedExpense());
-		
 		Expense resultExpense = savedExpense();
 		resultExpense.setId("testing");
-		when(repository.save(expenseCaptor.capture())).thenReturn(resultExpense);
+		when(mongoTemplate.findAndModify(queryCaptor.capture(), updateCaptor.capture(), eq(Expense.class))).thenReturn(resultExpense);
 		
 		String idResult = service.updateExpense("1", expense);
 		assertEquals("testing", idResult);
 		
-		Expense capturedExpense = expenseCaptor.getValue();
-		assertNotNull(capturedExpense);
-		assertEquals("1", capturedExpense.getId());  // Id didn't change
-		assertEquals("new", capturedExpense.getStatus()); // status didn't change
-		assertEquals("Starbucks", capturedExpense.getMerchant()); // merchant was updated
+		DBObject set = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+		assertNotNull(set);
+		assertFalse(set.containsField("id"));  // Id didn't change
+		assertFalse(set.containsField("status")); // status didn't change
+		assertEquals("Starbucks", set.get("merchant")); // merchant was updated
 		
-		verify(repository, times(1)).findOne(eq("1"));
-		verify(repository, times(1)).save(any(Expense.class));
+		// business rule: the update only applies to expenses that are not reimbursed
+		assertEquals("1", queryCaptor.getValue().getQueryObject().get("id"));
+		assertNotNull(queryCaptor.getValue().getQueryObject().get("status"));
+		
+		// a single round trip with no read
+		verify(repository, times(0)).findOne(anyString());
+		verify(repository, times(0)).save(any(Expense.class));
+		verify(mongoTemplate, times(1)).findAndModify(any(Query.class), any(Update.class), eq(Expense.class));
 	}
 	
 	// validate success with updating multiple properties
 	@Test
 	public void updateExpense_successMultiFieldUpdate() throws Exception {
-		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
 		Expense expense = new Expense();
 		expense.setMerchant("Starbucks");
 		expense.setStatus("reimbursed");
 		
-		when(repository.findOne(eq("1"))).thenReturn(savedExpense());
-		
 		Expense resultExpense = savedExpense();
 		resultExpense.setId("testing");
-		when(repository.save(expenseCaptor.capture())).thenReturn(resultExpense);
+		when(mongoTemplate.findAndModify(any(Query.class), updateCaptor.capture(), eq(Expense.class))).thenReturn(resultExpense);
 		
 		String idResult = service.updateExpense("1", expense);
 		assertEquals("testing", idResult);
 		
-		Expense capturedExpense = expenseCaptor.getValue();
-		assertNotNull(capturedExpense);
-		assertEquals("1", capturedExpense.getId());  // Id didn't change
-		assertEquals("reimbursed", capturedExpense.getStatus()); // status was changed
-		assertEquals("Starbucks", capturedExpense.getMerchant()); // merchant was updated
+		DBObject set = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+		assertNotNull(set);
+		assertFalse(set.containsField("id"));  // Id didn't change
+		assertEquals("reimbursed", set.get("status")); // status was changed
+		assertEquals("Starbucks", set.get("merchant")); // merchant was updated
 		
-		verify(repository, times(1)).findOne(eq("1"));
-		verify(repository, times(1)).save(any(Expense.class));
+		verify(repository, times(0)).findOne(anyString());
+		verify(mongoTemplate, times(1)).findAndModify(any(Query.class), any(Update.class), eq(Expense.class));
+	}
+
+	// a versioned update is guarded on the version and increments it
+	@Test
+	public void updateExpense_versionSuccess() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		Expense expense = new Expense();
+		expense.setMerchant("Starbucks");
+		
+		when(mongoTemplate.findAndModify(queryCaptor.capture(), updateCaptor.capture(), eq(Expense.class))).thenReturn(savedExpense());
+		
+		service.updateExpense("1", expense, 4L);
+		
+		assertEquals(4L, queryCaptor.getValue().getQueryObject().get("version"));
+		DBObject inc = (DBObject) updateCaptor.getValue().getUpdateObject().get("$inc");
+		assertEquals(1, inc.get("version"));
+		DBObject set = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+		assertNotNull(set.get("lastModified"));
+	}
+	
+	// an update of a changed expense causes a VersionConflictException
+	@Test
+	public void updateExpense_versionConflict() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		Expense expense = new Expense();
+		expense.setMerchant("Starbucks");
+		
+		Expense savedExpense = savedExpense();
+		savedExpense.setVersion(5L);
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(Expense.class))).thenReturn(null);
+		when(repository.findOne(eq("1"))).thenReturn(savedExpense);
+		
+		try {
+			service.updateExpense("1", expense, 4L);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			assertEquals("Expense [1] has been changed since version [4].", e.getMessage());
+		}
+	}
+	
+	// an update of a missing expense causes a NotFoundException
+	@Test
+	public void updateExpense_notFound() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		Expense expense = new Expense();
+		expense.setMerchant("Starbucks");
+		
+		when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(Expense.class))).thenReturn(null);
+		when(repository.findOne(eq("1"))).thenReturn(null);
+		
+		try {
+			service.updateExpense("1", expense);
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {
+			assertEquals("Expense not found for id [1]", e.getMessage());
+		}
 	}
 
 	// validate success that comments are appended
 	@Test
 	public void updateExpense_successAppendComments() throws Exception {
-		ExpenseService service = new ExpenseServiceImpl(repository, null);
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
 		Expense expense = new Expense();
 		expense.setComments("append");
 		
@@ -579,18 +1372,44 @@ public class ExpenseServiceTest {
 		
 		Expense resultExpense = savedExpense();
 		resultExpense.setId("testing");
-		when(repository.save(expenseCaptor.capture())).thenReturn(resultExpense);
+		when(mongoTemplate.findAndModify(queryCaptor.capture(), updateCaptor.capture(), eq(Expense.class))).thenReturn(resultExpense);
 		
 		String idResult = service.updateExpense("1", expense);
 		assertEquals("testing", idResult);
 		
-		Expense capturedExpense = expenseCaptor.getValue();
-		assertNotNull(capturedExpense);
-		assertEquals("1", capturedExpense.getId());  // Id didn't change
-		assertEquals("comment\nappend", capturedExpense.getComments()); // comments are appended
+		DBObject set = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+		assertNotNull(set);
+		assertFalse(set.containsField("id"));  // Id didn't change
+		assertEquals("comment\nappend", set.get("comments")); // comments are appended
+		
+		// the comments are only written if no one else appended to them first
+		assertEquals("comment", queryCaptor.getValue().getQueryObject().get("comments"));
 		
 		verify(repository, times(1)).findOne(eq("1"));
-		verify(repository, times(1)).save(any(Expense.class));
+		verify(repository, times(0)).save(any(Expense.class));
+	}
+
+	// comments that change while appending are read again
+	@Test
+	public void updateExpense_concurrentAppendComments() throws Exception {
+		ExpenseService service = new ExpenseServiceImpl(repository, mongoTemplate);
+		Expense expense = new Expense();
+		expense.setComments("append");
+		
+		Expense concurrentExpense = savedExpense();
+		concurrentExpense.setComments("comment\nconcurrent");
+		when(repository.findOne(eq("1"))).thenReturn(savedExpense(), concurrentExpense);
+		
+		Expense resultExpense = savedExpense();
+		when(mongoTemplate.findAndModify(any(Query.class), updateCaptor.capture(), eq(Expense.class))).thenReturn(null, resultExpense);
+		
+		service.updateExpense("1", expense);
+		
+		DBObject set = (DBObject) updateCaptor.getValue().getUpdateObject().get("$set");
+		assertEquals("comment\nconcurrent\nappend", set.get("comments")); // no comments were lost
+		
+		verify(repository, times(2)).findOne(eq("1"));
+		verify(mongoTemplate, times(2)).findAndModify(any(Query.class), any(Update.class), eq(Expense.class));
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,434 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.util.CloseableIterator;
+
+import expense.api.model.Expense;
+import expense.api.model.ExpenseSummary;
+import expense.api.repositories.InMemoryExpenseRepository;
+import expense.api.repositories.InMemoryMongoTemplate;
+import expense.api.services.exceptions.NotFoundException;
+import expense.api.services.exceptions.ValidationException;
+import expense.api.services.exceptions.VersionConflictException;
+
+// the scenarios of ExpenseServiceTest that reach the store, run against the in-memory store instead of mocks
+public class InMemoryExpenseServiceTest {
+
+	InMemoryExpenseRepository repository;
+	InMemoryMongoTemplate mongoTemplate;
+	ExpenseService service;
+
+	@Before
+	public void setup() {
+		repository = new InMemoryExpenseRepository();
+		mongoTemplate = new InMemoryMongoTemplate(repository);
+		service = new ExpenseServiceImpl(repository, mongoTemplate, new ExpenseCache(10, 60), ExpenseRollups.disabled(), new MerchantSuggestions(mongoTemplate));
+	}
+
+	// create an expense at the given second of the epoch
+	private String create(String merchant, String total, long second, String comments) throws Exception {
+		Expense expense = new Expense();
+		expense.setMerchant(merchant);
+		expense.setTotal(new BigDecimal(total));
+		expense.setDatetime(new Date(1000L * second));
+		expense.setComments(comments);
+		return service.createExpense(expense);
+	}
+
+	private static Map<String,String> filters(String... keyValues) {
+		Map<String,String> filters = new HashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			filters.put(keyValues[i], keyValues[i + 1]);
+		}
+		return filters;
+	}
+
+	private static List<String> ids(Iterable<Expense> expenses) {
+		List<String> ids = new ArrayList<>();
+		for (Expense expense : expenses) {
+			ids.add(expense.getId());
+		}
+		return ids;
+	}
+
+	private static Expense changes(String merchant) {
+		Expense changes = new Expense();
+		changes.setMerchant(merchant);
+		return changes;
+	}
+
+	// not found exceptions are passed out
+	@Test
+	public void findExpense_notFound() throws Exception {
+		try {
+			service.findExpense("1");
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {}
+	}
+
+	// verify success
+	@Test
+	public void findExpense_success() throws Exception {
+		String id = create("merchant", "1.00", 1, "comment");
+
+		Expense expense = service.findExpense(id);
+		assertEquals(id, expense.getId());
+		assertEquals("merchant", expense.getMerchant());
+		assertEquals(Long.valueOf(0), expense.getVersion());
+	}
+
+	// a projected read returns only the requested fields
+	@Test
+	public void findExpense_fields() throws Exception {
+		String id = create("merchant", "1.00", 1, "comment");
+
+		Expense expense = service.findExpense(id, "merchant, total");
+		assertEquals(id, expense.getId());
+		assertEquals("merchant", expense.getMerchant());
+		assertEquals(new BigDecimal("1.00"), expense.getTotal());
+		assertNull(expense.getComments());
+	}
+
+	// a deleted expense is no longer served from the cache
+	@Test
+	public void findExpense_invalidatedByDelete() throws Exception {
+		String id = create("merchant", "1.00", 1, null);
+		service.findExpense(id);
+		service.deleteExpense(id);
+
+		try {
+			service.findExpense(id);
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {}
+	}
+
+	// a reimbursed expense cannot be deleted
+	@Test
+	public void deleteExpense_reimbursedException() throws Exception {
+		String id = create("merchant", "1.00", 1, null);
+		service.updateExpenseStatus("reimbursed", Arrays.asList(id), null);
+
+		try {
+			service.deleteExpense(id);
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Reimbursed expense cannot be deleted.", e.getMessage());
+		}
+		assertNotNull(repository.findOne(id));
+	}
+
+	// a delete of a changed expense causes a VersionConflictException, and one at the saved version removes it
+	@Test
+	public void deleteExpense_version() throws Exception {
+		String id = create("merchant", "1.00", 1, null);
+		service.updateExpense(id, changes("other"));
+
+		try {
+			service.deleteExpense(id, 0L);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			assertEquals("Expense [" + id + "] has been changed since version [0].", e.getMessage());
+		}
+
+		service.deleteExpense(id, 1L);
+		assertNull(repository.findOne(id));
+	}
+
+	// a full page returns the cursor of its last expense, and a short page has no following cursor
+	@Test
+	public void listExpensesCursor_pages() throws Exception {
+		String first = create("a", "1.00", 1, null);
+		String second = create("b", "1.00", 2, null);
+		String third = create("c", "1.00", 3, null);
+
+		CursorPage page = service.listExpenses(filters("size", "2", "fields", "merchant"), null);
+		assertEquals(Arrays.asList(first, second), ids(page.getContents()));
+		assertNull(page.getContents().get(0).getDatetime());
+		assertNotNull(page.getNext());
+
+		page = service.listExpenses(filters("size", "2"), page.getNext());
+		assertEquals(Arrays.asList(third), ids(page.getContents()));
+		assertNull(page.getNext());
+	}
+
+	// expenses without a datetime are paged first, each exactly once
+	@Test
+	public void listExpensesCursor_withoutDatetime() throws Exception {
+		List<String> undated = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Expense expense = new Expense();
+			expense.setMerchant("legacy");
+			expense.setTotal(new BigDecimal("1.00"));
+			undated.add(repository.save(expense).getId());
+		}
+		String dated = create("a", "1.00", 1, null);
+
+		List<String> listed = new ArrayList<>();
+		String cursor = null;
+		do {
+			CursorPage page = service.listExpenses(filters("size", "2"), cursor);
+			listed.addAll(ids(page.getContents()));
+			cursor = page.getNext();
+		} while (cursor != null);
+
+		Collections.sort(undated);
+		undated.add(dated);
+		assertEquals(undated, listed);
+	}
+
+	// a page of no expenses has no following cursor, and a filtered page of none is empty
+	@Test
+	public void listExpenses_sizeZero() throws Exception {
+		create("a", "1.00", 1, null);
+
+		CursorPage page = service.listExpenses(filters("size", "0"), null);
+		assertEquals(0, page.getContents().size());
+		assertNull(page.getNext());
+		assertEquals(0, ids(service.listExpenses(filters("merchant", "a", "size", "0"))).size());
+		assertEquals(0, ids(service.listExpenses(filters("size", "0"))).size());
+	}
+
+	// filtered pages skip whole pages
+	@Test
+	public void listExpenses_filteredPage() throws Exception {
+		List<String> created = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			created.add(create("merchant", "1.00", i, null));
+		}
+		create("other", "1.00", 10, null);
+
+		assertEquals(created.subList(2, 4), ids(service.listExpenses(filters("merchant", "merchant", "page", "1", "size", "2"))));
+	}
+
+	// a search lists the most relevant expenses first
+	@Test
+	public void listExpenses_search() throws Exception {
+		String taxi = create("Taxi", "1.00", 1, "to the hotel");
+		String airportTaxi = create("Taxi", "1.00", 2, "to the airport");
+		create("Hotel", "1.00", 3, null);
+
+		assertEquals(Arrays.asList(airportTaxi, taxi), ids(service.listExpenses(filters("q", "taxi airport"))));
+	}
+
+	// streaming filters on everything but paging values
+	@Test
+	public void streamExpenses_success() throws Exception {
+		String first = create("merchant", "1.00", 1, null);
+		create("other", "1.00", 2, null);
+		String third = create("merchant", "1.00", 3, null);
+
+		List<String> streamed = new ArrayList<>();
+		try (CloseableIterator<Expense> expenses = service.streamExpenses(filters("merchant", "merchant", "page", "3", "size", "1"))) {
+			while (expenses.hasNext()) {
+				streamed.add(expenses.next().getId());
+			}
+		}
+		assertEquals(Arrays.asList(first, third), streamed);
+	}
+
+	// summaries are grouped by every group by default and the sums come back rounded to cents
+	@Test
+	public void summarizeExpenses_allGroups() throws Exception {
+		create("merchant", "10.10", 0, null);
+		create("merchant", "10.10", 60, null);
+		create("merchant", "10.10", 120, null);
+		create("other", "5.00", 0, null);
+
+		List<ExpenseSummary> summaries = service.summarizeExpenses(filters("merchant", "merchant"));
+
+		assertEquals(1, summaries.size());
+		assertEquals("merchant", summaries.get(0).getMerchant());
+		assertEquals("new", summaries.get(0).getStatus());
+		assertEquals("1970-01", summaries.get(0).getMonth());
+		assertEquals(new BigDecimal("30.30"), summaries.get(0).getTotal());
+		assertEquals(3, summaries.get(0).getCount());
+	}
+
+	// grouping by a single group makes the group the id
+	@Test
+	public void summarizeExpenses_oneGroup() throws Exception {
+		create("b", "2.50", 0, null);
+		create("a", "1.00", 0, null);
+		create("b", "10.00", 0, null);
+
+		List<ExpenseSummary> summaries = service.summarizeExpenses(filters("groupBy", "merchant"));
+
+		assertEquals(2, summaries.size());
+		assertEquals("a", summaries.get(0).getMerchant());
+		assertEquals("b", summaries.get(1).getMerchant());
+		assertNull(summaries.get(1).getStatus());
+		assertNull(summaries.get(1).getMonth());
+		assertEquals(new BigDecimal("12.50"), summaries.get(1).getTotal());
+		assertEquals(2, summaries.get(1).getCount());
+	}
+
+	// an unfiltered count is every expense
+	@Test
+	public void countExpenses_unfiltered() throws Exception {
+		create("a", "1.00", 1, null);
+		create("b", "1.00", 2, null);
+
+		ExpenseCount count = service.countExpenses(filters("page", "3"), "estimate");
+		assertEquals(2L, count.getCount());
+		assertFalse(count.isEstimated());
+	}
+
+	// exact and estimated filtered counts count every matching expense
+	@Test
+	public void countExpenses_filtered() throws Exception {
+		create("a", "1.00", 1, null);
+		create("a", "1.00", 2, null);
+		create("b", "1.00", 3, null);
+
+		assertEquals(2L, service.countExpenses(filters("merchant", "a"), "exact").getCount());
+
+		ExpenseCount count = service.countExpenses(filters("merchant", "a"), "estimate");
+		assertEquals(2L, count.getCount());
+		assertFalse(count.isEstimated());
+	}
+
+	// a created expense's merchant is suggested straight away
+	@Test
+	public void suggestMerchants_afterCreate() throws Exception {
+		create("merchant", "1.00", 1, null);
+		assertEquals(Arrays.asList("merchant"), service.suggestMerchants("mer", 10));
+	}
+
+	// invalid expenses are reported without stopping the rest of the batch
+	@Test
+	public void createExpenses_partiallyInvalid() throws Exception {
+		Expense valid = new Expense();
+		valid.setMerchant("merchant");
+		valid.setTotal(new BigDecimal("1.0"));
+		valid.setDatetime(new Date());
+
+		Expense invalid = new Expense();
+		invalid.setTotal(new BigDecimal("1.0"));
+		invalid.setDatetime(new Date());
+
+		List<BatchResult> results = service.createExpenses(Arrays.asList(valid, invalid));
+		assertEquals(2, results.size());
+		assertFalse(results.get(0).isError());
+		assertEquals("new", service.findExpense(results.get(0).getId()).getStatus());
+		assertTrue(results.get(1).isError());
+		assertEquals("Expense merchant is required.", results.get(1).getError());
+		assertEquals(1, repository.count());
+	}
+
+	// ids that are not in 'new' status are skipped
+	@Test
+	public void updateExpenseStatus_byIds() throws Exception {
+		String first = create("a", "1.00", 1, null);
+		String second = create("b", "1.00", 2, null);
+		service.updateExpenseStatus("reimbursed", Arrays.asList(first), null);
+
+		TransitionResult result = service.updateExpenseStatus("reimbursed", Arrays.asList(first, second, "missing"), null);
+		assertEquals(1, result.getUpdated());
+		assertEquals(Arrays.asList(first, "missing"), result.getSkipped());
+		assertEquals("reimbursed", service.findExpense(second).getStatus());
+	}
+
+	// filtered transitions change every matching 'new' expense
+	@Test
+	public void updateExpenseStatus_byFilters() throws Exception {
+		String first = create("a", "1.00", 1, null);
+		create("a", "1.00", 2, null);
+		String other = create("b", "1.00", 3, null);
+		service.findExpense(first);
+
+		TransitionResult result = service.updateExpenseStatus("reimbursed", null, filters("merchant", "a"));
+		assertEquals(2, result.getUpdated());
+		assertNull(result.getSkipped());
+		assertEquals("reimbursed", service.findExpense(first).getStatus());
+		assertEquals("new", service.findExpense(other).getStatus());
+	}
+
+	// filters given with ids narrow them down, and paging parameters are not filters
+	@Test
+	public void updateExpenseStatus_byIdsAndFilters() throws Exception {
+		String first = create("a", "1.00", 1, null);
+		String second = create("b", "1.00", 2, null);
+		String third = create("a", "1.00", 3, null);
+
+		TransitionResult result = service.updateExpenseStatus("reimbursed", Arrays.asList(first, second), 
+				filters("merchant", "a", "page", "2", "size", "1"));
+		assertEquals(1, result.getUpdated());
+		assertEquals(Arrays.asList(second), result.getSkipped());
+		assertEquals("reimbursed", service.findExpense(first).getStatus());
+		assertEquals("new", service.findExpense(second).getStatus());
+
+		result = service.updateExpenseStatus("reimbursed", null, filters("merchant", "a", "size", "1"));
+		assertEquals(1, result.getUpdated());
+		assertEquals("reimbursed", service.findExpense(third).getStatus());
+	}
+
+	// reimbursed expenses cannot be updated
+	@Test
+	public void updateExpense_reimbursed() throws Exception {
+		String id = create("merchant", "1.00", 1, null);
+		service.updateExpenseStatus("reimbursed", Arrays.asList(id), null);
+
+		try {
+			service.updateExpense(id, changes("other"));
+			fail("Expected ValidationException");
+		} catch (ValidationException e) {
+			assertEquals("Reimbursed expense cannot be updated.", e.getMessage());
+		}
+	}
+
+	// an update of a missing expense causes a NotFoundException
+	@Test
+	public void updateExpense_notFound() throws Exception {
+		try {
+			service.updateExpense("1", changes("other"));
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {
+			assertEquals("Expense not found for id [1]", e.getMessage());
+		}
+	}
+
+	// a versioned update is guarded on the version and increments it
+	@Test
+	public void updateExpense_version() throws Exception {
+		String id = create("merchant", "1.00", 1, null);
+		service.updateExpense(id, changes("other"), 0L);
+		assertEquals(Long.valueOf(1), service.findExpense(id).getVersion());
+		assertEquals("other", service.findExpense(id).getMerchant());
+
+		try {
+			service.updateExpense(id, changes("third"), 0L);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			assertEquals("Expense [" + id + "] has been changed since version [0].", e.getMessage());
+		}
+	}
+
+	// comments are appended
+	@Test
+	public void updateExpense_successAppendComments() throws Exception {
+		String id = create("merchant", "1.00", 1, "comment");
+
+		Expense changes = new Expense();
+		changes.setComments("append");
+		service.updateExpense(id, changes);
+
+		assertEquals("comment\nappend", service.findExpense(id).getComments());
+	}
+}
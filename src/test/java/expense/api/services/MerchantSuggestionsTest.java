@@ -0,0 +1,217 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import expense.api.model.Expense;
+
+public class MerchantSuggestionsTest {
+
+	private static Expense expense(String merchant) {
+		Expense expense = new Expense();
+		expense.setMerchant(merchant);
+		return expense;
+	}
+
+	private static Expense expense(String id, String merchant) {
+		Expense expense = expense(merchant);
+		expense.setId(id);
+		return expense;
+	}
+
+	private static MerchantSuggestions suggestions(String... merchants) {
+		MerchantSuggestions suggestions = new MerchantSuggestions(null);
+		for (String merchant : merchants) {
+			suggestions.add(expense(merchant));
+		}
+		return suggestions;
+	}
+
+	// merchants starting with the prefix are suggested most frequent first, ignoring case
+	@Test
+	public void suggest_ranked() {
+		MerchantSuggestions suggestions = suggestions("Starbucks", "Staples", "Staples", "Subway", "State Farm", "staples", "Starbucks");
+
+		assertEquals(Arrays.asList("staples", "Starbucks", "State Farm"), suggestions.suggest("STA", 10));
+		assertEquals(Arrays.asList("staples", "Starbucks"), suggestions.suggest("sta", 2));
+		assertEquals(Arrays.asList("Subway"), suggestions.suggest("su", 10));
+		assertEquals(Collections.emptyList(), suggestions.suggest("x", 10));
+	}
+
+	// a merchant is no longer suggested once its expenses are gone
+	@Test
+	public void remove() {
+		MerchantSuggestions suggestions = suggestions("Starbucks", "Staples", "Staples");
+
+		suggestions.remove(expense("Starbucks"));
+		suggestions.remove(expense("Staples"));
+
+		assertEquals(Arrays.asList("Staples"), suggestions.suggest("", 10));
+	}
+
+	// an update that changes the merchant moves the expense to the new merchant
+	@Test
+	public void update() {
+		MerchantSuggestions suggestions = suggestions("Starbucks");
+
+		suggestions.update(expense("Starbucks"), expense("Peets"));
+		suggestions.update(expense("Peets"), new Expense());
+
+		assertEquals(Arrays.asList("Peets"), suggestions.suggest(null, 10));
+	}
+
+	// a rebuild counts the merchants of every expense
+	@Test
+	@SuppressWarnings("unchecked")
+	public void rebuild() {
+		MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+		Iterator<Expense> expenses = Arrays.asList(expense("Subway"), expense("Starbucks"), expense("Starbucks")).iterator();
+		CloseableIterator<Expense> stream = mock(CloseableIterator.class);
+		when(stream.hasNext()).thenAnswer(i -> expenses.hasNext());
+		when(stream.next()).thenAnswer(i -> expenses.next());
+		when(mongoTemplate.stream(any(Query.class), eq(Expense.class))).thenReturn(stream);
+
+		MerchantSuggestions suggestions = new MerchantSuggestions(mongoTemplate);
+		suggestions.add(expense("Gone"));
+
+		assertEquals(2, suggestions.rebuild());
+		assertEquals(Arrays.asList("Starbucks", "Subway"), suggestions.suggest("s", 10));
+		assertEquals(Collections.emptyList(), suggestions.suggest("g", 10));
+	}
+
+	// the kept lists of short prefixes follow changes to the merchants they rank, including past the end of a full list
+	@Test
+	public void suggest_shortPrefixesFollowChanges() {
+		MerchantSuggestions suggestions = new MerchantSuggestions(null);
+		Map<String,Integer> counts = new HashMap<>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 5000; i++) {
+			String merchant = String.format("m%03d", random.nextInt(150));
+			if (random.nextInt(3) == 0 && counts.getOrDefault(merchant, 0) > 0) {
+				suggestions.remove(expense(merchant));
+				counts.merge(merchant, -1, Integer::sum);
+			}
+			else {
+				suggestions.add(expense(merchant));
+				counts.merge(merchant, 1, Integer::sum);
+			}
+
+			if (i % 50 == 0) {
+				assertEquals(ranked(counts, "", 100), suggestions.suggest("", 100));
+				assertEquals(ranked(counts, "m", 10), suggestions.suggest("M", 10));
+				assertEquals(ranked(counts, "m0", 5), suggestions.suggest("m0", 5));
+			}
+		}
+	}
+
+	// expenses created while a rebuild counts the merchants are counted once
+	@Test
+	@SuppressWarnings("unchecked")
+	public void rebuild_keepsConcurrentChanges() {
+		MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+		MerchantSuggestions suggestions = new MerchantSuggestions(mongoTemplate);
+		Iterator<Expense> expenses = Arrays.asList(expense("Subway"), expense("Starbucks")).iterator();
+		CloseableIterator<Expense> stream = mock(CloseableIterator.class);
+		when(stream.hasNext()).thenAnswer(i -> expenses.hasNext());
+		AtomicInteger created = new AtomicInteger();
+		when(stream.next()).thenAnswer(i -> {
+			suggestions.add(expense("n" + created.incrementAndGet(), "Staples"));
+			return expenses.next();
+		});
+		ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+		when(mongoTemplate.stream(query.capture(), eq(Expense.class))).thenReturn(stream);
+
+		assertEquals(3, suggestions.rebuild());
+		assertEquals(Arrays.asList("Staples", "Starbucks", "Subway"), suggestions.suggest("s", 10));
+		assertEquals(Arrays.asList("Staples", "Starbucks"), suggestions.suggest("sta", 10));
+		assertTrue(query.getValue().getQueryObject().containsField("id"));
+	}
+
+	// expenses updated or deleted while a rebuild counts the merchants are counted once with their latest merchant, whether
+	// the count reached them before or after they changed
+	@Test
+	@SuppressWarnings("unchecked")
+	public void rebuild_keepsConcurrentUpdatesAndDeletes() {
+		MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+		MerchantSuggestions suggestions = new MerchantSuggestions(mongoTemplate);
+		for (String[] expense : new String[][] { { "1", "Subway" }, { "2", "Subway" }, { "3", "Peets" }, { "4", "Peets" } }) {
+			suggestions.add(expense(expense[0], expense[1]));
+		}
+
+		// the count reads expense 1 before it moves to Staples and then Peets, and expense 2 after it moves to Staples.
+		// expense 3 is deleted after it is read and expense 4 before it would have been.
+		Iterator<Expense> expenses = Arrays.asList(expense("1", "Subway"), expense("2", "Staples"), expense("3", "Peets")).iterator();
+		AtomicInteger read = new AtomicInteger();
+		CloseableIterator<Expense> stream = mock(CloseableIterator.class);
+		when(stream.hasNext()).thenAnswer(i -> {
+			if (read.get() == 3 && !expenses.hasNext()) {
+				suggestions.remove(expense("3", "Peets"));
+				read.incrementAndGet();
+			}
+			return expenses.hasNext();
+		});
+		when(stream.next()).thenAnswer(i -> {
+			if (read.getAndIncrement() == 1) {
+				suggestions.update(expense("1", "Subway"), expense("Staples"));
+				suggestions.update(expense("2", "Subway"), expense("Staples"));
+				suggestions.remove(expense("4", "Peets"));
+				suggestions.update(expense("1", "Staples"), expense("Peets"));
+			}
+			return expenses.next();
+		});
+		when(mongoTemplate.stream(any(Query.class), eq(Expense.class))).thenReturn(stream);
+
+		assertEquals(2, suggestions.rebuild());
+		assertEquals(Arrays.asList("Peets", "Staples"), suggestions.suggest("", 10));
+		suggestions.remove(expense("1", "Peets"));
+		suggestions.remove(expense("2", "Staples"));
+		assertEquals(Collections.emptyList(), suggestions.suggest("", 10));
+	}
+
+	// only so many short prefixes are kept ready, and the rest are still ranked when asked for
+	@Test
+	public void suggest_boundsKeptPrefixes() {
+		MerchantSuggestions suggestions = suggestions("Starbucks", "Staples", "Staples");
+
+		for (char c = 0x4e00; c < 0x4e00 + 5000; c++) {
+			suggestions.suggest(String.valueOf(c), 10);
+		}
+
+		assertEquals(Arrays.asList("Staples", "Starbucks"), suggestions.suggest("s", 10));
+		suggestions.add(expense("Starbucks"));
+		suggestions.add(expense("Starbucks"));
+		assertEquals(Arrays.asList("Starbucks", "Staples"), suggestions.suggest("st", 10));
+	}
+
+	// the names of the best ranked merchants starting with the prefix, most frequent first, then alphabetically
+	private static List<String> ranked(Map<String,Integer> counts, String prefix, int limit) {
+		return counts.entrySet().stream()
+				.filter(e -> e.getValue() > 0 && e.getKey().startsWith(prefix))
+				.sorted(Comparator.comparing((Map.Entry<String,Integer> e) -> e.getValue()).reversed().thenComparing(Map.Entry::getKey))
+				.limit(limit)
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+	}
+}
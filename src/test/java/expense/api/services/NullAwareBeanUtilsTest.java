@@ -0,0 +1,114 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+import expense.api.model.Expense;
+
+public class NullAwareBeanUtilsTest {
+
+	// a bean whose setter fails
+	public static class FailingBean {
+		private String name;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			throw new IllegalStateException("test");
+		}
+	}
+
+	// a bean with a property that has no setter
+	public static class ReadOnlyBean {
+		private String name;
+
+		public ReadOnlyBean(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	// a bean with only a name, to copy into an expense
+	public static class NamedBean {
+		private String merchant;
+
+		public String getMerchant() {
+			return merchant;
+		}
+
+		public void setMerchant(String merchant) {
+			this.merchant = merchant;
+		}
+	}
+
+	// non-null properties are copied and null properties are ignored
+	@Test
+	public void copy_nullAware() throws Exception {
+		Expense dest = new Expense();
+		dest.setMerchant("merchant");
+		dest.setComments("comment");
+		
+		Expense src = new Expense();
+		src.setMerchant("Starbucks");
+		src.setTotal(new BigDecimal("2.5"));
+		
+		NullAwareBeanUtils.copy(dest, src);
+		
+		assertEquals("Starbucks", dest.getMerchant());
+		assertEquals(new BigDecimal("2.5"), dest.getTotal());
+		assertEquals("comment", dest.getComments());
+		
+		// the accessors resolved by the first copy are reused
+		src.setMerchant("Peets");
+		NullAwareBeanUtils.copy(dest, src);
+		assertEquals("Peets", dest.getMerchant());
+	}
+
+	// properties can be copied between different classes
+	@Test
+	public void copy_differentClasses() throws Exception {
+		Expense dest = new Expense();
+		
+		NamedBean src = new NamedBean();
+		src.setMerchant("Starbucks");
+		
+		NullAwareBeanUtils.copy(dest, src);
+		
+		assertEquals("Starbucks", dest.getMerchant());
+	}
+
+	// a missing setter is only a problem when there is a value to set
+	@Test
+	public void copy_missingSetter() throws Exception {
+		NullAwareBeanUtils.copy(new ReadOnlyBean("dest"), new ReadOnlyBean(null));
+		
+		try {
+			NullAwareBeanUtils.copy(new ReadOnlyBean("dest"), new ReadOnlyBean("src"));
+			fail("Expected NoSuchFieldException");
+		} catch (NoSuchFieldException e) {}
+	}
+
+	// exceptions from accessors are wrapped as they are with reflection
+	@Test
+	public void copy_setterException() throws Exception {
+		FailingBean src = new FailingBean();
+		src.name = "src";
+		
+		try {
+			NullAwareBeanUtils.copy(new FailingBean(), src);
+			fail("Expected InvocationTargetException");
+		} catch (InvocationTargetException e) {
+			assertEquals("test", e.getCause().getMessage());
+		}
+	}
+}
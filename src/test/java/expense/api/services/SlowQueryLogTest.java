@@ -0,0 +1,135 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class SlowQueryLogTest {
+
+	// the shape holds the filter names in order, without their values or paging
+	@Test
+	public void shape_namesOnly() {
+		Map<String,String> filters = new HashMap<>();
+		filters.put("status", "new");
+		filters.put("merchant", "a");
+		filters.put("page", "2");
+		filters.put("size", "10");
+		
+		assertEquals("merchant,status", SlowQueryLog.shape(filters));
+	}
+
+	// only listings at or over the threshold are logged, and only sampled ones are explained
+	@Test
+	public void record_threshold() {
+		AtomicInteger explains = new AtomicInteger();
+		SlowQueryLog log = new SlowQueryLog(100, 1, 10, Runnable::run);
+		
+		assertNull(log.record("merchant", 0, 10, TimeUnit.MILLISECONDS.toNanos(99), 10, () -> {
+			explains.incrementAndGet();
+			return new BasicDBObject();
+		}));
+		assertEquals("Slow expense listing [150 ms]: filters [merchant] page [1] size [10] returned [7]",
+				log.record("merchant", 1, 10, TimeUnit.MILLISECONDS.toNanos(150), 7, () -> {
+					explains.incrementAndGet();
+					return new BasicDBObject();
+				}));
+		assertEquals(1, explains.get());
+		
+		assertNull(SlowQueryLog.disabled().record("merchant", 0, 10, TimeUnit.HOURS.toNanos(1), 10, () -> null));
+	}
+
+	// a failed explain is logged on the explain thread and not thrown
+	@Test
+	public void record_explainFails() {
+		List<Runnable> explains = new ArrayList<>();
+		AtomicInteger calls = new AtomicInteger();
+		SlowQueryLog log = new SlowQueryLog(0, 1, 10, explains::add);
+		
+		assertEquals("Slow expense listing [0 ms]: filters [merchant] page [0] size [10] returned [0]",
+				log.record("merchant", 0, 10, 1, 0, () -> {
+					calls.incrementAndGet();
+					throw new IllegalStateException("no database");
+				}));
+		assertEquals(0, calls.get());
+		assertEquals(1, explains.size());
+		
+		explains.get(0).run();
+		assertEquals(1, calls.get());
+	}
+
+	// no more than the limit are explained in a minute, and the limit starts again the next minute
+	@Test
+	public void record_explainsPerMinute() {
+		List<Runnable> explains = new ArrayList<>();
+		SlowQueryLog log = new SlowQueryLog(0, 1, 2, explains::add);
+		
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(log.record("merchant", 0, 10, 1, 0, BasicDBObject::new, 100));
+		}
+		assertEquals(2, explains.size());
+		
+		log.record("merchant", 0, 10, 1, 0, BasicDBObject::new, 101);
+		assertEquals(3, explains.size());
+	}
+
+	// slow counts are logged like listings, with a timed out estimate counting nothing
+	@Test
+	public void recordCount_threshold() {
+		List<Runnable> explains = new ArrayList<>();
+		SlowQueryLog log = new SlowQueryLog(100, 1, 10, explains::add);
+		
+		assertNull(log.recordCount("merchant", "exact", TimeUnit.MILLISECONDS.toNanos(99), 5L, BasicDBObject::new));
+		assertEquals("Slow expense count [150 ms]: filters [merchant] mode [exact] counted [5]",
+				log.recordCount("merchant", "exact", TimeUnit.MILLISECONDS.toNanos(150), 5L, BasicDBObject::new));
+		assertEquals("Slow expense count [200 ms]: filters [status] mode [estimate] counted [nothing]",
+				log.recordCount("status", "estimate", TimeUnit.MILLISECONDS.toNanos(200), null, BasicDBObject::new));
+		assertEquals(2, explains.size());
+	}
+
+	// failures are logged whatever they took, unless the log is disabled
+	@Test
+	public void failed_logged() {
+		SlowQueryLog log = new SlowQueryLog(100, 1, 10, Runnable::run);
+		
+		assertEquals("Failed expense listing [3 ms]: filters [merchant]: java.lang.IllegalStateException: no database",
+				log.failed("listing", "merchant", TimeUnit.MILLISECONDS.toNanos(3), new IllegalStateException("no database")));
+		assertNull(SlowQueryLog.disabled().failed("count", "merchant", 1, new IllegalStateException("no database")));
+	}
+
+	// the winning plan reads from its last stage to its first, with the index scanned
+	@Test
+	public void summarize_winningPlan() {
+		DBObject explain = new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan",
+				new BasicDBObject("stage", "LIMIT").append("inputStage",
+						new BasicDBObject("stage", "FETCH").append("inputStage",
+								new BasicDBObject("stage", "IXSCAN").append("indexName", "merchant_1_datetime_1")))))
+				.append("executionStats", new BasicDBObject("totalKeysExamined", 10).append("totalDocsExamined", 10));
+		
+		assertEquals("LIMIT <- FETCH <- IXSCAN merchant_1_datetime_1 (examined 10 keys, 10 documents)", SlowQueryLog.summarize(explain));
+		
+		DBObject collectionScan = new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan",
+				new BasicDBObject("stage", "SORT").append("inputStages", Arrays.asList(new BasicDBObject("stage", "COLLSCAN")))));
+		assertEquals("SORT <- COLLSCAN", SlowQueryLog.summarize(collectionScan));
+	}
+
+	// servers before 3.0 report the cursor used
+	@Test
+	public void summarize_legacy() {
+		DBObject explain = new BasicDBObject("cursor", "BasicCursor").append("nscanned", 5000).append("nscannedObjects", 5000);
+		
+		assertEquals("BasicCursor (examined 5000 keys, 5000 documents)", SlowQueryLog.summarize(explain));
+	}
+}
@@ -0,0 +1,85 @@
+package expense.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import expense.api.model.Expense;
+
+public class TotalValueBackfillTest {
+
+	private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+	private final DBCollection collection = mock(DBCollection.class);
+	private final BulkWriteOperation batch = mock(BulkWriteOperation.class);
+	private final BulkWriteRequestBuilder request = mock(BulkWriteRequestBuilder.class);
+	private final BulkWriteResult result = mock(BulkWriteResult.class);
+
+	private void expenses(int count) {
+		List<DBObject> expenses = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			expenses.add(new BasicDBObject("_id", "e" + i).append("total", "12.50"));
+		}
+		Iterator<DBObject> iterator = expenses.iterator();
+		DBCursor cursor = mock(DBCursor.class);
+		when(cursor.hasNext()).thenAnswer(i -> iterator.hasNext());
+		when(cursor.next()).thenAnswer(i -> iterator.next());
+
+		when(mongoTemplate.getCollectionName(Expense.class)).thenReturn("expense");
+		when(mongoTemplate.getCollection("expense")).thenReturn(collection);
+		when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+		when(collection.initializeUnorderedBulkOperation()).thenReturn(batch);
+		when(batch.find(any(DBObject.class))).thenReturn(request);
+		when(batch.execute()).thenReturn(result);
+	}
+
+	// older totals are filled in by bulk updates of the raw documents, a batch at a time, leaving the versions alone
+	@Test
+	public void backfill_batches() {
+		expenses(1500);
+		when(result.getMatchedCount()).thenReturn(1000, 500);
+
+		assertEquals(1500, new TotalValueBackfill(mongoTemplate, ExpenseRollups.disabled(), Runnable::run).backfill());
+
+		verify(batch, times(2)).execute();
+		verify(batch).find(new BasicDBObject("_id", "e0").append("totalValue", new BasicDBObject("$exists", false)));
+		verify(request, times(1500)).updateOne(new BasicDBObject("$set", new BasicDBObject("totalValue", 12.5)));
+		verify(mongoTemplate, never()).findAndModify(any(), any(), eq(Expense.class));
+	}
+
+	// the backfill runs apart from startup, and the rollups are rebuilt from the totals it filled in
+	@Test
+	public void run_inBackground() {
+		expenses(1);
+		when(result.getMatchedCount()).thenReturn(1);
+		List<Runnable> backfills = new ArrayList<>();
+		List<Runnable> rebuilds = new ArrayList<>();
+		ExpenseRollups rollups = new ExpenseRollups(mongoTemplate, rebuilds::add);
+
+		new TotalValueBackfill(mongoTemplate, rollups, backfills::add).run();
+
+		verify(collection, never()).find(any(DBObject.class), any(DBObject.class));
+		assertEquals(1, backfills.size());
+		backfills.get(0).run();
+		assertEquals(1, rebuilds.size());
+	}
+}